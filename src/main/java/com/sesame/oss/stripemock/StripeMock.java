@@ -1,16 +1,30 @@
 package com.sesame.oss.stripemock;
 
 import com.sesame.oss.stripemock.entities.StripeEntities;
+import com.sesame.oss.stripemock.http.InProcessHttpClient;
+import com.sesame.oss.stripemock.http.Route;
 import com.sesame.oss.stripemock.http.StripeApiHttpHandler;
+import com.sesame.oss.stripemock.http.Tenants;
 import com.sesame.oss.stripemock.util.MutableClock;
 import com.stripe.Stripe;
 import com.stripe.exception.StripeException;
+import com.stripe.net.ApiResource;
+import com.stripe.net.LiveStripeResponseGetter;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.time.Clock;
 import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class StripeMock {
     /**
@@ -24,8 +38,21 @@ public class StripeMock {
                                                                     .getZone(),
                                                                Clock.systemDefaultZone()
                                                                     .instant());
-    private final StripeEntities stripeEntities = new StripeEntities(CLOCK);
+    private final Tenants tenants;
+    /**
+     * The entities of the {@link Tenants#getDefault() default tenant}, which is what all the static methods operate on.
+     */
+    private final StripeEntities stripeEntities;
+    private final StripeApiHttpHandler handler;
+    /**
+     * This is null when using the {@link Transport#IN_PROCESS in-process} transport.
+     */
     private final HttpServer httpServer;
+    private final ExecutorService executor;
+    /**
+     * The state each memoized bootstrap left behind the first time it ran. These are tied to this instance, so they go away when the mock is stopped.
+     */
+    private final Map<Object, BootstrapState> bootstrapStates = new HashMap<>();
 
     /**
      * This check exists for easy switching between the real and mocked mode. This is useful if you want to run the same set of tests in two modes,
@@ -38,17 +65,83 @@ public class StripeMock {
      */
     private static final boolean DISABLED = Boolean.parseBoolean(System.getProperty("stripe.mock.disabled", System.getenv("STRIPE_MOCK_DISABLED")));
     private static final boolean LOG_REQUESTS = Boolean.parseBoolean(System.getProperty("stripe.mock.log.requests", System.getenv("STRIPE_MOCK_LOG_REQUESTS")));
+    private static final boolean MEMOIZE_BOOTSTRAPS =
+            Boolean.parseBoolean(System.getProperty("stripe.mock.memoize.bootstraps", System.getenv("STRIPE_MOCK_MEMOIZE_BOOTSTRAPS")));
     private static final String STRIPE_API_KEY = System.getProperty("stripe.api.key", System.getenv("STRIPE_API_KEY"));
+    /**
+     * Controls how stripe-java reaches the mock. See {@link Transport} for the available transports. Defaults to {@link Transport#HTTP}.
+     */
+    private static final Transport TRANSPORT = Transport.parse(System.getProperty("stripe.mock.transport", System.getenv("STRIPE_MOCK_TRANSPORT")));
+    /**
+     * In {@link Transport#IN_PROCESS} mode, we point stripe-java at an address that can't be resolved. That way, any client that doesn't go through
+     * the globally installed response getter fails fast, rather than accidentally talking to the real stripe api.
+     */
+    private static final String IN_PROCESS_API_BASE = "http://stripe-mock.invalid";
+    /**
+     * Controls which threads handle the incoming requests. See {@link ExecutorMode} for the available modes. Defaults to {@link ExecutorMode#SINGLE},
+     * which is how the mock has always behaved.
+     */
+    private static final ExecutorMode EXECUTOR_MODE =
+            ExecutorMode.parse(System.getProperty("stripe.mock.executor", System.getenv("STRIPE_MOCK_EXECUTOR")));
+    /**
+     * The number of threads used when running in {@link ExecutorMode#POOL} mode. Defaults to the number of available processors.
+     */
+    private static final int EXECUTOR_THREADS = Integer.parseInt(System.getProperty("stripe.mock.executor.threads",
+                                                                                    System.getenv()
+                                                                                          .getOrDefault("STRIPE_MOCK_EXECUTOR_THREADS",
+                                                                                                        String.valueOf(Runtime.getRuntime()
+                                                                                                                              .availableProcessors()))));
+    /**
+     * The maximum number of incoming connections queued up waiting to be accepted by the http server.
+     */
+    private static final int BACKLOG = Integer.parseInt(System.getProperty("stripe.mock.backlog",
+                                                                           System.getenv()
+                                                                                 .getOrDefault("STRIPE_MOCK_BACKLOG", "50")));
+    /**
+     * List responses with at least this many entities are serialized and expanded on several threads. Defaults to 0, which means never.
+     */
+    private static final int PARALLEL_ENCODING_THRESHOLD = Integer.parseInt(System.getProperty("stripe.mock.parallel.encoding.threshold",
+                                                                                               System.getenv()
+                                                                                                     .getOrDefault("STRIPE_MOCK_PARALLEL_ENCODING_THRESHOLD",
+                                                                                                                   "0")));
 
     private static volatile StripeMock stripeMock;
     private static volatile boolean logRequests = LOG_REQUESTS;
+    private static volatile boolean memoizeBootstraps = MEMOIZE_BOOTSTRAPS;
+    private static volatile int parallelEncodingThreshold = PARALLEL_ENCODING_THRESHOLD;
 
-    private StripeMock(int port) throws IOException {
-        httpServer = HttpServer.create(new InetSocketAddress("localhost", port), 50);
-        httpServer.createContext("/v1/", new StripeApiHttpHandler(stripeEntities));
+    private StripeMock(int port, String apiKey) throws IOException {
+        tenants = new Tenants(apiKey, CLOCK);
+        stripeEntities = tenants.getDefault()
+                                .getStripeEntities();
+        handler = new StripeApiHttpHandler(tenants);
+        if (TRANSPORT == Transport.IN_PROCESS) {
+            httpServer = null;
+            executor = null;
+            ApiResource.setStripeResponseGetter(new LiveStripeResponseGetter(new InProcessHttpClient(handler)));
+            return;
+        }
+        httpServer = HttpServer.create(new InetSocketAddress("localhost", port), BACKLOG);
+        httpServer.createContext("/v1/", handler);
+        executor = EXECUTOR_MODE.createExecutor(EXECUTOR_THREADS);
+        if (executor != null) {
+            // If we don't set an executor, the http server handles every request on its own dispatcher thread
+            httpServer.setExecutor(executor);
+        }
         httpServer.start();
     }
 
+    /**
+     * @return the port the http server is listening on, or -1 if we're not using http
+     */
+    private int getPort() {
+        if (httpServer == null) {
+            return -1;
+        }
+        return httpServer.getAddress()
+                         .getPort();
+    }
+
     /**
      * This will adjust time to the instant specified. This is handy if you need to create things in the past.
      * By default the time is set at the creation of the mock, and does not advance unless this method is called.
@@ -59,6 +152,20 @@ public class StripeMock {
         CLOCK.setInstant(instant);
     }
 
+    /**
+     * Like {@link #adjustTimeTo(Instant)}, but for the clock of a single {@link Tenants tenant}. This does nothing if the mock isn't running.
+     *
+     * @param tenant the api key, or the value of the {@value Tenants#TENANT_HEADER} header, that the tenant's requests are made with
+     */
+    public static void adjustTimeTo(String tenant, Instant instant) {
+        StripeMock stripeMock = StripeMock.stripeMock;
+        if (stripeMock != null) {
+            stripeMock.tenants.get(tenant)
+                              .getClock()
+                              .setInstant(instant);
+        }
+    }
+
     static Clock getClock() {
         return CLOCK;
     }
@@ -70,6 +177,36 @@ public class StripeMock {
         StripeMock.logRequests = logRequests;
     }
 
+    /**
+     * Setting this will override whatever was specified via system properties or environment variables. When enabled,
+     * {@link #reset(StripeBootstrap)} memoizes each bootstrap by its class, as if {@link #reset(Object, StripeBootstrap)} was called with the class
+     * as the key. Only enable this if every instance of a bootstrap class creates the same entities, which is not the case for lambdas that capture
+     * different values.
+     */
+    public static void setMemoizeBootstraps(boolean memoizeBootstraps) {
+        StripeMock.memoizeBootstraps = memoizeBootstraps;
+    }
+
+    /**
+     * Setting this will override whatever was specified via system properties or environment variables. List responses with at least this many
+     * entities are serialized and expanded in parallel, on the common fork join pool, which helps with large pages with many expansions.
+     * 0 turns it off. This can be set at any time, even after the mock is started.
+     */
+    public static void setParallelEncodingThreshold(int parallelEncodingThreshold) {
+        if (parallelEncodingThreshold < 0) {
+            throw new IllegalArgumentException("The threshold can't be negative");
+        }
+        StripeMock.parallelEncodingThreshold = parallelEncodingThreshold;
+    }
+
+    public static int getParallelEncodingThreshold() {
+        return parallelEncodingThreshold;
+    }
+
+    public static boolean isMemoizeBootstraps() {
+        return memoizeBootstraps;
+    }
+
     public static boolean isDisabled() {
         return DISABLED;
     }
@@ -78,10 +215,33 @@ public class StripeMock {
         return logRequests;
     }
 
+    public static ExecutorMode getExecutorMode() {
+        return EXECUTOR_MODE;
+    }
+
+    public static Transport getTransport() {
+        return TRANSPORT;
+    }
+
+    /**
+     * @return every route that the mock responds to, or an empty list if the mock isn't running
+     */
+    public static List<Route> getRoutes() {
+        StripeMock stripeMock = StripeMock.stripeMock;
+        if (stripeMock == null) {
+            return List.of();
+        }
+        return stripeMock.handler.getRoutes();
+    }
+
     public static synchronized int start() {
         return start(0);
     }
 
+    /**
+     * @param port the port to listen on, or 0 for any available port. This is ignored when using the {@link Transport#IN_PROCESS} transport.
+     * @return the port the mock is listening on, or -1 if the mock is disabled or doesn't use http
+     */
     public static synchronized int start(int port) {
         if (DISABLED) {
             if (Stripe.apiKey == null) {
@@ -91,24 +251,23 @@ public class StripeMock {
         }
         if (stripeMock == null) {
             try {
-                stripeMock = new StripeMock(port);
-                int boundPort = stripeMock.httpServer.getAddress()
-                                                     .getPort();
                 if (Stripe.apiKey == null) {
                     // If it's already set, we don't touch it.
                     // That way people can easily switch between the mock and normal tests.
                     // However if it is not set, we have to set it, as otherwise the REST client won't work.
                     Stripe.apiKey = "sk_test_clearly_fake";
                 }
-                Stripe.overrideApiBase("http://localhost:" + boundPort);
-                Stripe.overrideConnectBase("http://localhost:" + boundPort);
-                Stripe.overrideUploadBase("http://localhost:" + boundPort);
+                // Requests made with this key end up in the default tenant, which is what the static methods operate on
+                stripeMock = new StripeMock(port, Stripe.apiKey);
+                String apiBase = stripeMock.httpServer == null ? IN_PROCESS_API_BASE : "http://localhost:" + stripeMock.getPort();
+                Stripe.overrideApiBase(apiBase);
+                Stripe.overrideConnectBase(apiBase);
+                Stripe.overrideUploadBase(apiBase);
             } catch (IOException e) {
                 throw new IllegalStateException(String.format("Could not start stripe mock on port %d", port), e);
             }
         }
-        return stripeMock.httpServer.getAddress()
-                                    .getPort();
+        return stripeMock.getPort();
     }
 
     /**
@@ -131,24 +290,152 @@ public class StripeMock {
      *                           that it is only run if the mock is enabled.
      */
     public static synchronized void reset(StripeBootstrap bootstrapIfEnabled) throws StripeException {
+        if (memoizeBootstraps && bootstrapIfEnabled != null) {
+            reset(bootstrapIfEnabled.getClass(), bootstrapIfEnabled);
+            return;
+        }
         if (DISABLED) {
             return;
         }
         if (stripeMock != null) {
-            stripeMock.stripeEntities.clear();
+            stripeMock.tenants.getDefault()
+                              .reset();
         }
         if (bootstrapIfEnabled != null) {
             bootstrapIfEnabled.bootstrap();
         }
     }
 
+    /**
+     * Resets the internal state, but does not stop the service. Unlike {@link #reset(StripeBootstrap)}, the bootstrap is only run the first time
+     * this is called with a given key. The state it leaves behind is {@link #snapshot() snapshotted}, and later resets with the same key
+     * {@link #restore(StripeEntities.Snapshot) restore} that state, rather than running the bootstrap again. That includes the time, if the
+     * bootstrap {@link #adjustTimeTo(Instant) adjusted} it.
+     *
+     * @param key                identifies the bootstrap. Anything with a sensible {@link Object#equals(Object) equals()} will do, like the bootstrap's class.
+     * @param bootstrapIfEnabled see {@link #reset(StripeBootstrap)}. If this is {@code null}, this is the same as {@link #reset()}, and the key is ignored.
+     */
+    public static synchronized void reset(Object key, StripeBootstrap bootstrapIfEnabled) throws StripeException {
+        if (DISABLED) {
+            return;
+        }
+        StripeMock stripeMock = StripeMock.stripeMock;
+        if (bootstrapIfEnabled == null) {
+            reset();
+            return;
+        }
+        if (stripeMock == null) {
+            // There's nowhere to keep the state, so there's nothing to memoize
+            bootstrapIfEnabled.bootstrap();
+            return;
+        }
+        stripeMock.tenants.getDefault()
+                          .reset();
+        BootstrapState state = stripeMock.bootstrapStates.get(key);
+        if (state != null) {
+            stripeMock.stripeEntities.restore(state.snapshot());
+            CLOCK.setInstant(state.instant());
+            return;
+        }
+        bootstrapIfEnabled.bootstrap();
+        // If the bootstrap throws, we don't get here, so it's run again next time
+        stripeMock.bootstrapStates.put(key, new BootstrapState(stripeMock.stripeEntities.snapshot(), CLOCK.instant()));
+    }
+
+    /**
+     * Resets the state of a single {@link Tenants tenant}, without affecting any other tenant. This takes constant time, which makes it cheap to give
+     * every test class running in parallel its own tenant, and reset it before each test. This does nothing if the mock isn't running.
+     *
+     * @param tenant the api key, or the value of the {@value Tenants#TENANT_HEADER} header, that the tenant's requests are made with
+     */
+    public static void resetTenant(String tenant) {
+        if (DISABLED) {
+            return;
+        }
+        StripeMock stripeMock = StripeMock.stripeMock;
+        if (stripeMock != null) {
+            stripeMock.tenants.get(tenant)
+                              .reset();
+        }
+    }
+
+    /**
+     * Removes a {@link Tenants tenant}, along with all of its state. Every tenant keeps its own copy of everything the mock holds, so test suites that
+     * use a new api key or tenant for every test class should remove the tenant when the class is done with it. If the tenant is used again later,
+     * it starts out empty. This does nothing if the mock isn't running.
+     *
+     * @param tenant the api key, or the value of the {@value Tenants#TENANT_HEADER} header, that the tenant's requests are made with
+     * @throws IllegalArgumentException if this is the default tenant, which can only be {@link #reset() reset}
+     */
+    public static void removeTenant(String tenant) {
+        if (DISABLED) {
+            return;
+        }
+        StripeMock stripeMock = StripeMock.stripeMock;
+        if (stripeMock != null) {
+            stripeMock.tenants.remove(tenant);
+        }
+    }
+
+    /**
+     * Captures the current state, so it can be {@link #restore(StripeEntities.Snapshot) restored} later. This takes constant time, no matter how
+     * much state there is, so it's a cheap way to build an expensive fixture once, and then start every test from it.
+     *
+     * @return the snapshot, or {@code null} if the mock is {@link #DISABLED disabled}
+     * @throws IllegalStateException if the mock isn't running
+     */
+    public static synchronized StripeEntities.Snapshot snapshot() {
+        if (DISABLED) {
+            return null;
+        }
+        return getRunningInstance().stripeEntities.snapshot();
+    }
+
+    /**
+     * Puts the state back to what it was when the snapshot was taken. This takes constant time, and the same snapshot can be restored any number of
+     * times. This does nothing if the mock is {@link #DISABLED disabled}.
+     *
+     * @param snapshot a snapshot from {@link #snapshot()}. Snapshots can't be restored after the mock has been stopped.
+     * @throws IllegalStateException if the mock isn't running
+     */
+    public static synchronized void restore(StripeEntities.Snapshot snapshot) {
+        if (DISABLED) {
+            return;
+        }
+        getRunningInstance().stripeEntities.restore(snapshot);
+    }
+
+    private static StripeMock getRunningInstance() {
+        StripeMock stripeMock = StripeMock.stripeMock;
+        if (stripeMock == null) {
+            throw new IllegalStateException("The stripe mock is not running");
+        }
+        return stripeMock;
+    }
+
     public static synchronized void stop() {
         if (DISABLED) {
             return;
         }
         if (stripeMock != null) {
             reset();
-            stripeMock.httpServer.stop(0);
+            if (stripeMock.httpServer == null) {
+                ApiResource.setStripeResponseGetter(new LiveStripeResponseGetter());
+            } else {
+                stripeMock.httpServer.stop(0);
+            }
+            if (stripeMock.executor != null) {
+                stripeMock.executor.shutdown();
+                try {
+                    if (!stripeMock.executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                        stripeMock.executor.shutdownNow();
+                    }
+                } catch (InterruptedException e) {
+                    stripeMock.executor.shutdownNow();
+                    Thread.currentThread()
+                          .interrupt();
+                }
+            }
             stripeMock = null;
 
             Stripe.overrideApiBase(Stripe.LIVE_API_BASE);
@@ -157,7 +444,97 @@ public class StripeMock {
         }
     }
 
+    /**
+     * @param instant the time of the default tenant's clock right after the bootstrap ran
+     */
+    private record BootstrapState(StripeEntities.Snapshot snapshot,
+                                  Instant instant) {}
+
     public interface StripeBootstrap {
         public void bootstrap() throws StripeException;
     }
+
+    /**
+     * Selected using the {@code stripe.mock.transport} system property or the {@code STRIPE_MOCK_TRANSPORT} environment variable.
+     */
+    public enum Transport {
+        /**
+         * stripe-java talks to the mock over http on localhost, just like it would talk to stripe. This is the default.
+         */
+        HTTP,
+        /**
+         * A custom stripe-java {@link com.stripe.net.HttpClient} is installed, which passes each request directly to the mock without opening a socket.
+         * Requests are handled on the calling thread, so the {@link ExecutorMode} doesn't apply.
+         */
+        IN_PROCESS;
+
+        private static Transport parse(String value) {
+            if (value == null || value.isBlank()) {
+                return HTTP;
+            }
+            try {
+                return valueOf(value.trim()
+                                    .replace('-', '_')
+                                    .toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("Unknown stripe mock transport '%s'. Supported transports are 'http' and 'in_process'", value),
+                                                   e);
+            }
+        }
+    }
+
+    /**
+     * Selected using the {@code stripe.mock.executor} system property or the {@code STRIPE_MOCK_EXECUTOR} environment variable.
+     */
+    public enum ExecutorMode {
+        /**
+         * Every request is handled on the http server's single dispatcher thread. This means that all requests are processed one at a time,
+         * which is how the mock has always behaved.
+         */
+        SINGLE,
+        /**
+         * Every request is handled on a fixed size pool of platform threads. The size is controlled by {@code stripe.mock.executor.threads}.
+         */
+        POOL,
+        /**
+         * Every request is handled on its own virtual thread.
+         */
+        VIRTUAL;
+
+        static ExecutorMode parse(String value) {
+            if (value == null || value.isBlank()) {
+                return SINGLE;
+            }
+            try {
+                return valueOf(value.trim()
+                                    .toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("Unknown stripe mock executor mode '%s'. Supported modes are 'single', 'pool' and 'virtual'",
+                                                                 value), e);
+            }
+        }
+
+        /**
+         * @return the executor to hand to the http server, or {@code null} if the http server should use its own dispatcher thread
+         */
+        ExecutorService createExecutor(int threads) {
+            return switch (this) {
+                case SINGLE -> null;
+                case POOL -> Executors.newFixedThreadPool(threads, daemonThreadFactory());
+                case VIRTUAL -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+                                                                         .name("stripe-mock-virtual-", 0)
+                                                                         .factory());
+            };
+        }
+
+        private static ThreadFactory daemonThreadFactory() {
+            // Daemon threads, so a test suite that forgets to call StripeMock.stop() can still exit
+            AtomicInteger threadNumber = new AtomicInteger();
+            return runnable -> {
+                Thread thread = new Thread(runnable, "stripe-mock-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
 }
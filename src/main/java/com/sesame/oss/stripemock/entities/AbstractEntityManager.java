@@ -9,31 +9,51 @@ import com.sesame.oss.stripemock.util.Utilities;
 import com.stripe.model.HasId;
 import com.stripe.net.ApiResource;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.time.Clock;
 import java.time.Instant;
 import java.util.*;
-import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 
 abstract class AbstractEntityManager<T extends ApiResource & HasId> implements EntityManager<T> {
     /**
      * This is a special operation that is used when an entity is updated.
      */
     protected static final String MAGIC_UPDATE_OPERATION = "__update";
-    protected final Map<String, T> entities = new HashMap<>();
+    protected final EntityStore<T> entities;
     protected final StripeEntities stripeEntities;
     protected final Clock clock;
 
     private final Class<T> entityClass;
     private final String idPrefix;
     private final int idLength;
+    private final List<ListParameter<T>> listParameters;
+    private final ToLongFunction<T> created;
 
     protected AbstractEntityManager(StripeEntities stripeEntities, Clock clock, Class<T> entityClass, String idPrefix, int idLength) {
+        this(stripeEntities, clock, entityClass, idPrefix, idLength, List.of());
+    }
+
+    /**
+     * @param listParameters the query parameters that lists can be filtered on, on top of {@code created}, which is always supported, and
+     *                       {@code metadata}, which is supported for every entity that has metadata
+     */
+    protected AbstractEntityManager(StripeEntities stripeEntities,
+                                    Clock clock,
+                                    Class<T> entityClass,
+                                    String idPrefix,
+                                    int idLength,
+                                    List<ListParameter<T>> listParameters) {
         this.stripeEntities = stripeEntities;
         this.clock = clock;
         this.entityClass = entityClass;
         this.idPrefix = idPrefix;
         this.idLength = idLength;
+        this.listParameters = withSearchIndexes(withMetadata(entityClass, listParameters), getSearchFields());
+        this.created = created(entityClass);
+        this.entities = stripeEntities.createStore(this, this::copy, created, this.listParameters);
     }
 
     @Override
@@ -82,17 +102,37 @@ abstract class AbstractEntityManager<T extends ApiResource & HasId> implements E
         if (existingEntity == null) {
             return Optional.empty();
         }
-        JsonObject root = Utilities.PRODUCER_GSON.toJsonTree(existingEntity)
-                                                 .getAsJsonObject();
-        merge(root, formData);
-        T newEntity = ApiResource.GSON.fromJson(root, entityClass);
-        T postOperationEntity = perform(existingEntity, newEntity, operation, formData);
-        validate(postOperationEntity);
-        entities.put(id, postOperationEntity);
-        stripeEntities.updateLists(postOperationEntity);
+        Set<String> lockedEntityIds = lockedEntityIds(id, existingEntity, operation);
+        while (true) {
+            try (EntityLocks.Held ignored = stripeEntities.lock(lockedEntityIds)) {
+                // Somebody might have changed the entity while we were waiting for the lock, so we have to start from the latest version
+                existingEntity = entities.get(id);
+                if (existingEntity == null) {
+                    return Optional.empty();
+                }
+                Set<String> relatedEntityIds = lockedEntityIds(id, existingEntity, operation);
+                if (!lockedEntityIds.containsAll(relatedEntityIds)) {
+                    // The change made the operation touch entities we don't hold the locks for. Locking more ids while holding some would break
+                    // the lock ordering, so we let go and start over.
+                    lockedEntityIds = relatedEntityIds;
+                    continue;
+                }
+                T newEntity = patchedCopy(existingEntity, formData);
+                T postOperationEntity = perform(existingEntity, newEntity, operation, formData);
+                validate(postOperationEntity);
+                // Parents that hold this entity in a collection only hold its id, so they show the new version without being touched
+                entities.put(id, postOperationEntity);
+
+                // For now, there's nothing to do here. In reality we'd do stuff like trigger webhooks etc.
+                return Optional.of(postOperationEntity);
+            }
+        }
+    }
 
-        // For now, there's nothing to do here. In reality we'd do stuff like trigger webhooks etc.
-        return Optional.of(postOperationEntity);
+    private Set<String> lockedEntityIds(String id, T existingEntity, String operation) throws ResponseCodeException {
+        Set<String> lockedEntityIds = new HashSet<>(getRelatedEntityIds(existingEntity, operation));
+        lockedEntityIds.add(id);
+        return lockedEntityIds;
     }
 
     @Override
@@ -126,6 +166,34 @@ abstract class AbstractEntityManager<T extends ApiResource & HasId> implements E
         return Optional.ofNullable(entities.get(id));
     }
 
+    /**
+     * Like {@link #get(String, String)}, except that the returned entity can be changed in place, as it's guaranteed to not be shared with any
+     * {@link StripeEntities#snapshot() snapshot}. The caller must hold the lock for the id.
+     */
+    Optional<T> getForUpdate(String id, String stripeAccount) throws ResponseCodeException {
+        // This goes through get(), so we get the same errors and filtering as everybody else
+        if (get(id, stripeAccount).isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(entities.getForUpdate(id));
+    }
+
+    /**
+     * @see StripeEntities#reindex(Class, String)
+     */
+    void reindex(String id) {
+        entities.reindex(id);
+    }
+
+    /**
+     * @return the revision of the entity, or {@code -1} if it isn't the one that is stored with its id. Entities that show other entities when they
+     * are serialized, like the refunds of a charge, have to take the revisions of those into account too.
+     * @see EntityStore#revision(String, Object)
+     */
+    long revision(T entity) {
+        return entities.revision(entity.getId(), entity);
+    }
+
     @Override
     public Optional<T> get(String id, String stripeAccount, String parentEntityType, String parentEntityId) throws ResponseCodeException {
         // Most entities do not support related sub-entities, so this is a reasonable default
@@ -134,9 +202,53 @@ abstract class AbstractEntityManager<T extends ApiResource & HasId> implements E
 
     @Override
     public List<T> list(QueryParameters query, String stripeAccount) throws ResponseCodeException {
-        return entities.values()
-                       .stream()
-                       .toList();
+        return entities.list(ListQuery.of(query, listParameters, listFilter(query, stripeAccount)));
+    }
+
+    @Override
+    public Page<T> page(QueryParameters query, String stripeAccount) throws ResponseCodeException {
+        return entities.page(ListQuery.of(query, listParameters, listFilter(query, stripeAccount)), Page.Request.of(query), getObjectName());
+    }
+
+    /**
+     * Walks the entities that would be listed, from the cursor, for as long as the caller wants. This is for lists that merge the entities of several
+     * entity managers, like balance transactions.
+     *
+     * @see EntityStore#walk(ListQuery, EntityStore.Position, boolean)
+     */
+    Iterator<EntityStore.Versioned<T>> walk(QueryParameters query, String stripeAccount, EntityStore.Position cursor, boolean oldest)
+            throws ResponseCodeException {
+        return entities.walk(ListQuery.of(query, listParameters, listFilter(query, stripeAccount)), cursor, oldest);
+    }
+
+    /**
+     * @return the position of the entity in the order it's listed in, or {@code null} if there's no such entity
+     */
+    EntityStore.Position position(String id) {
+        return entities.position(id);
+    }
+
+    @Override
+    public Page<T> search(QueryParameters query, String stripeAccount) throws ResponseCodeException {
+        Map<String, SearchQuery.Field<T>> fields = new HashMap<>();
+        fields.put("created", SearchQuery.Field.of("created", created::applyAsLong));
+        for (SearchQuery.Field<T> field : getSearchFields()) {
+            fields.put(field.name(), field);
+        }
+        SearchQuery<T> searchQuery = SearchQuery.compile(query.getFirst("query")
+                                                              .orElse(null), fields, getNormalizedEntityName());
+        return entities.page(searchQuery.toListQuery(listFilter(query, stripeAccount)), Page.Request.ofSearch(query), getObjectName());
+    }
+
+    @Override
+    public boolean isSearchable() {
+        return !getSearchFields().isEmpty();
+    }
+
+    @Override
+    public Page<T> page(QueryParameters query, String stripeAccount, String parentEntityType, String parentEntityId) throws ResponseCodeException {
+        // Sub-entities are only listed under their parent, and a parent rarely has many, so building the whole list is fine
+        return Page.of(list(query, stripeAccount, parentEntityType, parentEntityId), Page.Request.of(query), getObjectName());
     }
 
     @Override
@@ -177,6 +289,13 @@ abstract class AbstractEntityManager<T extends ApiResource & HasId> implements E
         return entityClass;
     }
 
+    /**
+     * @return the prefix of the generated ids, like {@code cus} for customers
+     */
+    String getIdPrefix() {
+        return idPrefix;
+    }
+
     @Override
     public String getNormalizedEntityName() {
         // PaymentIntent -> payment_intent + s -> payment_intents
@@ -189,11 +308,17 @@ abstract class AbstractEntityManager<T extends ApiResource & HasId> implements E
     }
 
     @Override
-    public boolean canPerformOperation(String operation) {
+    public Set<String> getOperations() {
         // The default is that we don't support any operations other than MAGIC_UPDATE_OPERATION.
         // This can be seen in the default implementation of perform().
-        // As such, it's reasonable to return false as a default here, and let implementations override it as they choose.
-        return false;
+        // As such, it's reasonable to return an empty set as a default here, and let implementations override it as they choose.
+        return Set.of();
+    }
+
+    @Override
+    public Optional<String> getParentEntityName() {
+        // Most entities do not have a parent, so this is a reasonable default
+        return Optional.empty();
     }
 
     /**
@@ -223,6 +348,42 @@ abstract class AbstractEntityManager<T extends ApiResource & HasId> implements E
         }
     }
 
+    /**
+     * Decides which entities are included when listing, for filters that can't be expressed as a {@link ListParameter}, like only including the
+     * transfers to the connected account the request is made for. This is used both when {@link #list(QueryParameters, String) listing everything},
+     * and when {@link #page(QueryParameters, String) paging}. By default, everything is included.
+     *
+     * @param query the query parameters of the list request, or {@code null} if the list is for internal use
+     * @implNote his method does <b>not</b> exist on the {@link EntityManager} interface, as it is an implementation detail, and should never be called from the outside.
+     */
+    protected Predicate<T> listFilter(QueryParameters query, String stripeAccount) throws ResponseCodeException {
+        return entity -> true;
+    }
+
+    /**
+     * The fields that can be used in search queries, apart from {@code created}, which can always be searched. Entities that return an empty list
+     * here, which is the default, can't be searched. This is called while the entity manager is being constructed, to create the indexes of the
+     * fields, so it must not depend on anything the subclass initializes.
+     *
+     * @implNote his method does <b>not</b> exist on the {@link EntityManager} interface, as it is an implementation detail, and should never be called from the outside.
+     */
+    protected List<SearchQuery.Field<T>> getSearchFields() {
+        return List.of();
+    }
+
+    /**
+     * Operations that change other entities than the one they are performed on must return the ids of those entities here, so they can be
+     * locked along with the entity itself. By default, operations don't change any other entities. This is called both before and after the locks
+     * are taken, and the operation is only performed once the ids it returns are all locked.
+     *
+     * @param existingEntity the entity the operation is about to be performed on
+     * @param operation      the operation we were asked to perform
+     * @implNote his method does <b>not</b> exist on the {@link EntityManager} interface, as it is an implementation detail, and should never be called from the outside.
+     */
+    protected Collection<String> getRelatedEntityIds(T existingEntity, String operation) throws ResponseCodeException {
+        return List.of();
+    }
+
     /**
      * @param existingEntity the existing entity before we have applied any changes to it
      * @param updatedEntity  the updated entity after we applied any changes that might have been included in the form data to it
@@ -278,14 +439,94 @@ abstract class AbstractEntityManager<T extends ApiResource & HasId> implements E
         }
     }
 
-    protected T parse(Map<String, Object> formData) {
-        String mapAsJson = Utilities.PRODUCER_GSON.toJson(formData);
-        return ApiResource.GSON.fromJson(mapAsJson, entityClass);
+    /**
+     * @return a copy of the entity with the form data applied to it. This is done on the entity itself whenever possible, as a round trip through
+     * json costs a lot more for big entities, like invoices and subscriptions.
+     */
+    private T patchedCopy(T entity, Map<String, Object> formData) {
+        return EntityPatcher.patchedCopy(entity, formData)
+                            .orElseGet(() -> {
+                                JsonObject root = Utilities.PRODUCER_GSON.toJsonTree(entity)
+                                                                         .getAsJsonObject();
+                                merge(root, formData);
+                                return ApiResource.GSON.fromJson(root, entityClass);
+                            });
+    }
+
+    private T copy(T entity) {
+        // This is the same copy that perform() uses to create the updated entity, so it's as faithful as the updates are
+        return EntityPatcher.copy(entity)
+                            .orElseGet(() -> ApiResource.GSON.fromJson(Utilities.PRODUCER_GSON.toJsonTree(entity), entityClass));
+    }
+
+    /**
+     * @return the name of the entity as used in error messages, like {@code payment_intent}
+     */
+    private String getObjectName() {
+        return Utilities.snakeCase(entityClass.getSimpleName());
+    }
+
+    private static <T> ToLongFunction<T> created(Class<T> entityClass) {
+        Method getCreated;
+        try {
+            getCreated = entityClass.getMethod("getCreated");
+        } catch (NoSuchMethodException e) {
+            // Some entities, like bank accounts, don't have a creation time. Those are listed in the order they were stored.
+            return entity -> 0;
+        }
+        return entity -> {
+            try {
+                return Objects.requireNonNullElse((Long) getCreated.invoke(entity), 0L);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                // This shouldn't happen, as it's a plain getter
+                throw new AssertionError(e);
+            }
+        };
+    }
+
+    /**
+     * Adds an index for each search field that is {@link SearchQuery.Field#ignoreCase() indexed ignoring case}, so {@code :} clauses on fields like
+     * {@code email} don't have to look at every entity.
+     */
+    private static <T> List<ListParameter<T>> withSearchIndexes(List<ListParameter<T>> listParameters, List<SearchQuery.Field<T>> searchFields) {
+        List<ListParameter<T>> withSearchIndexes = new ArrayList<>(listParameters);
+        for (SearchQuery.Field<T> field : searchFields) {
+            if (field.ignoreCase()) {
+                withSearchIndexes.add(ListParameter.ignoringCase(field.name(), field.getter()));
+            }
+        }
+        return List.copyOf(withSearchIndexes);
+    }
+
+    /**
+     * Adds an inverted index of the metadata to the list parameters, for entities that have metadata, so entities can be looked up by their
+     * metadata without walking all of them.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> List<ListParameter<T>> withMetadata(Class<T> entityClass, List<ListParameter<T>> listParameters) {
+        Method getMetadata;
+        try {
+            getMetadata = entityClass.getMethod("getMetadata");
+        } catch (NoSuchMethodException e) {
+            return listParameters;
+        }
+        List<ListParameter<T>> withMetadata = new ArrayList<>(listParameters);
+        withMetadata.add(ListParameter.ofMetadata(entity -> {
+            try {
+                return (Map<String, String>) getMetadata.invoke(entity);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                // This shouldn't happen, as it's a plain getter
+                throw new AssertionError(e);
+            }
+        }));
+        return List.copyOf(withMetadata);
     }
 
-    protected Predicate<T> filter(QueryParameters query, String field, Function<T, String> getter) {
-        return query.getFirst(field)
-                    .<Predicate<T>>map(filterValue -> entity -> Objects.equals(filterValue, getter.apply(entity)))
-                    .orElseGet(() -> entity -> true);
+    protected T parse(Map<String, Object> formData) {
+        return EntityPatcher.bind(formData, entityClass)
+                            .orElseGet(() -> {
+                                String mapAsJson = Utilities.PRODUCER_GSON.toJson(formData);
+                                return ApiResource.GSON.fromJson(mapAsJson, entityClass);
+                            });
     }
 }
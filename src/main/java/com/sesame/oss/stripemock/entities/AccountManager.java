@@ -37,12 +37,11 @@ class AccountManager extends AbstractEntityManager<Account> {
 
         Map<String, Object> externalAccountFormData = (Map<String, Object>) formData.get("external_account");
         if (externalAccountFormData != null) {
+            // Once the bank account is stored, it can be read, so it can't be changed without going through the store
+            externalAccountFormData.put("account", account.getId());
             BankAccount bankAccount = stripeEntities.getEntityManager(BankAccount.class)
                                                     .add(externalAccountFormData, stripeAccount);
-            bankAccount.setAccount(account.getId());
-            externalAccounts.getData()
-                            .add(bankAccount);
-            stripeEntities.bindChildToParentCollection(Account.class, account.getId(), "getExternalAccounts", bankAccount.getId());
+            stripeEntities.addToCollection(externalAccounts, BankAccount.class, bankAccount.getId());
         }
         return super.initialize(account, formData, stripeAccount);
     }
@@ -64,6 +63,13 @@ class AccountManager extends AbstractEntityManager<Account> {
         return account;
     }
 
+    @Override
+    long revision(Account account) {
+        long revision = super.revision(account);
+        // The external accounts are looked up whenever the account is serialized, so a change to any of them might change the account too
+        return revision == -1 ? -1 : Math.max(revision, stripeEntities.getRevision(BankAccount.class));
+    }
+
     @Override
     public Optional<Account> delete(String id) {
         Account account = entities.remove(id);
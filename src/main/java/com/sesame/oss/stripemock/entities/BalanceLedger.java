@@ -0,0 +1,177 @@
+package com.sesame.oss.stripemock.entities;
+
+import com.stripe.model.*;
+
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+/**
+ * The running balance of the platform and of every connected account, per currency and balance transaction status. Rather than summing up every
+ * balance transaction each time the balance is needed, each {@link BalanceTransactionSource} contributes its entries to the balance as it's
+ * stored, and takes back the entries it contributed before, so reading a balance takes constant time.
+ * <p>
+ * The entries follow the same rules as the {@link BalanceTransactionMapper}: transfers move money from the platform to the destination account,
+ * transfer reversals move it back, payouts move money out of the connected account that made them unless they failed or were canceled, and charges
+ * and refunds only affect the platform. Both the entries and the balances live in stores, so they're snapshotted and restored along with the
+ * entities.
+ */
+final class BalanceLedger {
+    static final String AVAILABLE = "available";
+    static final String PENDING = "pending";
+    /**
+     * The account the platform's balance is kept under.
+     */
+    private static final String PLATFORM = "";
+
+    private final StripeEntities stripeEntities;
+    /**
+     * The entries each source contributed to the balances, so they can be taken back when the source changes. The lists are never modified.
+     */
+    private final EntityStore<List<Entry>> entriesBySourceId;
+    /**
+     * For each account, the amount for each currency and status. The maps are never modified, but replaced, so they can be shared with snapshots.
+     */
+    private final EntityStore<Map<String, Map<String, Long>>> balancesByAccount;
+
+    BalanceLedger(EntityStores stores, StripeEntities stripeEntities) {
+        this.stripeEntities = stripeEntities;
+        this.entriesBySourceId = stores.create(UnaryOperator.identity());
+        this.balancesByAccount = stores.create(UnaryOperator.identity());
+    }
+
+    /**
+     * @param stripeAccount the connected account, or {@code null} for the platform
+     * @return the amounts of the account, by currency and then by status, like {@link #AVAILABLE}. Currencies the account has never had any money
+     * in are not included.
+     */
+    Map<String, Map<String, Long>> balances(String stripeAccount) {
+        return Objects.requireNonNullElse(balancesByAccount.get(key(stripeAccount)), Map.of());
+    }
+
+    /**
+     * @param stripeAccount the connected account, or {@code null} for the platform
+     */
+    long balance(String stripeAccount, String currency, String status) {
+        if (currency == null) {
+            return 0;
+        }
+        return balances(stripeAccount).getOrDefault(currency.toLowerCase(Locale.ROOT), Map.of())
+                                      .getOrDefault(status, 0L);
+    }
+
+    /**
+     * @return a listener that keeps the balances up to date with the sources stored by the entity manager
+     */
+    EntityStore.Listener listenerFor(AbstractEntityManager<?> entityManager) {
+        return new EntityStore.Listener() {
+            @Override
+            public void added(String id) {
+                update(id, (BalanceTransactionSource) entityManager.entities.get(id));
+            }
+
+            @Override
+            public void removed(String id) {
+                update(id, null);
+            }
+        };
+    }
+
+    /**
+     * Updates are rare and cheap, so they're simply done one at a time, which keeps the entries of a source and the balances in step.
+     */
+    private synchronized void update(String sourceId, BalanceTransactionSource source) {
+        List<Entry> oldEntries = Objects.requireNonNullElse(entriesBySourceId.get(sourceId), List.of());
+        List<Entry> newEntries = source == null ? List.of() : entries(source);
+        if (oldEntries.equals(newEntries)) {
+            return;
+        }
+        for (Entry entry : oldEntries) {
+            add(entry, -entry.amount());
+        }
+        for (Entry entry : newEntries) {
+            add(entry, entry.amount());
+        }
+        if (newEntries.isEmpty()) {
+            entriesBySourceId.remove(sourceId);
+        } else {
+            entriesBySourceId.put(sourceId, newEntries);
+        }
+    }
+
+    private void add(Entry entry, long amount) {
+        balancesByAccount.compute(entry.account(), balances -> {
+            Map<String, Map<String, Long>> newBalances = balances == null ? new HashMap<>() : new HashMap<>(balances);
+            Map<String, Long> amounts = new HashMap<>(newBalances.getOrDefault(entry.currency(), Map.of()));
+            amounts.merge(entry.status(), amount, Long::sum);
+            newBalances.put(entry.currency(), Collections.unmodifiableMap(amounts));
+            return Collections.unmodifiableMap(newBalances);
+        });
+    }
+
+    private List<Entry> entries(BalanceTransactionSource source) {
+        return switch (source) {
+            case Charge charge -> entry(PLATFORM, charge.getCurrency(), "succeeded".equals(charge.getStatus()) ? AVAILABLE : PENDING, charge.getAmount());
+            case Refund refund -> entry(PLATFORM, refund.getCurrency(), "succeeded".equals(refund.getStatus()) ? AVAILABLE : PENDING, negate(refund.getAmount()));
+            case Payout payout -> {
+                String status = payoutStatus(payout.getStatus());
+                if (status == null) {
+                    // Failed and canceled payouts never took any money out of the account
+                    yield List.of();
+                }
+                String stripeAccount = ((PayoutManager) stripeEntities.getEntityManager(Payout.class)).getStripeAccount(payout.getId());
+                yield entry(key(stripeAccount), payout.getCurrency(), status, negate(payout.getAmount()));
+            }
+            case Transfer transfer -> transfer(transfer.getDestination(), transfer.getCurrency(), transfer.getAmount());
+            case TransferReversal transferReversal -> {
+                String destination = stripeEntities.getEntityById(transferReversal.getTransfer())
+                                                   .map(transfer -> ((Transfer) transfer).getDestination())
+                                                   .orElse(null);
+                yield transfer(destination, transferReversal.getCurrency(), negate(transferReversal.getAmount()));
+            }
+            default -> throw new IllegalArgumentException("Can't add " + source.getClass() + " to the balance");
+        };
+    }
+
+    /**
+     * @return the balance status the payout's amount is booked under, or {@code null} if the payout doesn't affect the balance
+     */
+    private static String payoutStatus(String status) {
+        return switch (status) {
+            case "paid" -> AVAILABLE;
+            case "pending", "in_transit" -> PENDING;
+            case null, default -> null;
+        };
+    }
+
+    private List<Entry> transfer(String destination, String currency, Long amount) {
+        if (destination == null || currency == null || amount == null) {
+            return List.of();
+        }
+        String lowerCaseCurrency = currency.toLowerCase(Locale.ROOT);
+        return List.of(new Entry(PLATFORM, lowerCaseCurrency, AVAILABLE, -amount), new Entry(destination, lowerCaseCurrency, AVAILABLE, amount));
+    }
+
+    private static List<Entry> entry(String account, String currency, String status, Long amount) {
+        if (currency == null || amount == null) {
+            // The source is missing the information we'd need, so it's not part of any balance
+            return List.of();
+        }
+        return List.of(new Entry(account, currency.toLowerCase(Locale.ROOT), status, amount));
+    }
+
+    private static Long negate(Long amount) {
+        return amount == null ? null : -amount;
+    }
+
+    private static String key(String stripeAccount) {
+        return stripeAccount == null ? PLATFORM : stripeAccount;
+    }
+
+    /**
+     * @param account the connected account, or {@link #PLATFORM}
+     */
+    private record Entry(String account,
+                         String currency,
+                         String status,
+                         long amount) {}
+}
@@ -3,13 +3,23 @@ package com.sesame.oss.stripemock.entities;
 import com.sesame.oss.stripemock.http.QueryParameters;
 import com.sesame.oss.stripemock.http.ResponseCodeException;
 import com.stripe.model.*;
-import com.stripe.net.ApiResource;
 
 import java.time.Clock;
 import java.util.*;
+import java.util.function.UnaryOperator;
 
 class BalanceTransactionManager extends AbstractEntityManager<BalanceTransaction> {
-    private final Map<String, String> sourcesByBalanceTransactionId = new HashMap<>();
+    /**
+     * The balance transactions only depend on whether they're seen by a connected account, not on which one, so this stands in for all of them.
+     */
+    private static final String CONNECTED_ACCOUNT = "acct_connected";
+
+    private final EntityStore<String> sourcesByBalanceTransactionId = stripeEntities.createStore(UnaryOperator.identity());
+    /**
+     * The balance transactions of each source, as seen by the platform and by the connected account, built once when the source is stored.
+     * They're never modified, but replaced when the source is, so they can be shared with snapshots.
+     */
+    private final EntityStore<Projections> projectionsBySourceId = stripeEntities.createStore(UnaryOperator.identity());
 
     BalanceTransactionManager(Clock clock, StripeEntities stripeEntities) {
         super(stripeEntities, clock, BalanceTransaction.class, "txn", 24);
@@ -32,50 +42,158 @@ class BalanceTransactionManager extends AbstractEntityManager<BalanceTransaction
 
     @Override
     public Optional<BalanceTransaction> get(String id, String stripeAccount) throws ResponseCodeException {
-        return Optional.ofNullable(sourcesByBalanceTransactionId.get(id))
-                       .flatMap(stripeEntities::getEntityById)
-                       .map(source -> BalanceTransactionMapper.toBalanceTransaction((BalanceTransactionSource) source, stripeAccount));
+        if (id == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(projectionsBySourceId.get(sourcesByBalanceTransactionId.get(id)))
+                       .map(projections -> projections.get(stripeAccount));
     }
 
     void register(String id, BalanceTransactionSource balanceTransactionSource) {
+        if (id == null) {
+            // Not every source has a balance transaction yet, and without an id there's nothing that could look it up
+            return;
+        }
         sourcesByBalanceTransactionId.put(id, balanceTransactionSource.getId());
     }
 
+    /**
+     * Builds the balance transactions of a source that was just stored, which is every time it's changed, either through
+     * {@link #perform(String, String, Map, String)} or in place followed by {@link StripeEntities#reindex(Class, String)}. Reading or expanding a
+     * balance transaction is then just a lookup, and it always has the same ids.
+     */
+    void sourceStored(BalanceTransactionSource source) {
+        // Charges and refunds only ever belong to the platform
+        boolean platformOnly = source instanceof Charge || source instanceof Refund;
+        projectionsBySourceId.put(source.getId(),
+                                  new Projections(BalanceTransactionMapper.toBalanceTransaction(source, null),
+                                                  platformOnly ? null : BalanceTransactionMapper.toBalanceTransaction(source, CONNECTED_ACCOUNT)));
+    }
+
+    void sourceRemoved(String sourceId) {
+        projectionsBySourceId.remove(sourceId);
+    }
+
     @Override
     public List<BalanceTransaction> list(QueryParameters query, String stripeAccount) throws ResponseCodeException {
+        List<BalanceTransaction> balanceTransactions = new ArrayList<>();
+        merge(query, stripeAccount, null, true).forEachRemaining(balanceTransactions::add);
+        return balanceTransactions;
+    }
+
+    @Override
+    public Page<BalanceTransaction> page(QueryParameters query, String stripeAccount) throws ResponseCodeException {
+        Page.Request request = Page.Request.of(query);
+        EntityStore.Position cursor = null;
+        if (request.cursor() != null) {
+            cursor = sourcePosition(sourcesByBalanceTransactionId.get(request.cursor()), stripeAccount);
+            if (cursor == null) {
+                throw ResponseCodeException.noSuchEntity(400, "balance_transaction", request.cursor());
+            }
+        }
+        // Ending before the cursor means walking towards the newer balance transactions
+        Iterator<BalanceTransaction> iterator = merge(query, stripeAccount, cursor, request.endingBefore() == null);
+        Page.Builder<BalanceTransaction> page = new Page.Builder<>(request);
+        while (iterator.hasNext()) {
+            if (!page.add(iterator.next())) {
+                break;
+            }
+        }
+        return page.build();
+    }
+
+    /**
+     * Balance transactions are listed from the stores of their sources, which are each ordered by {@code created} already. Rather than building and
+     * sorting the whole list, we walk all the stores at the same time, and always take the next source from the store it's newest in. Positions are
+     * ordered the same way in every store, so this is the same order the sources were stored in, and a page only ever walks past the sources on it,
+     * and one more in each store.
+     *
+     * @param cursor where to start, exclusive, or {@code null} to start at the newest or oldest balance transaction
+     * @param oldest {@code true} to walk towards the oldest balance transaction, {@code false} to walk towards the newest one
+     */
+    private Iterator<BalanceTransaction> merge(QueryParameters query, String stripeAccount, EntityStore.Position cursor, boolean oldest)
+            throws ResponseCodeException {
+        Comparator<Head> order = Comparator.comparing(head -> head.next()
+                                                                  .position());
+        PriorityQueue<Head> heads = new PriorityQueue<>(oldest ? order : order.reversed());
+        for (AbstractEntityManager<?> sourceManager : sourceManagers(stripeAccount)) {
+            Head.push(heads, sourceManager.walk(query, stripeAccount, cursor, oldest));
+        }
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public BalanceTransaction next() {
+                Head head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                Head.push(heads, head.rest());
+                BalanceTransactionSource source = (BalanceTransactionSource) head.next()
+                                                                                .entity();
+                Projections projections = projectionsBySourceId.get(source.getId());
+                return projections == null ? BalanceTransactionMapper.toBalanceTransaction(source, stripeAccount) : projections.get(stripeAccount);
+            }
+        };
+    }
+
+    /**
+     * @return the position of the source in whichever store it's in, or {@code null} if there's no such source
+     */
+    private EntityStore.Position sourcePosition(String sourceId, String stripeAccount) throws ResponseCodeException {
+        if (sourceId == null) {
+            return null;
+        }
+        for (AbstractEntityManager<?> sourceManager : sourceManagers(stripeAccount)) {
+            EntityStore.Position position = sourceManager.position(sourceId);
+            if (position != null) {
+                return position;
+            }
+        }
+        return null;
+    }
+
+    private List<AbstractEntityManager<?>> sourceManagers(String stripeAccount) throws ResponseCodeException {
         if (stripeAccount != null) {
             // This will throw if the account isn't valid.
             stripeEntities.getEntityManager(Account.class)
                           .get(stripeAccount, stripeAccount);
         }
-
-        List<BalanceTransaction> balanceTransactions = new ArrayList<>();
-
-        add(TransferReversal.class, balanceTransactions, query, stripeAccount);
-        add(Transfer.class, balanceTransactions, query, stripeAccount);
-        add(Payout.class, balanceTransactions, query, stripeAccount);
+        List<AbstractEntityManager<?>> sourceManagers = new ArrayList<>();
+        sourceManagers.add((AbstractEntityManager<?>) stripeEntities.getEntityManager(TransferReversal.class));
+        sourceManagers.add((AbstractEntityManager<?>) stripeEntities.getEntityManager(Transfer.class));
+        sourceManagers.add((AbstractEntityManager<?>) stripeEntities.getEntityManager(Payout.class));
         if (stripeAccount == null) {
-            add(Charge.class, balanceTransactions, query, null);
-            add(Refund.class, balanceTransactions, query, null);
+            // Charges and refunds only ever belong to the platform
+            sourceManagers.add((AbstractEntityManager<?>) stripeEntities.getEntityManager(Charge.class));
+            sourceManagers.add((AbstractEntityManager<?>) stripeEntities.getEntityManager(Refund.class));
         }
-        // Most recent first
-        balanceTransactions.sort(Comparator.comparing(BalanceTransaction::getCreated)
-                                           .reversed());
-        return balanceTransactions;
+        return sourceManagers;
     }
 
-    private <T extends ApiResource & HasId & BalanceTransactionSource> void add(Class<T> clazz,
-                                                                                List<BalanceTransaction> balanceTransactions,
-                                                                                QueryParameters query,
-                                                                                String stripeAccount) throws ResponseCodeException {
-        for (T entity : stripeEntities.getEntityManager(clazz)
-                                      .list(query, stripeAccount)) {
-            balanceTransactions.add(BalanceTransactionMapper.toBalanceTransaction(entity, stripeAccount));
+    /**
+     * The next source in one of the stores we're walking, and the rest of the walk of that store.
+     */
+    private record Head(EntityStore.Versioned<?> next,
+                        Iterator<? extends EntityStore.Versioned<?>> rest) {
+        static void push(PriorityQueue<Head> heads, Iterator<? extends EntityStore.Versioned<?>> walk) {
+            if (walk.hasNext()) {
+                heads.add(new Head(walk.next(), walk));
+            }
         }
     }
 
-    @Override
-    public boolean canPerformOperation(String operation) {
-        return operation.equals("search");
+    /**
+     * @param platform         the balance transaction as seen by the platform
+     * @param connectedAccount the balance transaction as seen by the connected account, or {@code null} if the source only belongs to the platform
+     */
+    private record Projections(BalanceTransaction platform,
+                               BalanceTransaction connectedAccount) {
+        BalanceTransaction get(String stripeAccount) {
+            return stripeAccount == null ? platform : connectedAccount;
+        }
     }
 }
@@ -1,6 +1,5 @@
 package com.sesame.oss.stripemock.entities;
 
-import com.sesame.oss.stripemock.util.Utilities;
 import com.stripe.model.*;
 
 import java.util.Collections;
@@ -114,7 +113,7 @@ public final class BalanceTransactionMapper {
         balanceTransaction.setStatus("available");
         balanceTransaction.setType("payment");
         Charge source = new Charge();
-        source.setId(Utilities.randomIdWithPrefix("py", 24));
+        source.setId(derivedId("py", transfer.getId()));
         source.setCurrency(transfer.getCurrency());
         source.setDescription(transfer.getDescription());
         source.setAmount(amount);
@@ -175,8 +174,9 @@ public final class BalanceTransactionMapper {
         source.setStatus("succeeded");
         source.setTransferReversal(transferReversal.getId());
         // todo: these source ids should probably point to something real. Same for the transfer
-        source.setCharge(Utilities.randomIdWithPrefix("py", 24));
-        source.setId(Utilities.randomIdWithPrefix("pyr", 24));
+        // The charge is the payment the transfer created, which is what's being refunded
+        source.setCharge(derivedId("py", transferReversal.getTransfer()));
+        source.setId(derivedId("pyr", transferReversal.getId()));
         balanceTransaction.setObject("balance_transaction");
         balanceTransaction.setStatus("available");
         balanceTransaction.setType("payment_refund");
@@ -184,4 +184,15 @@ public final class BalanceTransactionMapper {
         balanceTransaction.setReportingCategory("refund");
         return balanceTransaction;
     }
+
+    /**
+     * @return the id of an object that only exists as part of a balance transaction, like the payment a transfer creates in the destination
+     * account. It's derived from the id of the source, so it's the same every time the balance transaction is built.
+     */
+    private static String derivedId(String prefix, String sourceId) {
+        if (sourceId == null) {
+            return null;
+        }
+        return prefix + "_" + sourceId.substring(sourceId.indexOf('_') + 1);
+    }
 }
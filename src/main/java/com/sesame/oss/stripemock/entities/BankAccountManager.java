@@ -7,9 +7,10 @@ import com.stripe.model.BankAccount;
 
 import java.time.Clock;
 import java.util.*;
+import java.util.function.UnaryOperator;
 
 class BankAccountManager extends AbstractEntityManager<BankAccount> {
-    private final Map<String, String> providedBankAccountNumbers = new HashMap<>();
+    private final EntityStore<String> providedBankAccountNumbers = stripeEntities.createStore(UnaryOperator.identity());
 
     BankAccountManager(Clock clock, StripeEntities stripeEntities) {
         super(stripeEntities, clock, BankAccount.class, "ba", 24);
@@ -20,18 +21,18 @@ class BankAccountManager extends AbstractEntityManager<BankAccount> {
         if (!parentEntityType.equals("accounts")) {
             throw new UnsupportedOperationException("External accounts can't be attached to things that are not accounts");
         }
-        Account parentAccount = stripeEntities.getEntityManager(Account.class)
-                                              .get(parentEntityId, stripeAccount)
-                                              .orElseThrow(() -> ResponseCodeException.noSuchEntity(400, "accounts", parentEntityId));
-
-        BankAccount bankAccount = add(formData, stripeAccount);
-        bankAccount.setAccount(parentAccount.getId());
-
-        parentAccount.getExternalAccounts()
-                     .getData()
-                     .add(bankAccount);
-        stripeEntities.bindChildToParentCollection(Account.class, parentAccount.getId(), "getExternalAccounts", bankAccount.getId());
-        return bankAccount;
+        // We're changing the account, so nobody else can be allowed to change it at the same time
+        try (EntityLocks.Held ignored = stripeEntities.lock(parentEntityId)) {
+            Account parentAccount = stripeEntities.getForUpdate(Account.class, parentEntityId, stripeAccount)
+                                                  .orElseThrow(() -> ResponseCodeException.noSuchEntity(400, "accounts", parentEntityId));
+
+            // Once the bank account is stored, it can be read, so it can't be changed without going through the store
+            formData.put("account", parentAccount.getId());
+            BankAccount bankAccount = add(formData, stripeAccount);
+
+            stripeEntities.addToCollection(parentAccount.getExternalAccounts(), BankAccount.class, bankAccount.getId());
+            return bankAccount;
+        }
     }
 
     @Override
@@ -66,22 +67,20 @@ class BankAccountManager extends AbstractEntityManager<BankAccount> {
         if (!parentEntityType.equals("accounts")) {
             throw new UnsupportedOperationException("External accounts can't be attached to things that are not accounts");
         }
-        EntityManager<Account> accountsEntityManager = stripeEntities.getEntityManager(Account.class);
-        Account parentAccount = accountsEntityManager.get(parentEntityId, stripeAccount)
-                                                     .orElseThrow(() -> ResponseCodeException.noSuchEntity(400, "accounts", parentEntityId));
+        try (EntityLocks.Held ignored = stripeEntities.lock(parentEntityId, id)) {
+            Account parentAccount = stripeEntities.getForUpdate(Account.class, parentEntityId, stripeAccount)
+                                                  .orElseThrow(() -> ResponseCodeException.noSuchEntity(400, "accounts", parentEntityId));
 
-        BankAccount bankAccount = entities.get(id);
-        if (bankAccount == null) {
-            return Optional.empty();
-        }
+            BankAccount bankAccount = entities.getForUpdate(id);
+            if (bankAccount == null) {
+                return Optional.empty();
+            }
 
-        parentAccount.getExternalAccounts()
-                     .getData()
-                     .remove(bankAccount);
-        stripeEntities.unbindChildFromParentCollection(Account.class, parentAccount.getId(), "getExternalAccounts", bankAccount.getId());
+            stripeEntities.removeFromCollection(parentAccount.getExternalAccounts(), BankAccount.class, bankAccount.getId());
 
-        bankAccount.setDeleted(true);
-        return Optional.of(bankAccount);
+            bankAccount.setDeleted(true);
+            return Optional.of(bankAccount);
+        }
     }
 
     @Override
@@ -103,6 +102,14 @@ class BankAccountManager extends AbstractEntityManager<BankAccount> {
     }
 
     public Optional<String> getAccountNumber(String bankAccountId) {
+        if (bankAccountId == null) {
+            return Optional.empty();
+        }
         return Optional.ofNullable(providedBankAccountNumbers.get(bankAccountId));
     }
+
+    @Override
+    public Optional<String> getParentEntityName() {
+        return Optional.of("accounts");
+    }
 }
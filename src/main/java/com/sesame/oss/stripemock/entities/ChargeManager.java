@@ -3,16 +3,19 @@ package com.sesame.oss.stripemock.entities;
 import com.sesame.oss.stripemock.http.ResponseCodeException;
 import com.stripe.model.BalanceTransaction;
 import com.stripe.model.Charge;
+import com.stripe.model.Refund;
 import com.stripe.model.RefundCollection;
 
 import java.time.Clock;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 class ChargeManager extends AbstractEntityManager<Charge> {
     ChargeManager(Clock clock, StripeEntities stripeEntities) {
-        super(stripeEntities, clock, Charge.class, "ch", 24);
+        super(stripeEntities, clock, Charge.class, "ch", 24, List.of(ListParameter.of("customer", Charge::getCustomer),
+                                                                     ListParameter.of("payment_intent", Charge::getPaymentIntent)));
     }
 
     @Override
@@ -53,7 +56,21 @@ class ChargeManager extends AbstractEntityManager<Charge> {
     //  Whatever we choose, we should probably be consistent
 
     @Override
-    public boolean canPerformOperation(String operation) {
-        return operation.equals("search");
+    long revision(Charge charge) {
+        long revision = super.revision(charge);
+        // The refunds are looked up whenever the charge is serialized, so a change to any refund might change the charge too
+        return revision == -1 ? -1 : Math.max(revision, stripeEntities.getRevision(Refund.class));
+    }
+
+    @Override
+    protected List<SearchQuery.Field<Charge>> getSearchFields() {
+        return List.of(SearchQuery.Field.of("amount", Charge::getAmount),
+                       SearchQuery.Field.of("currency", Charge::getCurrency),
+                       SearchQuery.Field.indexed("customer", Charge::getCustomer),
+                       SearchQuery.Field.of("disputed", Charge::getDisputed),
+                       SearchQuery.Field.indexed("payment_intent", Charge::getPaymentIntent),
+                       SearchQuery.Field.of("refunded", Charge::getRefunded),
+                       SearchQuery.Field.indexedIgnoringCase("status", Charge::getStatus),
+                       SearchQuery.Field.of("metadata", Charge::getMetadata));
     }
 }
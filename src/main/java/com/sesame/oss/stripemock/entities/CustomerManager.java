@@ -6,12 +6,13 @@ import com.stripe.model.Customer;
 import com.stripe.model.PaymentMethod;
 
 import java.time.Clock;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 class CustomerManager extends AbstractEntityManager<Customer> {
     protected CustomerManager(Clock clock, StripeEntities stripeEntities) {
-        super(stripeEntities, clock, Customer.class, "cus", 14);
+        super(stripeEntities, clock, Customer.class, "cus", 14, List.of(ListParameter.of("email", Customer::getEmail)));
     }
 
     @Override
@@ -78,11 +79,21 @@ class CustomerManager extends AbstractEntityManager<Customer> {
 
     @Override
     public Optional<Customer> delete(String id) {
-        Customer customer = entities.get(id);
-        if (customer == null) {
-            return Optional.empty();
+        try (EntityLocks.Held ignored = stripeEntities.lock(id)) {
+            Customer customer = entities.getForUpdate(id);
+            if (customer == null) {
+                return Optional.empty();
+            }
+            customer.setDeleted(true);
+            return Optional.of(customer);
         }
-        customer.setDeleted(true);
-        return Optional.of(customer);
+    }
+
+    @Override
+    protected List<SearchQuery.Field<Customer>> getSearchFields() {
+        return List.of(SearchQuery.Field.indexedIgnoringCase("email", Customer::getEmail),
+                       SearchQuery.Field.indexedIgnoringCase("name", Customer::getName),
+                       SearchQuery.Field.indexedIgnoringCase("phone", Customer::getPhone),
+                       SearchQuery.Field.of("metadata", Customer::getMetadata));
     }
 }
@@ -0,0 +1,76 @@
+package com.sesame.oss.stripemock.entities;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks keyed by entity id. Requests that touch different entities will almost always end up on different stripes, so they can run in parallel,
+ * while requests that touch the same entity are serialized.
+ * <p>
+ * Operations that span several entities, like confirming a payment intent, which also pays its invoice and activates the subscription, lock all the
+ * ids in one go. The stripes are always acquired in ascending order, so two such operations can never deadlock each other. The locks are reentrant,
+ * so it's fine to lock an id that the current thread already holds, but locking more ids while holding a lock would break the ordering, and must
+ * be avoided.
+ */
+final class EntityLocks {
+    private static final int STRIPES = 256;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    EntityLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @param ids the ids to lock. {@code null} ids are ignored.
+     * @return a handle that releases the locks when closed
+     */
+    Held lock(Collection<String> ids) {
+        int[] stripeIndexes = ids.stream()
+                                 .filter(Objects::nonNull)
+                                 .mapToInt(EntityLocks::stripe)
+                                 .distinct()
+                                 .sorted()
+                                 .toArray();
+        int acquired = 0;
+        try {
+            for (int stripeIndex : stripeIndexes) {
+                stripes[stripeIndex].lock();
+                acquired++;
+            }
+        } finally {
+            if (acquired < stripeIndexes.length) {
+                // Something went very wrong while locking, so release what we got, so we don't leave the stripes locked forever
+                unlock(Arrays.copyOf(stripeIndexes, acquired));
+            }
+        }
+        return () -> unlock(stripeIndexes);
+    }
+
+    /**
+     * @return whether anybody holds the lock for the id, or for another id on the same stripe
+     */
+    boolean isLocked(String id) {
+        return stripes[stripe(id)].isLocked();
+    }
+
+    private void unlock(int[] stripeIndexes) {
+        for (int i = stripeIndexes.length - 1; i >= 0; i--) {
+            stripes[stripeIndexes[i]].unlock();
+        }
+    }
+
+    private static int stripe(String id) {
+        int hash = id.hashCode();
+        // Spread the high bits into the low ones, just like HashMap does, as ids with the same prefix share a lot of bits
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
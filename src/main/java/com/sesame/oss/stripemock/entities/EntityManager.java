@@ -9,6 +9,7 @@ import com.stripe.net.ApiResource;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 public interface EntityManager<T extends ApiResource & HasId> {
     public T add(Map<String, Object> formData, String stripeAccount, String parentEntityType, String parentEntityId) throws ResponseCodeException;
@@ -33,6 +34,25 @@ public interface EntityManager<T extends ApiResource & HasId> {
 
     public List<T> list(QueryParameters query, String stripeAccount, String parentEntityType, String parentEntityId) throws ResponseCodeException;
 
+    /**
+     * Like {@link #list(QueryParameters, String)}, but only the page selected by the {@code limit}, {@code starting_after} and {@code ending_before}
+     * query parameters. This is what list requests are served from.
+     */
+    public Page<T> page(QueryParameters query, String stripeAccount) throws ResponseCodeException;
+
+    public Page<T> page(QueryParameters query, String stripeAccount, String parentEntityType, String parentEntityId) throws ResponseCodeException;
+
+    /**
+     * Runs the search in the {@code query} query parameter, and returns the page selected by the {@code limit} and {@code page} query parameters.
+     * This is only called for entities that are {@link #isSearchable() searchable}.
+     */
+    public Page<T> search(QueryParameters query, String stripeAccount) throws ResponseCodeException;
+
+    /**
+     * @return whether the entities can be searched, in which case a {@code /search} route is registered for them
+     */
+    public boolean isSearchable();
+
     public Optional<T> delete(String id) throws ResponseCodeException;
 
     public Optional<T> delete(String id, String stripeAccount, String parentEntityType, String parentEntityId) throws ResponseCodeException;
@@ -52,11 +72,14 @@ public interface EntityManager<T extends ApiResource & HasId> {
     public void bootstrap();
 
     /**
-     * This is used to distinguish whether the part after the entity id is an operation, like in {@code /v1/payment_intents/pi_abc123/confirm},
-     * or a different entity, like in {@code /v1/transfers/tr_abc123/reversals}.
-     *
-     * @param operation the operation, such as "confirm" and "reversals" from the examples.
-     * @return whether calling {@link #perform(String, String, Map, String)} with this operation is supported or not
+     * The operations that can be performed on an entity, like "confirm" in {@code /v1/payment_intents/pi_abc123/confirm}.
+     * A route is registered for each of these, and each of them can be passed to {@link #perform(String, String, Map, String)}.
+     */
+    public Set<String> getOperations();
+
+    /**
+     * Some entities only exist under a parent, like reversals in {@code /v1/transfers/tr_abc123/reversals}. For those, this is the
+     * {@link #getNormalizedEntityName() normalized name} of the parent, and the entity is only reachable via the parent.
      */
-    public boolean canPerformOperation(String operation);
+    public Optional<String> getParentEntityName();
 }
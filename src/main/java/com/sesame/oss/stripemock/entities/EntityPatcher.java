@@ -0,0 +1,509 @@
+package com.sesame.oss.stripemock.entities;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.JsonElement;
+import com.google.gson.annotations.SerializedName;
+import com.stripe.model.ExpandableField;
+import com.stripe.model.HasId;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Creates, copies and updates entities from form data, and converts between model types, directly on the typed objects, rather than through a
+ * round trip to json and back. The fields of each class are looked up once, and then read and written through method handles, so each of these
+ * only costs as much as the entity is big.
+ * <p>
+ * The results are the same as those of the round trip: fields are matched by their json names, form data values are converted the same way gson
+ * converts them, nested maps are merged into the objects and maps that are already there, {@code null} clears a field, and names that aren't
+ * fields are ignored. Anything this doesn't know how to handle, like a value gson would reject, makes it give up, so the caller can fall back to
+ * the round trip, which then behaves exactly like it always has.
+ */
+final class EntityPatcher {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final ClassValue<Shape> SHAPES = new ClassValue<>() {
+        @Override
+        protected Shape computeValue(Class<?> type) {
+            return Shape.of(type);
+        }
+    };
+
+    private EntityPatcher() {
+    }
+
+    /**
+     * @return a deep copy of the entity, or nothing if the entity holds something we don't know how to copy
+     */
+    static <T> Optional<T> copy(T entity) {
+        try {
+            return Optional.of(copyValue(entity));
+        } catch (Unpatchable e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return a deep copy of the entity with the form data applied to it, or nothing if the form data can't be applied without the round trip
+     */
+    static <T> Optional<T> patchedCopy(T entity, Map<String, Object> formData) {
+        try {
+            T copy = copyValue(entity);
+            patch(copy, formData, false);
+            return Optional.of(copy);
+        } catch (Unpatchable e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return a new entity built from the form data, like the one gson would parse from the form data as json, or nothing if it can't be built
+     * without the round trip
+     */
+    static <T> Optional<T> bind(Map<String, Object> formData, Class<T> entityClass) {
+        try {
+            T entity = entityClass.cast(SHAPES.get(entityClass)
+                                              .newInstance());
+            patch(entity, formData, true);
+            return Optional.of(entity);
+        } catch (Unpatchable e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Converts one model type into another, like a subscription item into an invoice line item, by copying the fields that have the same json name.
+     *
+     * @return the same object gson would parse from the json of the source, or nothing if it can't be converted without the round trip
+     */
+    static <T> Optional<T> convert(Object source, Class<T> targetClass) {
+        try {
+            return Optional.of(targetClass.cast(convertObject(source, targetClass)));
+        } catch (Unpatchable e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @param binding {@code true} if the target was just created from the form data, like when an entity is created, and {@code false} if the form
+     *                data is merged into an existing entity, like when it's updated. Only the former supports arrays.
+     */
+    @SuppressWarnings("unchecked")
+    private static void patch(Object target, Map<String, Object> formData, boolean binding) throws Unpatchable {
+        Shape shape = SHAPES.get(target.getClass());
+        for (Map.Entry<String, Object> entry : formData.entrySet()) {
+            String name = entry.getKey();
+            if (name.equals("expand")) {
+                // This is never part of the entity, just like in AbstractEntityManager.merge()
+                continue;
+            }
+            Object value = entry.getValue();
+            Accessor accessor = shape.accessors()
+                                     .get(name);
+            if (accessor == null) {
+                // Gson ignores names that aren't fields, but the merge still rejects values it can't put in the json
+                if (!binding) {
+                    checkSupported(value);
+                }
+                continue;
+            }
+            if (value instanceof Map<?, ?> map) {
+                accessor.set(target, patchChild(accessor, accessor.get(target), (Map<String, Object>) map, binding));
+            } else if (value instanceof Object[] array) {
+                if (!binding) {
+                    // The merge doesn't support arrays
+                    throw Unpatchable.INSTANCE;
+                }
+                accessor.set(target, bindList(array, accessor));
+            } else if (value != null || !accessor.type()
+                                                 .isPrimitive()) {
+                // Gson leaves primitive fields alone when the json is null
+                accessor.set(target, convertPrimitive(value, accessor.genericType()));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object patchChild(Accessor accessor, Object existing, Map<String, Object> formData, boolean binding) throws Unpatchable {
+        if (Map.class.isAssignableFrom(accessor.type())) {
+            Type valueType = accessor.genericType() instanceof ParameterizedType parameterized ? parameterized.getActualTypeArguments()[1] : Object.class;
+            // The existing map is part of the copy, so it's ours to change
+            Map<String, Object> map = existing == null ? new LinkedHashMap<>() : (Map<String, Object>) existing;
+            for (Map.Entry<String, Object> entry : formData.entrySet()) {
+                if (entry.getKey()
+                         .equals("expand")) {
+                    continue;
+                }
+                if (entry.getValue() instanceof Map) {
+                    // None of the maps in the entities hold other maps
+                    throw Unpatchable.INSTANCE;
+                }
+                map.put(entry.getKey(), convertPrimitive(entry.getValue(), valueType));
+            }
+            return map;
+        }
+        if (!isStripeClass(accessor.type()) || accessor.type()
+                                                       .isInterface() || accessor.type() == ExpandableField.class) {
+            // This is something gson would need a type adapter for, like an expandable field
+            throw Unpatchable.INSTANCE;
+        }
+        Object child = existing == null ? SHAPES.get(accessor.type())
+                                                .newInstance() : existing;
+        patch(child, formData, binding);
+        return child;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> bindList(Object[] array, Accessor accessor) throws Unpatchable {
+        if (accessor.type() != List.class || !(accessor.genericType() instanceof ParameterizedType parameterized) ||
+            !(parameterized.getActualTypeArguments()[0] instanceof Class<?> elementClass)) {
+            throw Unpatchable.INSTANCE;
+        }
+        List<Object> list = new ArrayList<>(array.length);
+        for (Object element : array) {
+            if (element instanceof Map<?, ?> map) {
+                if (!isStripeClass(elementClass) || elementClass.isInterface()) {
+                    throw Unpatchable.INSTANCE;
+                }
+                Object child = SHAPES.get(elementClass)
+                                     .newInstance();
+                patch(child, (Map<String, Object>) map, true);
+                list.add(child);
+            } else if (element instanceof Object[]) {
+                throw Unpatchable.INSTANCE;
+            } else {
+                list.add(convertPrimitive(element, elementClass));
+            }
+        }
+        return list;
+    }
+
+    private static Object convertObject(Object source, Class<?> targetClass) throws Unpatchable {
+        if (source.getClass() == targetClass) {
+            return copyValue(source);
+        }
+        if (!isStripeClass(source.getClass()) || !isStripeClass(targetClass) || targetClass.isInterface()) {
+            throw Unpatchable.INSTANCE;
+        }
+        Shape sourceShape = SHAPES.get(source.getClass());
+        Shape targetShape = SHAPES.get(targetClass);
+        Object target = targetShape.newInstance();
+        for (Accessor sourceAccessor : sourceShape.fields()) {
+            Object value = sourceAccessor.get(source);
+            Accessor targetAccessor = targetShape.accessors()
+                                                 .get(sourceAccessor.name());
+            // Nulls aren't part of the json, so they don't overwrite anything
+            if (value != null && targetAccessor != null) {
+                targetAccessor.set(target, convertValue(value, targetAccessor.genericType()));
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Converts a value of one model type into a field of another, the way gson would parse the json of the value into the field.
+     */
+    private static Object convertValue(Object value, Type type) throws Unpatchable {
+        Class<?> rawType = type instanceof ParameterizedType parameterized ? (Class<?>) parameterized.getRawType() : type instanceof Class<?> c ? c : null;
+        if (rawType == null) {
+            throw Unpatchable.INSTANCE;
+        }
+        if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+            return convertPrimitive(value, type);
+        }
+        if (value instanceof ExpandableField<?> expandableField) {
+            // The json of an expandable field is its id, unless it's expanded
+            return expandableField.isExpanded() ? convertValue(expandableField.getExpanded(), type) : convertPrimitive(expandableField.getId(), type);
+        }
+        if (rawType == ExpandableField.class) {
+            if (!(type instanceof ParameterizedType parameterized) || !(parameterized.getActualTypeArguments()[0] instanceof Class<?> expandedClass)) {
+                throw Unpatchable.INSTANCE;
+            }
+            HasId expanded = (HasId) convertObject(value, expandedClass);
+            return new ExpandableField<>(expanded.getId(), expanded);
+        }
+        if (value instanceof List<?> list && rawType == List.class && type instanceof ParameterizedType parameterized) {
+            List<Object> converted = new ArrayList<>(list.size());
+            for (Object element : list) {
+                converted.add(element == null ? null : convertValue(element, parameterized.getActualTypeArguments()[0]));
+            }
+            return converted;
+        }
+        if (value instanceof Map<?, ?> && Map.class.isAssignableFrom(rawType)) {
+            return copyValue(value);
+        }
+        if (rawType.isInstance(value) || isStripeClass(value.getClass())) {
+            return convertObject(value, rawType);
+        }
+        throw Unpatchable.INSTANCE;
+    }
+
+    /**
+     * Converts a form data value the same way gson converts the json primitive it would have become.
+     */
+    private static Object convertPrimitive(Object value, Type type) throws Unpatchable {
+        if (value == null) {
+            return null;
+        }
+        Class<?> rawType = type instanceof ParameterizedType parameterized ? (Class<?>) parameterized.getRawType() : type instanceof Class<?> c ? c : null;
+        try {
+            if (rawType == String.class) {
+                if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+                    return value.toString();
+                }
+            } else if (rawType == Long.class || rawType == long.class) {
+                if (value instanceof Number number) {
+                    return number.longValue();
+                } else if (value instanceof String string) {
+                    return Long.parseLong(string);
+                }
+            } else if (rawType == Integer.class || rawType == int.class) {
+                if (value instanceof Number number) {
+                    return number.intValue();
+                } else if (value instanceof String string) {
+                    return Integer.parseInt(string);
+                }
+            } else if (rawType == Double.class || rawType == double.class) {
+                double result = value instanceof Number number ? number.doubleValue() : value instanceof String string ? Double.parseDouble(string) : Double.NaN;
+                // Gson rejects these too
+                if (Double.isFinite(result)) {
+                    return result;
+                }
+            } else if (rawType == Boolean.class || rawType == boolean.class) {
+                if (value instanceof Boolean) {
+                    return value;
+                } else if (value instanceof String string) {
+                    return Boolean.parseBoolean(string);
+                }
+            } else if (rawType == BigDecimal.class) {
+                if (value instanceof Number || value instanceof String) {
+                    return new BigDecimal(value.toString());
+                }
+            } else if (rawType == ExpandableField.class) {
+                if (value instanceof String id) {
+                    return new ExpandableField<>(id, null);
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Gson would fail here, and it should be gson that fails, so the error is the same as it always was
+            throw Unpatchable.INSTANCE;
+        }
+        throw Unpatchable.INSTANCE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T copyValue(T value) throws Unpatchable {
+        return switch (value) {
+            case null -> null;
+            case String ignored -> value;
+            case Number ignored when value instanceof Long || value instanceof Integer || value instanceof Double || value instanceof BigDecimal -> value;
+            case Boolean ignored -> value;
+            case Enum<?> ignored -> value;
+            case JsonElement json -> (T) json.deepCopy();
+            // These can't be changed, so they can be shared
+            case ReferenceList<?> ignored -> value;
+            case List<?> list -> {
+                List<Object> copy = new ArrayList<>(list.size());
+                for (Object element : list) {
+                    copy.add(copyValue(element));
+                }
+                yield (T) copy;
+            }
+            case Map<?, ?> map -> {
+                Map<Object, Object> copy = new LinkedHashMap<>();
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    // Nulls don't survive the round trip either
+                    if (entry.getValue() != null) {
+                        copy.put(entry.getKey(), copyValue(entry.getValue()));
+                    }
+                }
+                yield (T) copy;
+            }
+            case ExpandableField<?> expandableField -> (T) new ExpandableField<>(expandableField.getId(), (HasId) copyValue(expandableField.getExpanded()));
+            default -> {
+                if (!isStripeClass(value.getClass())) {
+                    throw Unpatchable.INSTANCE;
+                }
+                Shape shape = SHAPES.get(value.getClass());
+                Object copy = shape.newInstance();
+                for (Accessor accessor : shape.fields()) {
+                    accessor.set(copy, copyValue(accessor.get(value)));
+                }
+                yield (T) copy;
+            }
+        };
+    }
+
+    private static void checkSupported(Object value) throws Unpatchable {
+        switch (value) {
+            case null -> {
+            }
+            case String ignored -> {
+            }
+            case Number ignored -> {
+            }
+            case Boolean ignored -> {
+            }
+            case Map<?, ?> map -> {
+                for (Object child : map.values()) {
+                    checkSupported(child);
+                }
+            }
+            default -> throw Unpatchable.INSTANCE;
+        }
+    }
+
+    private static boolean isStripeClass(Class<?> type) {
+        return type.getName()
+                   .startsWith("com.stripe.");
+    }
+
+    /**
+     * The fields of a class, as gson sees them.
+     *
+     * @param constructor the no-args constructor, or {@code null} if there is none
+     * @param fields      every field, once
+     * @param accessors   the fields by their json names, including the alternate names
+     */
+    private record Shape(MethodHandle constructor,
+                         List<Accessor> fields,
+                         Map<String, Accessor> accessors) {
+        static Shape of(Class<?> type) {
+            List<Accessor> fields = new ArrayList<>();
+            Map<String, Accessor> accessors = new HashMap<>();
+            // Fields of generic superclasses, like the data of a collection, have the types the class gives them
+            Map<TypeVariable<?>, Type> typeArguments = new HashMap<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                    String name = serializedName == null ? FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES.translateName(field) : serializedName.value();
+                    Accessor accessor = Accessor.of(field, name, resolve(field.getGenericType(), typeArguments));
+                    fields.add(accessor);
+                    accessors.putIfAbsent(name, accessor);
+                    if (serializedName != null) {
+                        for (String alternate : serializedName.alternate()) {
+                            accessors.putIfAbsent(alternate, accessor);
+                        }
+                    }
+                }
+                if (c.getGenericSuperclass() instanceof ParameterizedType superclass) {
+                    TypeVariable<?>[] parameters = ((Class<?>) superclass.getRawType()).getTypeParameters();
+                    for (int i = 0; i < parameters.length; i++) {
+                        typeArguments.put(parameters[i], resolve(superclass.getActualTypeArguments()[i], typeArguments));
+                    }
+                }
+            }
+            MethodHandle constructor;
+            if (Modifier.isAbstract(type.getModifiers())) {
+                return new Shape(null, List.copyOf(fields), Map.copyOf(accessors));
+            }
+            try {
+                Constructor<?> declaredConstructor = type.getDeclaredConstructor();
+                declaredConstructor.setAccessible(true);
+                constructor = LOOKUP.unreflectConstructor(declaredConstructor)
+                                    .asType(MethodType.methodType(Object.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                // Gson can still create these, so they'll have to go through the round trip
+                constructor = null;
+            }
+            return new Shape(constructor, List.copyOf(fields), Map.copyOf(accessors));
+        }
+
+        /**
+         * Replaces the type variables in the type with the types they stand for, as far as we know them.
+         */
+        private static Type resolve(Type type, Map<TypeVariable<?>, Type> typeArguments) {
+            if (type instanceof TypeVariable<?> typeVariable) {
+                return typeArguments.getOrDefault(typeVariable, typeVariable);
+            }
+            if (type instanceof ParameterizedType parameterized) {
+                Type[] arguments = parameterized.getActualTypeArguments()
+                                                .clone();
+                boolean changed = false;
+                for (int i = 0; i < arguments.length; i++) {
+                    Type resolved = resolve(arguments[i], typeArguments);
+                    changed |= resolved != arguments[i];
+                    arguments[i] = resolved;
+                }
+                return changed ? new ResolvedType(parameterized.getRawType(), arguments, parameterized.getOwnerType()) : parameterized;
+            }
+            return type;
+        }
+
+        Object newInstance() throws Unpatchable {
+            if (constructor == null) {
+                throw Unpatchable.INSTANCE;
+            }
+            try {
+                return (Object) constructor.invokeExact();
+            } catch (Throwable e) {
+                // This shouldn't happen, as these are plain data classes
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * @param name        the json name of the field
+     * @param genericType the type of the field, with the type arguments of the class it's read from
+     */
+    private record Accessor(String name,
+                            Class<?> type,
+                            Type genericType,
+                            MethodHandle getter,
+                            MethodHandle setter) {
+        static Accessor of(Field field, String name, Type genericType) {
+            field.setAccessible(true);
+            try {
+                return new Accessor(name,
+                                    field.getType(),
+                                    genericType,
+                                    LOOKUP.unreflectGetter(field)
+                                          .asType(MethodType.methodType(Object.class, Object.class)),
+                                    LOOKUP.unreflectSetter(field)
+                                          .asType(MethodType.methodType(void.class, Object.class, Object.class)));
+            } catch (IllegalAccessException e) {
+                // We just made it accessible
+                throw new AssertionError(e);
+            }
+        }
+
+        Object get(Object target) {
+            try {
+                return (Object) getter.invokeExact(target);
+            } catch (Throwable e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        void set(Object target, Object value) {
+            try {
+                setter.invokeExact(target, value);
+            } catch (Throwable e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private record ResolvedType(Type getRawType,
+                                Type[] getActualTypeArguments,
+                                Type getOwnerType) implements ParameterizedType {}
+
+    /**
+     * Thrown when we can't do what the round trip would do. It's only ever used to bail out, so it doesn't need a stack trace.
+     */
+    private static final class Unpatchable extends Exception {
+        private static final Unpatchable INSTANCE = new Unpatchable();
+
+        private Unpatchable() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,612 @@
+package com.sesame.oss.stripemock.entities;
+
+import com.sesame.oss.stripemock.http.ResponseCodeException;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Holds the entities of a single type, keyed by id. This is safe to read and write from multiple threads, but operations that read an entity,
+ * change it, and write it back, must hold the {@link StripeEntities#lock(Collection) lock} for the id to not lose concurrent changes.
+ * <p>
+ * The entities are kept in a {@link PersistentMap}, so the whole store can be {@link EntityStores#snapshot() snapshotted} without copying anything.
+ * As a consequence, entities returned from {@link #get(String)} and {@link #values()} might be shared with a snapshot, and must not be changed.
+ * Use {@link #getForUpdate(String)} to get an entity that can be changed in place.
+ * <p>
+ * Stores that are created with a {@code created} function also keep the ids sorted by when the entities were created, newest first, in a
+ * {@link PersistentSortedMap}. That's the order they're listed in, and it lets us {@link #page(ListQuery, Page.Request, String) page} through them
+ * without looking at anything but the page itself. Such stores also keep an index for each {@link ListParameter}, which holds the ids for each
+ * value of the parameter, in the same order. A list filtered on one of those parameters only has to walk the ids in the smallest matching index.
+ * <p>
+ * Unlike a {@link java.util.concurrent.ConcurrentHashMap}, this accepts {@code null} ids, as there are plenty of places where we look up ids that
+ * are optional in the api.
+ */
+final class EntityStore<T> {
+    private final AtomicReference<Version<T>> version = new AtomicReference<>();
+    private final EntityStores stores;
+    private final UnaryOperator<T> copier;
+    private final ToLongFunction<T> created;
+    private final List<ListParameter<T>> indexes;
+    private final Listener listener;
+
+    /**
+     * @param copier   creates a deep copy of an entity. Stores of immutable values can pass {@link UnaryOperator#identity()}.
+     * @param created  the creation time of an entity, which is what the entities are ordered by, or {@code null} if the store isn't ordered
+     * @param indexes  the parameters to keep indexes for. Only ordered stores can have indexes.
+     * @param listener is told about every id that is added or removed
+     */
+    EntityStore(EntityStores stores, UnaryOperator<T> copier, ToLongFunction<T> created, List<ListParameter<T>> indexes, Listener listener) {
+        if (created == null && !indexes.isEmpty()) {
+            throw new IllegalArgumentException("Only ordered stores can have indexes");
+        }
+        this.stores = stores;
+        this.copier = copier;
+        this.created = created;
+        this.indexes = List.copyOf(indexes);
+        this.listener = listener;
+        this.version.set(Version.empty(indexes.size(), 0));
+    }
+
+    T get(String id) {
+        if (id == null) {
+            return null;
+        }
+        Versioned<T> versioned = version.get()
+                                        .entities()
+                                        .get(id);
+        return versioned == null ? null : versioned.entity();
+    }
+
+    /**
+     * @return the entity, which is guaranteed to not be shared with any snapshot, so it can be changed in place. The caller must hold the lock
+     * for the id.
+     */
+    T getForUpdate(String id) {
+        if (id == null) {
+            return null;
+        }
+        Versioned<T> versioned = version.get()
+                                        .entities()
+                                        .get(id);
+        if (versioned == null) {
+            return null;
+        }
+        if (versioned.generation() == stores.generation()) {
+            // The caller is about to change the entity, so anything derived from the current revision, like a cached response, is stale
+            version.updateAndGet(current -> touch(current, id));
+            return versioned.entity();
+        }
+        // This was stored before the latest snapshot, so the snapshot holds the very same object. Changing it would change the snapshot too.
+        T copy = copier.apply(versioned.entity());
+        put(id, copy);
+        return copy;
+    }
+
+    /**
+     * Gives the entity a new revision, without changing anything else, after it has been changed in place. The caller must hold the lock for the id.
+     */
+    void touch(String id) {
+        if (id != null) {
+            version.updateAndGet(current -> touch(current, id));
+        }
+    }
+
+    /**
+     * @return the revision of the entity, if it's the one stored with the id, or {@code -1} if it isn't. Every time an entity is stored, removed,
+     * {@link #getForUpdate(String) fetched for update} or {@link #touch(String) touched}, it gets a new revision, which is larger than any
+     * revision, in any store, before it. As long as nobody holds the lock for the id, the entity looks exactly the same as the last time it had
+     * this revision.
+     */
+    long revision(String id, T entity) {
+        if (id == null) {
+            return -1;
+        }
+        Versioned<T> versioned = version.get()
+                                        .entities()
+                                        .get(id);
+        return versioned == null || versioned.entity() != entity ? -1 : versioned.revision();
+    }
+
+    /**
+     * @return the latest revision of any entity in the store, including ones that have since been removed
+     * @see #revision(String, Object)
+     */
+    long revision() {
+        return version.get()
+                      .revision();
+    }
+
+    /**
+     * Updates the indexes after an entity returned from {@link #getForUpdate(String)} has been changed in place, and tells the listener about it,
+     * as if the entity had been stored again. This is only needed if the change affects a {@link ListParameter} or something derived from the
+     * entity, and the entity isn't {@link #put(String, Object) put} afterwards anyway. The caller must hold the lock for the id.
+     */
+    void reindex(String id) {
+        Version<T> updated = version.updateAndGet(current -> {
+            Versioned<T> existing = current.entities()
+                                           .get(id);
+            return existing == null ? current : put(current, id, existing.entity(), existing.generation());
+        });
+        if (updated.entities()
+                   .get(id) != null) {
+            listener.added(id);
+        }
+    }
+
+    void put(String id, T entity) {
+        version.updateAndGet(current -> put(current, id, entity));
+        listener.added(id);
+    }
+
+    /**
+     * @return the entity that was already stored with this id, or {@code null} if the new entity was stored
+     */
+    T putIfAbsent(String id, T entity) {
+        while (true) {
+            Version<T> current = version.get();
+            Versioned<T> existing = current.entities()
+                                           .get(id);
+            if (existing != null) {
+                return existing.entity();
+            }
+            if (version.compareAndSet(current, put(current, id, entity))) {
+                listener.added(id);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Replaces the value for the id with the result of the function, or removes it if the function returns {@code null}.
+     * The function is passed {@code null} if there is no value for the id, and might be called more than once if there are concurrent changes.
+     */
+    void compute(String id, UnaryOperator<T> function) {
+        Version<T> result = version.updateAndGet(current -> {
+            Versioned<T> existing = current.entities()
+                                           .get(id);
+            T value = function.apply(existing == null ? null : existing.entity());
+            return value == null ? remove(current, id) : put(current, id, value);
+        });
+        if (result.entities()
+                  .get(id) == null) {
+            listener.removed(id);
+        } else {
+            listener.added(id);
+        }
+    }
+
+    /**
+     * @return the removed entity, which can be changed in place, just like one returned from {@link #getForUpdate(String)}.
+     */
+    T remove(String id) {
+        if (id == null) {
+            return null;
+        }
+        Versioned<T> removed = version.getAndUpdate(current -> remove(current, id))
+                                      .entities()
+                                      .get(id);
+        if (removed == null) {
+            return null;
+        }
+        listener.removed(id);
+        return removed.generation() == stores.generation() ? removed.entity() : copier.apply(removed.entity());
+    }
+
+    /**
+     * @return all the entities at the time of the call, newest first if the store is ordered. Changes made while iterating over this are not reflected.
+     */
+    Collection<T> values() {
+        Version<T> current = version.get();
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<T> iterator() {
+                return created == null ? unversioned(current.entities()
+                                                            .values()
+                                                            .iterator()) : unversioned(current.iterator(null, true));
+            }
+
+            @Override
+            public int size() {
+                return current.entities()
+                              .size();
+            }
+        };
+    }
+
+    /**
+     * @return all the entities that match the query, newest first
+     */
+    List<T> list(ListQuery<T> query) {
+        Version<T> current = version.get();
+        List<T> matches = new ArrayList<>();
+        unversioned(walk(current, query, null, true)).forEachRemaining(matches::add);
+        return matches;
+    }
+
+    /**
+     * Like {@link #page(ListQuery, Page.Request, String)}, but walks for as long as the caller wants, and returns the positions of the entities too.
+     * Positions are ordered the same way in every store of the same {@link EntityStores}, so the walks of several stores can be merged into one list,
+     * and the position of an entity in one store can be the cursor of a walk in another.
+     *
+     * @param cursor where to start, exclusive, or {@code null} to start at the newest or oldest entity in the {@code created} range of the query
+     * @param oldest {@code true} to walk towards the oldest entity, {@code false} to walk towards the newest one
+     */
+    Iterator<Versioned<T>> walk(ListQuery<T> query, Position cursor, boolean oldest) {
+        return walk(version.get(), query, cursor, oldest);
+    }
+
+    /**
+     * @return the position of the entity, or {@code null} if there is no such entity, or the store isn't ordered
+     */
+    Position position(String id) {
+        Versioned<T> versioned = version.get()
+                                        .entities()
+                                        .get(id);
+        return versioned == null ? null : versioned.position();
+    }
+
+    /**
+     * Walks the entities that match the query from the cursor of the request, if any, until the page is full. Finding where to start costs
+     * {@code O(log n)}, and then we only walk past entities in the smallest index that applies, within the {@code created} range of the query. If
+     * there are no other filters, we walk past nothing but the page itself.
+     *
+     * @param objectName the name used in the error if the cursor can't be found, like {@code customer}
+     */
+    Page<T> page(ListQuery<T> query, Page.Request request, String objectName) throws ResponseCodeException {
+        Version<T> current = version.get();
+        Position cursor = null;
+        if (request.cursor() != null) {
+            Versioned<T> cursorEntity = current.entities()
+                                               .get(request.cursor());
+            if (cursorEntity == null) {
+                throw ResponseCodeException.noSuchEntity(400, objectName, request.cursor());
+            }
+            cursor = cursorEntity.position();
+        }
+        // Ending before the cursor means walking towards the newer entities
+        Iterator<T> iterator = unversioned(walk(current, query, cursor, request.endingBefore() == null));
+        Page.Builder<T> page = new Page.Builder<>(request);
+        while (iterator.hasNext()) {
+            if (!page.add(iterator.next())) {
+                break;
+            }
+        }
+        return page.build();
+    }
+
+    /**
+     * Plans and executes the query. Of the indexes that apply to the query, we walk the one with the fewest ids, and check the rest of the query
+     * for each entity we walk past.
+     *
+     * @param cursor where to start, exclusive, or {@code null} to start at the newest or oldest entity in the {@code created} range of the query
+     * @param oldest {@code true} to walk towards the oldest entity, {@code false} to walk towards the newest one
+     */
+    private Iterator<Versioned<T>> walk(Version<T> current, ListQuery<T> query, Position cursor, boolean oldest) {
+        if (created == null) {
+            throw new IllegalStateException("The store isn't ordered");
+        }
+        PersistentSortedMap<Position, String> ids = current.order();
+        Predicate<T> filter = query.filter();
+        for (int i = 0; i < indexes.size(); i++) {
+            ListParameter<T> index = indexes.get(i);
+            Set<String> values = query.equalTo()
+                                      .get(index.name());
+            if (values == null) {
+                continue;
+            }
+            for (String value : values) {
+                PersistentSortedMap<Position, String> matches = current.indexes()[i].get(value);
+                if (matches == null) {
+                    return Collections.emptyIterator();
+                }
+                if (matches.size() < ids.size()) {
+                    ids = matches;
+                }
+            }
+            // Checking the index we end up walking too is redundant, but it's cheap, and it saves us from keeping track of which one it is
+            filter = filter.and(entity -> index.values()
+                                               .apply(entity)
+                                               .containsAll(values));
+        }
+        // The bounds aren't actual positions, but they sort right before the newest, and right after the oldest, entity in the range
+        Position newest = new Position(query.createdTo(), Long.MAX_VALUE);
+        Position last = new Position(query.createdFrom(), Long.MIN_VALUE);
+        Iterator<String> walked;
+        if (oldest) {
+            boolean fromCursor = cursor != null && cursor.compareTo(newest) > 0;
+            walked = ids.ascendingFrom(fromCursor ? cursor : newest, false);
+        } else {
+            boolean fromCursor = cursor != null && cursor.compareTo(last) < 0;
+            walked = ids.descendingFrom(fromCursor ? cursor : last, false);
+        }
+        Predicate<T> matches = filter;
+        return new Iterator<>() {
+            private Versioned<T> next = advance();
+
+            private Versioned<T> advance() {
+                while (walked.hasNext()) {
+                    Versioned<T> candidate = current.entities()
+                                                    .get(walked.next());
+                    if (oldest ? candidate.position()
+                                          .compareTo(last) > 0 : candidate.position()
+                                                                          .compareTo(newest) < 0) {
+                        // We've walked out of the range, and everything after this is outside it too
+                        return null;
+                    }
+                    if (matches.test(candidate.entity())) {
+                        return candidate;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Versioned<T> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Versioned<T> result = next;
+                next = advance();
+                return result;
+            }
+        };
+    }
+
+    void clear() {
+        version.set(Version.empty(indexes.size(), stores.nextSequence()));
+    }
+
+    Version<T> version() {
+        return version.get();
+    }
+
+    void restore(Version<T> version) {
+        this.version.set(version);
+    }
+
+    private Version<T> put(Version<T> current, String id, T entity) {
+        return put(current, id, entity, stores.generation());
+    }
+
+    private Version<T> put(Version<T> current, String id, T entity, long generation) {
+        Versioned<T> existing = current.entities()
+                                       .get(id);
+        Position position = position(current, id, entity);
+        List<Set<String>> indexed = position == null ? List.of() : indexes.stream()
+                                                                           .map(index -> index.values()
+                                                                                              .apply(entity))
+                                                                           .toList();
+        long revision = stores.nextSequence();
+        Versioned<T> versioned = new Versioned<>(entity, generation, position, indexed, revision);
+        PersistentSortedMap<Position, String> order = current.order();
+        PersistentMap<String, PersistentSortedMap<Position, String>>[] newIndexes = current.indexes();
+        if (position != null) {
+            order = order.put(position, id);
+            for (int i = 0; i < indexes.size(); i++) {
+                // The old values are the ones that were recorded when the entity was stored, as it might have been changed in place since
+                Set<String> oldValues = existing == null ? Set.of() : existing.indexed()
+                                                                              .get(i);
+                Set<String> newValues = indexed.get(i);
+                if (!oldValues.equals(newValues)) {
+                    if (newIndexes == current.indexes()) {
+                        newIndexes = newIndexes.clone();
+                    }
+                    // Only the values that changed are touched, so changing one metadata key doesn't reindex all the others
+                    for (String oldValue : oldValues) {
+                        if (!newValues.contains(oldValue)) {
+                            newIndexes[i] = unindex(newIndexes[i], oldValue, versioned.position());
+                        }
+                    }
+                    for (String newValue : newValues) {
+                        if (!oldValues.contains(newValue)) {
+                            newIndexes[i] = index(newIndexes[i], newValue, versioned.position(), id);
+                        }
+                    }
+                }
+            }
+        }
+        return new Version<>(current.entities()
+                                    .put(id, versioned), order, newIndexes, revision);
+    }
+
+    private Version<T> touch(Version<T> current, String id) {
+        Versioned<T> existing = current.entities()
+                                       .get(id);
+        if (existing == null) {
+            return current;
+        }
+        long revision = stores.nextSequence();
+        return new Version<>(current.entities()
+                                    .put(id, new Versioned<>(existing.entity(), existing.generation(), existing.position(), existing.indexed(), revision)),
+                             current.order(),
+                             current.indexes(),
+                             revision);
+    }
+
+    private Version<T> remove(Version<T> current, String id) {
+        Versioned<T> existing = current.entities()
+                                       .get(id);
+        if (existing == null) {
+            return current;
+        }
+        PersistentSortedMap<Position, String> order = current.order();
+        PersistentMap<String, PersistentSortedMap<Position, String>>[] newIndexes = current.indexes();
+        if (existing.position() != null) {
+            order = order.remove(existing.position());
+            newIndexes = newIndexes.clone();
+            for (int i = 0; i < indexes.size(); i++) {
+                for (String value : existing.indexed()
+                                            .get(i)) {
+                    newIndexes[i] = unindex(newIndexes[i], value, existing.position());
+                }
+            }
+        }
+        return new Version<>(current.entities()
+                                    .remove(id), order, newIndexes, stores.nextSequence());
+    }
+
+    private static PersistentMap<String, PersistentSortedMap<Position, String>> index(PersistentMap<String, PersistentSortedMap<Position, String>> index,
+                                                                                       String value,
+                                                                                       Position position,
+                                                                                       String id) {
+        PersistentSortedMap<Position, String> ids = index.get(value);
+        return index.put(value, (ids == null ? PersistentSortedMap.<Position, String>empty() : ids).put(position, id));
+    }
+
+    private static PersistentMap<String, PersistentSortedMap<Position, String>> unindex(PersistentMap<String, PersistentSortedMap<Position, String>> index,
+                                                                                         String value,
+                                                                                         Position position) {
+        PersistentSortedMap<Position, String> ids = index.get(value);
+        if (ids == null) {
+            return index;
+        }
+        ids = ids.remove(position);
+        // Empty indexes are removed, so the indexes don't grow with every value that has ever been used
+        return ids.size() == 0 ? index.remove(value) : index.put(value, ids);
+    }
+
+    /**
+     * @return where the entity goes in the order, which never changes once it's been stored
+     */
+    private Position position(Version<T> current, String id, T entity) {
+        if (created == null) {
+            return null;
+        }
+        Versioned<T> existing = current.entities()
+                                       .get(id);
+        if (existing != null) {
+            return existing.position();
+        }
+        return new Position(created.applyAsLong(entity), stores.nextSequence());
+    }
+
+    private static <T> Iterator<T> unversioned(Iterator<Versioned<T>> iterator) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return iterator.next()
+                               .entity();
+            }
+        };
+    }
+
+    /**
+     * Keeps derived state, like the {@link IdIndex}, up to date with the ids in the store. This is not called when the store is
+     * {@link #clear() cleared} or {@link #restore(Version) restored}, so derived state must either live in a store itself, so it's restored
+     * along with the entities, or tolerate ids that no longer exist.
+     */
+    interface Listener {
+        Listener NONE = new Listener() {
+            @Override
+            public void added(String id) {
+            }
+
+            @Override
+            public void removed(String id) {
+            }
+        };
+
+        void added(String id);
+
+        void removed(String id);
+
+        /**
+         * @return a listener that tells this listener first, and then the other one
+         */
+        default Listener and(Listener other) {
+            Listener first = this;
+            return new Listener() {
+                @Override
+                public void added(String id) {
+                    first.added(id);
+                    other.added(id);
+                }
+
+                @Override
+                public void removed(String id) {
+                    first.removed(id);
+                    other.removed(id);
+                }
+            };
+        }
+    }
+
+    /**
+     * Everything in the store at one point in time. All the maps are persistent, so holding on to this is all it takes to snapshot the store.
+     *
+     * @param order    the ids ordered by their {@link Position}, which is empty if the store isn't ordered
+     * @param indexes  for each of the {@link #indexes}, the ids for each value, ordered the same way as {@code order}. This array is never changed.
+     * @param revision the revision of the latest change to the store
+     */
+    record Version<T>(PersistentMap<String, Versioned<T>> entities,
+                      PersistentSortedMap<Position, String> order,
+                      PersistentMap<String, PersistentSortedMap<Position, String>>[] indexes,
+                      long revision) {
+        @SuppressWarnings("unchecked")
+        private static <T> Version<T> empty(int indexes, long revision) {
+            PersistentMap<String, PersistentSortedMap<Position, String>>[] empty = new PersistentMap[indexes];
+            Arrays.fill(empty, PersistentMap.empty());
+            return new Version<>(PersistentMap.empty(), PersistentSortedMap.empty(), empty, revision);
+        }
+
+        /**
+         * @param from   where to start, exclusive, or {@code null} to start with the newest entity
+         * @param oldest {@code true} to walk towards the oldest entity, {@code false} to walk towards the newest one
+         */
+        private Iterator<Versioned<T>> iterator(Position from, boolean oldest) {
+            Iterator<String> ids = oldest ? order.ascendingFrom(from, false) : order.descendingFrom(from, false);
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return ids.hasNext();
+                }
+
+                @Override
+                public Versioned<T> next() {
+                    return entities.get(ids.next());
+                }
+            };
+        }
+    }
+
+    /**
+     * @param generation the {@link EntityStores#generation() generation} the entity was stored in. Entities from older generations might be shared
+     *                   with a snapshot.
+     * @param position   where the entity is in the order of the store, or {@code null} if the store isn't ordered
+     * @param indexed    for each of the {@link #indexes}, the values the entity is indexed under
+     * @param revision   see {@link #revision(String, Object)}
+     */
+    record Versioned<T>(T entity,
+                        long generation,
+                        Position position,
+                        List<Set<String>> indexed,
+                        long revision) {}
+
+    /**
+     * Orders entities newest first. Entities created in the same second are ordered by when they were stored, so the order is stable, which is
+     * what makes cursors work.
+     *
+     * @param sequence unique across all stores, and increasing in the order the entities were stored
+     */
+    record Position(long created,
+                    long sequence) implements Comparable<Position> {
+        @Override
+        public int compareTo(Position other) {
+            int comparison = Long.compare(other.created, created);
+            return comparison != 0 ? comparison : Long.compare(other.sequence, sequence);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.sesame.oss.stripemock.entities;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps track of every {@link EntityStore} of a {@link StripeEntities}, so they can be snapshotted and restored together.
+ * <p>
+ * As the stores are persistent maps, a snapshot is just the current version of each map. The snapshot and the live stores then share all the
+ * entities, so each snapshot starts a new generation. Entities stored in older generations are copied the first time they're changed, which means
+ * that only the entities that are actually changed after a snapshot are ever copied.
+ */
+final class EntityStores {
+    private final List<EntityStore<?>> stores = new CopyOnWriteArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile long generation;
+
+    <T> EntityStore<T> create(UnaryOperator<T> copier) {
+        return create(copier, null, List.of(), EntityStore.Listener.NONE);
+    }
+
+    /**
+     * @see EntityStore#EntityStore(EntityStores, UnaryOperator, ToLongFunction, List, EntityStore.Listener)
+     */
+    <T> EntityStore<T> create(UnaryOperator<T> copier, ToLongFunction<T> created, List<ListParameter<T>> indexes, EntityStore.Listener listener) {
+        EntityStore<T> store = new EntityStore<>(this, copier, created, indexes, listener);
+        stores.add(store);
+        return store;
+    }
+
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * @return a number that is larger than any number returned before. This is never reset, not even by a restore, so entities stored after a
+     * restore are still ordered after the ones that were restored.
+     */
+    long nextSequence() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * @return the current version of every store, in the order they were created
+     */
+    synchronized List<EntityStore.Version<?>> snapshot() {
+        List<EntityStore.Version<?>> versions = stores.stream()
+                                                      .<EntityStore.Version<?>>map(EntityStore::version)
+                                                      .toList();
+        generation++;
+        return versions;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    synchronized void restore(List<EntityStore.Version<?>> versions) {
+        for (int i = 0; i < stores.size(); i++) {
+            ((EntityStore) stores.get(i)).restore(versions.get(i));
+        }
+        // The snapshot can be restored again later, so the entities we just restored are shared with it
+        generation++;
+    }
+}
@@ -0,0 +1,73 @@
+package com.sesame.oss.stripemock.entities;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Finds the entity manager that owns an id, without asking every entity manager. Ids generated by the mock start with the id prefix of the
+ * entity manager, like {@code cus_} for customers, so most ids are routed by their prefix alone. The ids that can't be routed that way, like
+ * {@link com.sesame.oss.stripemock.StripeMock#OVERRIDE_ID_FOR_TESTING overridden} ones, or {@code tok_visa}, which is a payment method, are kept in a
+ * separate store. That store is snapshotted along with the entities, so it always matches them.
+ */
+final class IdIndex {
+    private final Map<String, EntityManager<?>> entityManagersByIdPrefix = new HashMap<>();
+    private final EntityStore<EntityManager<?>> entityManagersByUnroutableId;
+
+    IdIndex(EntityStores stores) {
+        this.entityManagersByUnroutableId = stores.create(UnaryOperator.identity());
+    }
+
+    void register(String idPrefix, EntityManager<?> entityManager) {
+        EntityManager<?> existing = entityManagersByIdPrefix.putIfAbsent(idPrefix, entityManager);
+        if (existing != null) {
+            throw new IllegalStateException(String.format("Both %s and %s use the id prefix %s",
+                                                          existing.getNormalizedEntityName(),
+                                                          entityManager.getNormalizedEntityName(),
+                                                          idPrefix));
+        }
+    }
+
+    /**
+     * @return the entity manager that owns the id, or {@code null} if there is none. The entity manager might not actually hold an entity with the id.
+     */
+    EntityManager<?> find(String id) {
+        if (id == null) {
+            return null;
+        }
+        EntityManager<?> entityManager = entityManagersByUnroutableId.get(id);
+        if (entityManager != null) {
+            return entityManager;
+        }
+        return route(id);
+    }
+
+    /**
+     * @return a listener that keeps the index up to date with the entities of the entity manager
+     */
+    EntityStore.Listener listenerFor(EntityManager<?> entityManager) {
+        return new EntityStore.Listener() {
+            @Override
+            public void added(String id) {
+                if (route(id) != entityManager) {
+                    entityManagersByUnroutableId.put(id, entityManager);
+                }
+            }
+
+            @Override
+            public void removed(String id) {
+                if (route(id) != entityManager) {
+                    entityManagersByUnroutableId.compute(id, existing -> existing == entityManager ? null : existing);
+                }
+            }
+        };
+    }
+
+    private EntityManager<?> route(String id) {
+        int separator = id.indexOf('_');
+        if (separator == -1) {
+            return null;
+        }
+        return entityManagersByIdPrefix.get(id.substring(0, separator));
+    }
+}
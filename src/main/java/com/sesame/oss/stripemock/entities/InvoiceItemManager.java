@@ -8,32 +8,39 @@ import com.stripe.model.InvoiceLineItem;
 import com.stripe.net.ApiResource;
 
 import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 class InvoiceItemManager extends AbstractEntityManager<InvoiceItem> {
     protected InvoiceItemManager(Clock clock, StripeEntities stripeEntities) {
-        super(stripeEntities, clock, InvoiceItem.class, "ii", 24);
+        super(stripeEntities, clock, InvoiceItem.class, "ii", 24, List.of(ListParameter.of("customer", InvoiceItem::getCustomer),
+                                                                          ListParameter.of("invoice", InvoiceItem::getInvoice)));
     }
 
     @Override
     protected InvoiceItem initialize(InvoiceItem invoiceItem, Map<String, Object> formData, String stripeAccount) throws ResponseCodeException {
         String invoiceId = invoiceItem.getInvoice();
         if (invoiceId != null) {
-            Invoice invoice = stripeEntities.getEntityManager(Invoice.class)
-                                            .get(invoiceId, stripeAccount)
-                                            .orElseThrow(() -> ResponseCodeException.noSuchEntity(404, "invoice", invoiceId));
-            invoice.getLines()
-                   .getData()
-                   .add(convertToLineItem(invoiceItem));
-            stripeEntities.bindChildToParentCollection(Invoice.class, invoiceId, "getLines", invoiceItem.getId());
+            // We're changing the invoice, so nobody else can be allowed to change it at the same time
+            try (EntityLocks.Held ignored = stripeEntities.lock(invoiceId)) {
+                Invoice invoice = stripeEntities.getForUpdate(Invoice.class, invoiceId, stripeAccount)
+                                                .orElseThrow(() -> ResponseCodeException.noSuchEntity(404, "invoice", invoiceId));
+                // Somebody might be serializing the invoice right now, so we replace the list rather than change it
+                List<InvoiceLineItem> lines = new ArrayList<>(invoice.getLines()
+                                                                     .getData());
+                lines.add(convertToLineItem(invoiceItem));
+                invoice.getLines()
+                       .setData(lines);
+            }
         }
         return super.initialize(invoiceItem, formData, stripeAccount);
     }
 
     private InvoiceLineItem convertToLineItem(InvoiceItem invoiceItem) {
-        String json = Utilities.PRODUCER_GSON.toJson(invoiceItem);
-        InvoiceLineItem invoiceLineItem = ApiResource.GSON.fromJson(json, InvoiceLineItem.class);
+        InvoiceLineItem invoiceLineItem = EntityPatcher.convert(invoiceItem, InvoiceLineItem.class)
+                                                       .orElseGet(() -> ApiResource.GSON.fromJson(Utilities.PRODUCER_GSON.toJson(invoiceItem), InvoiceLineItem.class));
         invoiceLineItem.setObject("line_item");
         invoiceLineItem.setId(Utilities.randomIdWithPrefix("il_tmp", 24));
         invoiceLineItem.setInvoiceItem(invoiceItem.getId());
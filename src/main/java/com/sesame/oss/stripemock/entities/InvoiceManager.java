@@ -12,10 +12,13 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 class InvoiceManager extends AbstractEntityManager<Invoice> {
     protected InvoiceManager(Clock clock, StripeEntities stripeEntities) {
-        super(stripeEntities, clock, Invoice.class, "in", 24);
+        super(stripeEntities, clock, Invoice.class, "in", 24, List.of(ListParameter.of("customer", Invoice::getCustomer),
+                                                                      ListParameter.of("status", Invoice::getStatus),
+                                                                      ListParameter.of("subscription", Invoice::getSubscription)));
     }
 
     @Override
@@ -142,8 +145,8 @@ class InvoiceManager extends AbstractEntityManager<Invoice> {
     }
 
     @Override
-    public boolean canPerformOperation(String operation) {
-        return operation.equals("finalize");
+    public Set<String> getOperations() {
+        return Set.of("finalize");
     }
 
     @Override
@@ -160,4 +163,16 @@ class InvoiceManager extends AbstractEntityManager<Invoice> {
         invoice.setDeleted(true);
         return Optional.of(invoice);
     }
+
+    @Override
+    protected List<SearchQuery.Field<Invoice>> getSearchFields() {
+        return List.of(SearchQuery.Field.of("currency", Invoice::getCurrency),
+                       SearchQuery.Field.indexed("customer", Invoice::getCustomer),
+                       SearchQuery.Field.of("number", Invoice::getNumber),
+                       SearchQuery.Field.of("receipt_number", Invoice::getReceiptNumber),
+                       SearchQuery.Field.indexed("status", Invoice::getStatus),
+                       SearchQuery.Field.indexed("subscription", Invoice::getSubscription),
+                       SearchQuery.Field.of("total", Invoice::getTotal),
+                       SearchQuery.Field.of("metadata", Invoice::getMetadata));
+    }
 }
@@ -0,0 +1,97 @@
+package com.sesame.oss.stripemock.entities;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A list parameter that filters on equality, like {@code customer} when listing payment methods. Each of these gets an index in the
+ * {@link EntityStore}, so filtered lists only look at the entities that match.
+ *
+ * @param name   the name of the query parameter, like {@code customer}
+ * @param values the values the parameter is compared to. An entity matches if any of them is equal to the parameter, so entities without values
+ *               never match. Most parameters have a single value, but {@link #ofMetadata(Function) metadata} has one for each key.
+ */
+record ListParameter<T>(String name,
+                        Function<T, Set<String>> values) {
+    static final String METADATA = "metadata";
+    /**
+     * The prefix of the names of the {@link #ignoringCase(String, Function) case-insensitive} indexes, which only searches use.
+     */
+    private static final String IGNORING_CASE = "search:";
+
+    static <T> ListParameter<T> of(String name, Function<T, String> getter) {
+        return new ListParameter<>(name, entity -> {
+            String value = getter.apply(entity);
+            return value == null ? Set.of() : Set.of(value);
+        });
+    }
+
+    /**
+     * For boolean fields, like {@code active} on products, which are passed as {@code true} or {@code false} in the query.
+     */
+    static <T> ListParameter<T> ofBoolean(String name, Function<T, Boolean> getter) {
+        return of(name, entity -> {
+            Boolean value = getter.apply(entity);
+            return value == null ? null : value.toString();
+        });
+    }
+
+    /**
+     * An index of the lower-cased values of a {@link SearchQuery.Field search field}, as the {@code :} operator is case-insensitive. This is not a
+     * list parameter, as lists match exactly, so it's {@link #isSearchOnly() only used} by searches, under the name from {@link #ignoringCaseName(String)}.
+     *
+     * @param getter the value of the field, which is indexed as a string
+     */
+    static <T> ListParameter<T> ignoringCase(String field, Function<T, Object> getter) {
+        return new ListParameter<>(ignoringCaseName(field), entity -> {
+            Object value = getter.apply(entity);
+            return value == null ? Set.of() : Set.of(lowerCase(value.toString()));
+        });
+    }
+
+    static String ignoringCaseName(String field) {
+        return IGNORING_CASE + field;
+    }
+
+    static String lowerCase(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return whether this is an index that only searches use, which lists must not be filtered on
+     */
+    boolean isSearchOnly() {
+        return name.startsWith(IGNORING_CASE);
+    }
+
+    /**
+     * An inverted index of the metadata, where each key and value pair is a value of the parameter, as encoded by
+     * {@link #metadataValue(String, String)}. Lists pass these as {@code metadata[key]=value}, and searches as {@code metadata['key']:'value'}.
+     */
+    static <T> ListParameter<T> ofMetadata(Function<T, Map<String, String>> getter) {
+        return new ListParameter<>(METADATA, entity -> {
+            Map<String, String> metadata = getter.apply(entity);
+            if (metadata == null || metadata.isEmpty()) {
+                return Set.of();
+            }
+            Set<String> values = new HashSet<>();
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                if (entry.getValue() != null) {
+                    values.add(metadataValue(entry.getKey(), entry.getValue()));
+                }
+            }
+            return values;
+        });
+    }
+
+    /**
+     * @return the value of the {@link #ofMetadata(Function) metadata} parameter that matches entities with this key and value
+     */
+    static String metadataValue(String key, String value) {
+        // Metadata keys can't contain control characters, so this can't be ambiguous
+        return key + '\u0000' + value;
+    }
+}
@@ -0,0 +1,84 @@
+package com.sesame.oss.stripemock.entities;
+
+import com.sesame.oss.stripemock.http.QueryParameters;
+import com.sesame.oss.stripemock.http.ResponseCodeException;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * The filters of a list request, split into the parts an {@link EntityStore} can use its indexes for, and whatever is left.
+ *
+ * @param equalTo     the values of the {@link ListParameter list parameters} that were specified, by parameter name. Entities have to match all of
+ *                    them, which can only be more than one for {@link ListParameter#ofMetadata(java.util.function.Function) metadata}.
+ * @param createdFrom the earliest {@code created} to include, inclusive
+ * @param createdTo   the latest {@code created} to include, inclusive
+ * @param filter      anything else that has to match, which can't be answered by an index
+ */
+record ListQuery<T>(Map<String, Set<String>> equalTo,
+                    long createdFrom,
+                    long createdTo,
+                    Predicate<T> filter) {
+    /**
+     * @param query the query parameters of the list request, or {@code null} to include everything that matches the filter
+     */
+    static <T> ListQuery<T> of(QueryParameters query, List<ListParameter<T>> parameters, Predicate<T> filter) throws ResponseCodeException {
+        Map<String, Set<String>> equalTo = new LinkedHashMap<>();
+        long createdFrom = Long.MIN_VALUE;
+        long createdTo = Long.MAX_VALUE;
+        if (query != null) {
+            for (ListParameter<T> parameter : parameters) {
+                if (parameter.isSearchOnly()) {
+                    continue;
+                }
+                if (parameter.name()
+                             .equals(ListParameter.METADATA)) {
+                    // This isn't a stripe list parameter, but it's handy in tests, and it's the same as the metadata clauses of a search
+                    if (query.get(ListParameter.METADATA) instanceof Map<?, ?> metadata) {
+                        Set<String> values = new LinkedHashSet<>();
+                        metadata.forEach((key, value) -> {
+                            if (value instanceof String string) {
+                                values.add(ListParameter.metadataValue(key.toString(), string));
+                            }
+                        });
+                        equalTo.put(parameter.name(), values);
+                    }
+                } else {
+                    query.getFirst(parameter.name())
+                         .ifPresent(value -> equalTo.put(parameter.name(), Set.of(value)));
+                }
+            }
+            Object created = query.get("created");
+            if (created instanceof String exactly) {
+                createdFrom = createdTo = parseTimestamp("created", exactly);
+            } else if (created instanceof Map<?, ?> range) {
+                // Stripe timestamps are whole seconds, so the exclusive bounds are just one second further in
+                if (range.get("gt") instanceof String gt) {
+                    createdFrom = Math.max(createdFrom, parseTimestamp("created[gt]", gt) + 1);
+                }
+                if (range.get("gte") instanceof String gte) {
+                    createdFrom = Math.max(createdFrom, parseTimestamp("created[gte]", gte));
+                }
+                if (range.get("lt") instanceof String lt) {
+                    createdTo = Math.min(createdTo, parseTimestamp("created[lt]", lt) - 1);
+                }
+                if (range.get("lte") instanceof String lte) {
+                    createdTo = Math.min(createdTo, parseTimestamp("created[lte]", lte));
+                }
+            }
+        }
+        return new ListQuery<>(equalTo, createdFrom, createdTo, filter);
+    }
+
+    private static long parseTimestamp(String parameter, String value) throws ResponseCodeException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new ResponseCodeException(400, String.format("Invalid integer: %s", value), "parameter_invalid_integer", "invalid_request_error", null, parameter);
+        }
+    }
+}
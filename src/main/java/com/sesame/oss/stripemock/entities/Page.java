@@ -0,0 +1,173 @@
+package com.sesame.oss.stripemock.entities;
+
+import com.sesame.oss.stripemock.http.QueryParameters;
+import com.sesame.oss.stripemock.http.ResponseCodeException;
+import com.stripe.model.HasId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a list, as selected by the {@code limit}, {@code starting_after} and {@code ending_before} parameters of a list request.
+ *
+ * @param hasMore whether there are more entities after the page, in the direction we were paging in
+ */
+public record Page<T>(List<T> data,
+                      boolean hasMore) {
+    /**
+     * Pages through a list that has already been built, which costs {@code O(n)}. This is for lists that aren't backed by a single
+     * {@link EntityStore}, like balance transactions, or lists that are always small, like the external accounts of an account.
+     *
+     * @param all        everything in the list, in the order they should be listed, which is usually newest first
+     * @param objectName the name used in the error if the cursor can't be found, like {@code customer}
+     */
+    static <T extends HasId> Page<T> of(List<T> all, Request request, String objectName) throws ResponseCodeException {
+        String cursor = request.cursor();
+        if (cursor == null) {
+            return of(all, 0, request.limit());
+        }
+        int cursorIndex = -1;
+        for (int i = 0; i < all.size(); i++) {
+            if (cursor.equals(all.get(i)
+                                 .getId())) {
+                cursorIndex = i;
+                break;
+            }
+        }
+        if (cursorIndex == -1) {
+            throw ResponseCodeException.noSuchEntity(400, objectName, cursor);
+        }
+        if (request.startingAfter() != null) {
+            return of(all, cursorIndex + 1, request.limit());
+        }
+        int from = Math.max(0, cursorIndex - request.limit());
+        return new Page<>(List.copyOf(all.subList(from, cursorIndex)), from > 0);
+    }
+
+    private static <T> Page<T> of(List<T> all, int from, int limit) {
+        int to = Math.min(all.size(), from + limit);
+        return new Page<>(List.copyOf(all.subList(from, to)), to < all.size());
+    }
+
+    /**
+     * Collects a page while walking a list in the direction we're paging in, one entity at a time.
+     */
+    static final class Builder<T> {
+        private final Request request;
+        private final List<T> data = new ArrayList<>();
+        private boolean hasMore;
+
+        Builder(Request request) {
+            this.request = request;
+        }
+
+        /**
+         * @return {@code false} if the page is full, and walking the list should stop
+         */
+        boolean add(T entity) {
+            if (data.size() == request.limit()) {
+                // We only need to know that there's at least one more
+                hasMore = true;
+                return false;
+            }
+            data.add(entity);
+            return true;
+        }
+
+        Page<T> build() {
+            if (request.endingBefore() != null) {
+                // We walked backwards from the cursor, but the page is still listed in the normal order
+                Collections.reverse(data);
+            }
+            return new Page<>(Collections.unmodifiableList(data), hasMore);
+        }
+    }
+
+    /**
+     * @param startingAfter the id of the entity the page starts right after, or {@code null}
+     * @param endingBefore  the id of the entity the page ends right before, or {@code null}
+     */
+    public record Request(int limit,
+                          String startingAfter,
+                          String endingBefore) {
+        public static final int DEFAULT_LIMIT = 10;
+        public static final int MAX_LIMIT = 100;
+
+        /**
+         * Reads the pagination parameters, and validates them the same way stripe does.
+         */
+        public static Request of(QueryParameters query) throws ResponseCodeException {
+            int limit = limit(query);
+            String startingAfter = emptyToNull(query.getFirst("starting_after")
+                                                    .orElse(null));
+            String endingBefore = emptyToNull(query.getFirst("ending_before")
+                                                   .orElse(null));
+            if (startingAfter != null && endingBefore != null) {
+                throw invalidParameter("starting_after", "You may only specify one of these parameters: ending_before, starting_after.");
+            }
+            return new Request(limit, startingAfter, endingBefore);
+        }
+
+        /**
+         * Reads the pagination parameters of a search request, where the {@code page} parameter is the {@link #nextPage(Page) next_page} of the
+         * previous page.
+         */
+        public static Request ofSearch(QueryParameters query) throws ResponseCodeException {
+            return new Request(limit(query),
+                               emptyToNull(query.getFirst("page")
+                                                .orElse(null)),
+                               null);
+        }
+
+        /**
+         * @return the token for the {@code page} parameter of a search request, which gets the page after this one, or {@code null} if this is the
+         * last page. The token is just the id of the last entity on the page, which is all we need to continue from it.
+         */
+        public static String nextPage(Page<? extends HasId> page) {
+            if (!page.hasMore() || page.data()
+                                       .isEmpty()) {
+                return null;
+            }
+            return page.data()
+                       .getLast()
+                       .getId();
+        }
+
+        /**
+         * @return the id of the entity we're paging from, if any
+         */
+        String cursor() {
+            return startingAfter != null ? startingAfter : endingBefore;
+        }
+
+        private static int limit(QueryParameters query) throws ResponseCodeException {
+            String limitParameter = query.getFirst("limit")
+                                         .orElse(null);
+            if (limitParameter == null) {
+                return DEFAULT_LIMIT;
+            }
+            int limit;
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                throw invalidParameter("limit", String.format("Invalid integer: %s", limitParameter));
+            }
+            if (limit < 1) {
+                throw invalidParameter("limit", "This value must be greater than or equal to 1.");
+            }
+            if (limit > MAX_LIMIT) {
+                throw invalidParameter("limit", String.format("This value must be less than or equal to %d.", MAX_LIMIT));
+            }
+            return limit;
+        }
+
+        private static String emptyToNull(String value) {
+            return value == null || value.isEmpty() ? null : value;
+        }
+
+        private static ResponseCodeException invalidParameter(String parameter, String message) {
+            return new ResponseCodeException(400, message, "parameter_invalid", "invalid_request_error", null, parameter);
+        }
+    }
+}
@@ -6,12 +6,15 @@ import com.stripe.model.*;
 
 import java.time.Clock;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 class PaymentIntentManager extends AbstractEntityManager<PaymentIntent> {
     PaymentIntentManager(Clock clock, StripeEntities stripeEntities) {
-        super(stripeEntities, clock, PaymentIntent.class, "pi", 24);
+        super(stripeEntities, clock, PaymentIntent.class, "pi", 24, List.of(ListParameter.of("customer", PaymentIntent::getCustomer)));
     }
 
     @Override
@@ -133,14 +136,13 @@ class PaymentIntentManager extends AbstractEntityManager<PaymentIntent> {
                     updatedPaymentIntent.setAmountReceived(updatedPaymentIntent.getAmount());
                     if (updatedPaymentIntent.getInvoice() != null) {
                         String invoiceId = updatedPaymentIntent.getInvoice();
-                        Invoice invoice = stripeEntities.getEntityManager(Invoice.class)
-                                                        .get(invoiceId, null)
+                        Invoice invoice = stripeEntities.getForUpdate(Invoice.class, invoiceId, null)
                                                         .orElseThrow(() -> ResponseCodeException.noSuchEntity(400, "invoice", invoiceId));
                         invoice.setStatus("paid");
+                        stripeEntities.reindex(Invoice.class, invoiceId);
                         if (invoice.getSubscription() != null) {
                             String subscriptionId = invoice.getSubscription();
-                            stripeEntities.getEntityManager(Subscription.class)
-                                          .get(subscriptionId, null)
+                            stripeEntities.getForUpdate(Subscription.class, subscriptionId, null)
                                           .orElseThrow(() -> ResponseCodeException.noSuchEntity(400, "subscription", subscriptionId))
                                           .setStatus("active");
                         }
@@ -154,7 +156,8 @@ class PaymentIntentManager extends AbstractEntityManager<PaymentIntent> {
                     // todo: set the payment method (this would cause a circular dependency, so we can't really do that here.)
                     // todo: docUrl for card_declined: https://stripe.com/docs/error-codes/card-declined
                     // We have to set this on the *existing* payment intent, as the *updated* payment intent is discarded when we throw this exception
-                    existingPaymentIntent.setLastPaymentError(lastPaymentError);
+                    entities.getForUpdate(existingPaymentIntent.getId())
+                            .setLastPaymentError(lastPaymentError);
                     throw e;
                 }
                 yield updatedPaymentIntent;
@@ -195,7 +198,31 @@ class PaymentIntentManager extends AbstractEntityManager<PaymentIntent> {
     }
 
     @Override
-    public boolean canPerformOperation(String operation) {
-        return operation.equals("confirm") || operation.equals("cancel") || operation.equals("apply_customer_balance");
+    protected Collection<String> getRelatedEntityIds(PaymentIntent paymentIntent, String operation) throws ResponseCodeException {
+        if (!operation.equals("confirm") || paymentIntent.getInvoice() == null) {
+            return List.of();
+        }
+        // Confirming the payment intent pays the invoice, which in turn activates the subscription
+        List<String> relatedEntityIds = new ArrayList<>();
+        relatedEntityIds.add(paymentIntent.getInvoice());
+        stripeEntities.getEntityManager(Invoice.class)
+                      .get(paymentIntent.getInvoice(), null)
+                      .map(Invoice::getSubscription)
+                      .ifPresent(relatedEntityIds::add);
+        return relatedEntityIds;
+    }
+
+    @Override
+    public Set<String> getOperations() {
+        return Set.of("confirm", "cancel", "apply_customer_balance");
+    }
+
+    @Override
+    protected List<SearchQuery.Field<PaymentIntent>> getSearchFields() {
+        return List.of(SearchQuery.Field.of("amount", PaymentIntent::getAmount),
+                       SearchQuery.Field.of("currency", PaymentIntent::getCurrency),
+                       SearchQuery.Field.indexed("customer", PaymentIntent::getCustomer),
+                       SearchQuery.Field.indexedIgnoringCase("status", PaymentIntent::getStatus),
+                       SearchQuery.Field.of("metadata", PaymentIntent::getMetadata));
     }
 }
@@ -1,7 +1,6 @@
 package com.sesame.oss.stripemock.entities;
 
 import com.sesame.oss.stripemock.StripeMock;
-import com.sesame.oss.stripemock.http.QueryParameters;
 import com.sesame.oss.stripemock.http.ResponseCodeException;
 import com.stripe.model.Customer;
 import com.stripe.model.PaymentMethod;
@@ -11,12 +10,14 @@ import java.time.LocalDate;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 class PaymentMethodManager extends AbstractEntityManager<PaymentMethod> {
     // todo: test methods for things like charge_declined etc
 
     PaymentMethodManager(Clock clock, StripeEntities stripeEntities) {
-        super(stripeEntities, clock, PaymentMethod.class, "pm", 24);
+        super(stripeEntities, clock, PaymentMethod.class, "pm", 24, List.of(ListParameter.of("customer", PaymentMethod::getCustomer),
+                                                                            ListParameter.of("type", PaymentMethod::getType)));
     }
 
     @Override
@@ -140,17 +141,8 @@ class PaymentMethodManager extends AbstractEntityManager<PaymentMethod> {
     }
 
     @Override
-    public boolean canPerformOperation(String operation) {
-        return operation.equals("attach") || operation.equals("detach");
-    }
-
-    @Override
-    public List<PaymentMethod> list(QueryParameters query, String stripeAccount) {
-
-        return entities.values()
-                       .stream()
-                       .filter(filter(query, "customer", PaymentMethod::getCustomer).and(filter(query, "type", PaymentMethod::getType)))
-                       .toList();
+    public Set<String> getOperations() {
+        return Set.of("attach", "detach");
     }
 
     public static void throwIfPaymentMethodIsNotValid(PaymentMethod paymentMethod) throws ResponseCodeException {
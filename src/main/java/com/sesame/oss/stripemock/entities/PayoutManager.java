@@ -2,26 +2,20 @@ package com.sesame.oss.stripemock.entities;
 
 import com.sesame.oss.stripemock.http.QueryParameters;
 import com.sesame.oss.stripemock.http.ResponseCodeException;
-import com.sesame.oss.stripemock.util.BalanceUtilities;
 import com.sesame.oss.stripemock.util.Utilities;
 import com.stripe.model.*;
 
 import java.time.Clock;
 import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 class PayoutManager extends AbstractEntityManager<Payout> {
-    private final Map<String, Set<String>> stripeAccountToPayoutId = new HashMap<>();
+    private final EntityStore<String> stripeAccountByPayoutId = stripeEntities.createStore(UnaryOperator.identity());
 
     PayoutManager(Clock clock, StripeEntities stripeEntities) {
-        super(stripeEntities, clock, Payout.class, "po", 24);
-    }
-
-    @Override
-    public Payout add(Map<String, Object> formData, String stripeAccount) throws ResponseCodeException {
-        Payout payout = super.add(formData, stripeAccount);
-        stripeAccountToPayoutId.computeIfAbsent(stripeAccount, ignored -> new HashSet<>())
-                               .add(payout.getId());
-        return payout;
+        super(stripeEntities, clock, Payout.class, "po", 24, List.of(ListParameter.of("destination", Payout::getDestination),
+                                                                     ListParameter.of("status", Payout::getStatus)));
     }
 
     @Override
@@ -54,10 +48,7 @@ class PayoutManager extends AbstractEntityManager<Payout> {
                 } else {
                     payout.setStatus("paid");
 
-                    BalanceTransactionManager balanceTransactionEntityManager =
-                            (BalanceTransactionManager) stripeEntities.getEntityManager(BalanceTransaction.class);
-                    long sumAvailable = BalanceUtilities.sum(balanceTransactionEntityManager.list(null, stripeAccount), "available");
-                    if (sumAvailable < payout.getAmount()) {
+                    if (stripeEntities.getBalance(stripeAccount, payout.getCurrency(), BalanceLedger.AVAILABLE) < payout.getAmount()) {
                         throw new ResponseCodeException(400,
                                                         "You have insufficient funds in your Stripe account for this transfer. Your card balance is too low.  You can use the /v1/balance endpoint to view your Stripe balance (for more details, see stripe.com/docs/api#balance).",
                                                         "balance_insufficient",
@@ -66,6 +57,8 @@ class PayoutManager extends AbstractEntityManager<Payout> {
                                                         null);
                     }
 
+                    BalanceTransactionManager balanceTransactionEntityManager =
+                            (BalanceTransactionManager) stripeEntities.getEntityManager(BalanceTransaction.class);
                     payout.setBalanceTransaction(Utilities.randomIdWithPrefix("txn", 24));
                     // By registering this, it can be converted on the fly when expanded or fetched.
                     balanceTransactionEntityManager.register(payout.getBalanceTransaction(), payout);
@@ -115,27 +108,45 @@ class PayoutManager extends AbstractEntityManager<Payout> {
         } else {
             // todo: what happens if we do a payout if there is no bank account or card?
         }
+        // This has to be known before the payout is stored, as that's when it's taken out of the balance of the account.
+        // If a payout with this id is already stored, the payout is about to be rejected, so we leave the existing one alone.
+        stripeAccountByPayoutId.putIfAbsent(payout.getId(), stripeAccount);
         return super.initialize(payout, formData, stripeAccount);
     }
 
     @Override
-    public List<Payout> list(QueryParameters query, String stripeAccount) {
+    public Payout add(Map<String, Object> formData, String stripeAccount) throws ResponseCodeException {
+        try {
+            return super.add(formData, stripeAccount);
+        } catch (ResponseCodeException | RuntimeException e) {
+            // The payout was rejected after it was initialized, so we have to forget the account of a payout that doesn't exist
+            String id = (String) formData.get("id");
+            if (id != null && entities.get(id) == null) {
+                stripeAccountByPayoutId.remove(id);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    protected Predicate<Payout> listFilter(QueryParameters query, String stripeAccount) {
         if (stripeAccount == null) {
-            return entities.values()
-                           .stream()
-                           .toList();
+            return payout -> true;
         } else {
-            Set<String> payoutIdsForStripeAccount = stripeAccountToPayoutId.getOrDefault(stripeAccount, new HashSet<>());
-            return entities.values()
-                           .stream()
-                           .filter(payout -> payoutIdsForStripeAccount.contains(payout.getId()))
-                           .toList();
+            return payout -> stripeAccount.equals(stripeAccountByPayoutId.get(payout.getId()));
         }
     }
 
+    /**
+     * @return the connected account that made the payout
+     */
+    String getStripeAccount(String payoutId) {
+        return stripeAccountByPayoutId.get(payoutId);
+    }
+
     @Override
     public void clear() {
         super.clear();
-        stripeAccountToPayoutId.clear();
+        stripeAccountByPayoutId.clear();
     }
 }
@@ -0,0 +1,338 @@
+package com.sesame.oss.stripemock.entities;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable hash array mapped trie. Every change returns a new map, which shares everything but the path to the changed key with the old one.
+ * This means that holding on to a version of the map is all it takes to snapshot it, and changes cost {@code O(log32 n)} rather than a full copy.
+ * <p>
+ * Neither keys nor values may be {@code null}.
+ */
+final class PersistentMap<K, V> {
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    /**
+     * 7 levels of bitmap nodes consume all 32 bits of the hash, and then there might be a collision node at the bottom.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(K key) {
+        if (root == null) {
+            return null;
+        }
+        return (V) root.get(0, key.hashCode(), key);
+    }
+
+    PersistentMap<K, V> put(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node newRoot = (root == null ? BitmapNode.EMPTY : root).put(0, key.hashCode(), key, value, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    PersistentMap<K, V> remove(K key) {
+        if (root == null) {
+            return this;
+        }
+        Node newRoot = root.remove(0, key.hashCode(), key);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? empty() : new PersistentMap<>(newRoot, size - 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the values, in no particular order. As the map is immutable, this never changes.
+     */
+    Collection<V> values() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static int index(int shift, int hash) {
+        return (hash >>> shift) & MASK;
+    }
+
+    private static Object[] insert(Object[] array, int position, Object key, Object value) {
+        Object[] copy = new Object[array.length + 2];
+        System.arraycopy(array, 0, copy, 0, position);
+        copy[position] = key;
+        copy[position + 1] = value;
+        System.arraycopy(array, position, copy, position + 2, array.length - position);
+        return copy;
+    }
+
+    private static Object[] replace(Object[] array, int position, Object value) {
+        Object[] copy = array.clone();
+        copy[position] = value;
+        return copy;
+    }
+
+    private static Object[] delete(Object[] array, int position) {
+        Object[] copy = new Object[array.length - 2];
+        System.arraycopy(array, 0, copy, 0, position);
+        System.arraycopy(array, position + 2, copy, position, array.length - position - 2);
+        return copy;
+    }
+
+    private abstract static sealed class Node permits BitmapNode, CollisionNode {
+        /**
+         * Pairs of keys and values. In a {@link BitmapNode}, a {@code null} key means that the value is a child node.
+         */
+        final Object[] array;
+
+        Node(Object[] array) {
+            this.array = array;
+        }
+
+        abstract Object get(int shift, int hash, Object key);
+
+        /**
+         * @return this node if nothing changed
+         */
+        abstract Node put(int shift, int hash, Object key, Object value, boolean[] added);
+
+        /**
+         * @return this node if the key wasn't found, or {@code null} if the node is now empty
+         */
+        abstract Node remove(int shift, int hash, Object key);
+    }
+
+    private static final class BitmapNode extends Node {
+        private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+        private final int bitmap;
+
+        private BitmapNode(int bitmap, Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        private int position(int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object get(int shift, int hash, Object key) {
+            int bit = 1 << index(shift, hash);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int position = position(bit);
+            Object existingKey = array[position];
+            Object existingValue = array[position + 1];
+            if (existingKey == null) {
+                return ((Node) existingValue).get(shift + BITS, hash, key);
+            }
+            return key.equals(existingKey) ? existingValue : null;
+        }
+
+        @Override
+        Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = 1 << index(shift, hash);
+            int position = position(bit);
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, insert(array, position, key, value));
+            }
+            Object existingKey = array[position];
+            Object existingValue = array[position + 1];
+            if (existingKey == null) {
+                Node child = (Node) existingValue;
+                Node newChild = child.put(shift + BITS, hash, key, value, added);
+                return newChild == child ? this : new BitmapNode(bitmap, replace(array, position + 1, newChild));
+            }
+            if (key.equals(existingKey)) {
+                return existingValue == value ? this : new BitmapNode(bitmap, replace(array, position + 1, value));
+            }
+            added[0] = true;
+            Node child = createNode(shift + BITS, existingKey, existingValue, hash, key, value);
+            Object[] newArray = replace(array, position, null);
+            newArray[position + 1] = child;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int bit = 1 << index(shift, hash);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int position = position(bit);
+            Object existingKey = array[position];
+            Object existingValue = array[position + 1];
+            if (existingKey == null) {
+                Node child = (Node) existingValue;
+                Node newChild = child.remove(shift + BITS, hash, key);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    return new BitmapNode(bitmap, replace(array, position + 1, newChild));
+                }
+            } else if (!key.equals(existingKey)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            return new BitmapNode(bitmap ^ bit, delete(array, position));
+        }
+
+        private static Node createNode(int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+            int hash1 = key1.hashCode();
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[]{key1, value1, key2, value2});
+            }
+            boolean[] ignored = new boolean[1];
+            return EMPTY.put(shift, hash1, key1, value1, ignored)
+                        .put(shift, hash2, key2, value2, ignored);
+        }
+    }
+
+    /**
+     * Holds keys that have the exact same hash code, which means they can't be told apart by any level of the trie.
+     */
+    private static final class CollisionNode extends Node {
+        private final int hash;
+
+        private CollisionNode(int hash, Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+        private int position(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object get(int shift, int hash, Object key) {
+            if (hash != this.hash) {
+                return null;
+            }
+            int position = position(key);
+            return position == -1 ? null : array[position + 1];
+        }
+
+        @Override
+        Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                // The new key belongs somewhere else at this level, so we push ourselves one level down
+                Node node = new BitmapNode(1 << index(shift, this.hash), new Object[]{null, this});
+                return node.put(shift, hash, key, value, added);
+            }
+            int position = position(key);
+            if (position == -1) {
+                added[0] = true;
+                Object[] newArray = Arrays.copyOf(array, array.length + 2);
+                newArray[array.length] = key;
+                newArray[array.length + 1] = value;
+                return new CollisionNode(hash, newArray);
+            }
+            return array[position + 1] == value ? this : new CollisionNode(hash, replace(array, position + 1, value));
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int position = hash == this.hash ? position(key) : -1;
+            if (position == -1) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            return new CollisionNode(hash, delete(array, position));
+        }
+    }
+
+    private static final class ValueIterator<V> implements Iterator<V> {
+        private final Object[][] arrays = new Object[MAX_DEPTH][];
+        private final int[] positions = new int[MAX_DEPTH];
+        private int depth;
+        private Object next;
+
+        private ValueIterator(Node root) {
+            if (root == null) {
+                depth = -1;
+            } else {
+                arrays[0] = root.array;
+            }
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Object[] array = arrays[depth];
+                int position = positions[depth];
+                if (position == array.length) {
+                    depth--;
+                    continue;
+                }
+                positions[depth] = position + 2;
+                if (array[position] == null) {
+                    depth++;
+                    arrays[depth] = ((Node) array[position + 1]).array;
+                    positions[depth] = 0;
+                } else {
+                    next = array[position + 1];
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            V value = (V) next;
+            advance();
+            return value;
+        }
+    }
+}
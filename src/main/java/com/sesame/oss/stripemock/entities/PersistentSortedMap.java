@@ -0,0 +1,201 @@
+package com.sesame.oss.stripemock.entities;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable sorted map, implemented as a treap. Like the {@link PersistentMap}, every change returns a new map that shares everything but the
+ * path to the changed key with the old one, so old versions can be held on to for free.
+ * <p>
+ * The priorities of the treap are derived from the hash codes of the keys, rather than being random, so the shape of the tree only depends on its
+ * contents. The tree is balanced as long as the hash codes are reasonably well distributed.
+ * <p>
+ * Neither keys nor values may be {@code null}.
+ */
+final class PersistentSortedMap<K extends Comparable<K>, V> {
+    private static final PersistentSortedMap<?, ?> EMPTY = new PersistentSortedMap<>(null, 0);
+
+    private final Node<K, V> root;
+    private final int size;
+
+    private PersistentSortedMap(Node<K, V> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K extends Comparable<K>, V> PersistentSortedMap<K, V> empty() {
+        return (PersistentSortedMap<K, V>) EMPTY;
+    }
+
+    V get(K key) {
+        Node<K, V> node = root;
+        while (node != null) {
+            int comparison = key.compareTo(node.key);
+            if (comparison == 0) {
+                return node.value;
+            }
+            node = comparison < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    PersistentSortedMap<K, V> put(K key, V value) {
+        boolean added = get(key) == null;
+        return new PersistentSortedMap<>(insert(root, key, value, priority(key)), added ? size + 1 : size);
+    }
+
+    PersistentSortedMap<K, V> remove(K key) {
+        if (get(key) == null) {
+            return this;
+        }
+        return new PersistentSortedMap<>(delete(root, key), size - 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param from      where to start, or {@code null} to start from the smallest key
+     * @param inclusive whether to include {@code from} itself, if it's in the map
+     * @return the values with keys greater than {@code from}, in ascending order of their keys
+     */
+    Iterator<V> ascendingFrom(K from, boolean inclusive) {
+        return new ValueIterator<>(root, from, inclusive, true);
+    }
+
+    /**
+     * @param from      where to start, or {@code null} to start from the largest key
+     * @param inclusive whether to include {@code from} itself, if it's in the map
+     * @return the values with keys less than {@code from}, in descending order of their keys
+     */
+    Iterator<V> descendingFrom(K from, boolean inclusive) {
+        return new ValueIterator<>(root, from, inclusive, false);
+    }
+
+    private static int priority(Object key) {
+        // The finalizer of murmur3, which spreads the bits of hash codes that are otherwise very similar, like for consecutive numbers
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static <K extends Comparable<K>, V> Node<K, V> insert(Node<K, V> node, K key, V value, int priority) {
+        if (node == null) {
+            return new Node<>(key, value, priority, null, null);
+        }
+        int comparison = key.compareTo(node.key);
+        if (comparison == 0) {
+            return new Node<>(key, value, node.priority, node.left, node.right);
+        }
+        if (comparison < 0) {
+            Node<K, V> left = insert(node.left, key, value, priority);
+            if (left.priority > node.priority) {
+                // Rotate right, so the new node ends up above this one
+                return new Node<>(left.key, left.value, left.priority, left.left, new Node<>(node.key, node.value, node.priority, left.right, node.right));
+            }
+            return new Node<>(node.key, node.value, node.priority, left, node.right);
+        } else {
+            Node<K, V> right = insert(node.right, key, value, priority);
+            if (right.priority > node.priority) {
+                // Rotate left, so the new node ends up above this one
+                return new Node<>(right.key, right.value, right.priority, new Node<>(node.key, node.value, node.priority, node.left, right.left), right.right);
+            }
+            return new Node<>(node.key, node.value, node.priority, node.left, right);
+        }
+    }
+
+    private static <K extends Comparable<K>, V> Node<K, V> delete(Node<K, V> node, K key) {
+        int comparison = key.compareTo(node.key);
+        if (comparison == 0) {
+            return merge(node.left, node.right);
+        }
+        if (comparison < 0) {
+            return new Node<>(node.key, node.value, node.priority, delete(node.left, key), node.right);
+        } else {
+            return new Node<>(node.key, node.value, node.priority, node.left, delete(node.right, key));
+        }
+    }
+
+    /**
+     * @param smaller a tree where all keys are smaller than the keys in {@code larger}
+     */
+    private static <K extends Comparable<K>, V> Node<K, V> merge(Node<K, V> smaller, Node<K, V> larger) {
+        if (smaller == null) {
+            return larger;
+        }
+        if (larger == null) {
+            return smaller;
+        }
+        if (smaller.priority > larger.priority) {
+            return new Node<>(smaller.key, smaller.value, smaller.priority, smaller.left, merge(smaller.right, larger));
+        } else {
+            return new Node<>(larger.key, larger.value, larger.priority, merge(smaller, larger.left), larger.right);
+        }
+    }
+
+    private record Node<K, V>(K key,
+                              V value,
+                              int priority,
+                              Node<K, V> left,
+                              Node<K, V> right) {}
+
+    private static final class ValueIterator<K extends Comparable<K>, V> implements Iterator<V> {
+        /**
+         * The nodes we still have to visit, with the next one on top. The subtrees on the far side of each of these nodes are yet to be visited too.
+         */
+        private final Deque<Node<K, V>> path = new ArrayDeque<>();
+        private final boolean ascending;
+
+        private ValueIterator(Node<K, V> root, K from, boolean inclusive, boolean ascending) {
+            this.ascending = ascending;
+            Node<K, V> node = root;
+            while (node != null) {
+                int comparison = from == null ? (ascending ? -1 : 1) : from.compareTo(node.key);
+                if (comparison == 0 && inclusive) {
+                    path.push(node);
+                    return;
+                }
+                if (ascending ? comparison < 0 : comparison > 0) {
+                    // This node comes after where we start, so it has to be visited, but only after the near side
+                    path.push(node);
+                    node = near(node);
+                } else {
+                    node = far(node);
+                }
+            }
+        }
+
+        private Node<K, V> near(Node<K, V> node) {
+            return ascending ? node.left : node.right;
+        }
+
+        private Node<K, V> far(Node<K, V> node) {
+            return ascending ? node.right : node.left;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !path.isEmpty();
+        }
+
+        @Override
+        public V next() {
+            if (path.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Node<K, V> node = path.pop();
+            for (Node<K, V> child = far(node); child != null; child = near(child)) {
+                path.push(child);
+            }
+            return node.value;
+        }
+    }
+}
@@ -4,11 +4,12 @@ import com.sesame.oss.stripemock.http.ResponseCodeException;
 import com.stripe.model.Product;
 
 import java.time.Clock;
+import java.util.List;
 import java.util.Optional;
 
 class ProductManager extends AbstractEntityManager<Product> {
     protected ProductManager(Clock clock, StripeEntities stripeEntities) {
-        super(stripeEntities, clock, Product.class, "prod", 24);
+        super(stripeEntities, clock, Product.class, "prod", 24, List.of(ListParameter.ofBoolean("active", Product::getActive)));
     }
 
     @Override
@@ -20,4 +21,13 @@ class ProductManager extends AbstractEntityManager<Product> {
         product.setDeleted(true);
         return Optional.of(product);
     }
+
+    @Override
+    protected List<SearchQuery.Field<Product>> getSearchFields() {
+        return List.of(SearchQuery.Field.of("active", Product::getActive),
+                       SearchQuery.Field.of("description", Product::getDescription),
+                       SearchQuery.Field.indexedIgnoringCase("name", Product::getName),
+                       SearchQuery.Field.of("url", Product::getUrl),
+                       SearchQuery.Field.of("metadata", Product::getMetadata));
+    }
 }
@@ -0,0 +1,68 @@
+package com.sesame.oss.stripemock.entities;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The data of a collection in a parent entity, like the refunds of a charge, which only holds the ids of the children. The children are looked up
+ * when the list is read, which is mostly when the parent is serialized, so the parent always shows the latest version of each child, and changing
+ * a child never has to touch its parents.
+ * <p>
+ * The list can't be changed. Adding or removing a child creates a new list, which replaces the old one in the parent, so it's safe to share it with
+ * copies of the parent, and with snapshots. Children that can't be found, like ones that were added to the parent but never stored because they
+ * weren't valid, are left out.
+ */
+final class ReferenceList<C> extends AbstractList<C> {
+    private final List<String> ids;
+    private final Function<String, ? extends C> resolver;
+
+    ReferenceList(List<String> ids, Function<String, ? extends C> resolver) {
+        this.ids = List.copyOf(ids);
+        this.resolver = resolver;
+    }
+
+    ReferenceList<C> with(String id) {
+        List<String> newIds = new ArrayList<>(ids);
+        newIds.add(id);
+        return new ReferenceList<>(newIds, resolver);
+    }
+
+    ReferenceList<C> without(String id) {
+        List<String> newIds = new ArrayList<>(ids);
+        newIds.remove(id);
+        return new ReferenceList<>(newIds, resolver);
+    }
+
+    List<String> ids() {
+        return ids;
+    }
+
+    @Override
+    public C get(int index) {
+        return resolve().get(index);
+    }
+
+    @Override
+    public int size() {
+        return resolve().size();
+    }
+
+    @Override
+    public Iterator<C> iterator() {
+        return resolve().iterator();
+    }
+
+    private List<C> resolve() {
+        List<C> children = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            C child = resolver.apply(id);
+            if (child != null) {
+                children.add(child);
+            }
+        }
+        return children;
+    }
+}
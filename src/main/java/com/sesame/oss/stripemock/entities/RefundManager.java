@@ -1,6 +1,5 @@
 package com.sesame.oss.stripemock.entities;
 
-import com.sesame.oss.stripemock.http.QueryParameters;
 import com.sesame.oss.stripemock.http.ResponseCodeException;
 import com.stripe.model.BalanceTransaction;
 import com.stripe.model.Charge;
@@ -8,13 +7,16 @@ import com.stripe.model.PaymentIntent;
 import com.stripe.model.Refund;
 
 import java.time.Clock;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 class RefundManager extends AbstractEntityManager<Refund> {
     protected RefundManager(Clock clock, StripeEntities stripeEntities) {
-        super(stripeEntities, clock, Refund.class, "re", 24);
+        super(stripeEntities, clock, Refund.class, "re", 24, List.of(ListParameter.of("charge", Refund::getCharge),
+                                                                     ListParameter.of("payment_intent", Refund::getPaymentIntent)));
     }
 
     @Override
@@ -32,26 +34,28 @@ class RefundManager extends AbstractEntityManager<Refund> {
             }
         }
         if (refund.getCharge() != null) {
-            Charge charge = stripeEntities.getEntityManager(Charge.class)
-                                          .get(refund.getCharge(), stripeAccount)
-                                          .orElseThrow(() -> ResponseCodeException.noSuchEntity(400, "charge", refund.getCharge()));
-            charge.getRefunds()
-                  .getData()
-                  .add(refund);
-            stripeEntities.bindChildToParentCollection(Charge.class, charge.getId(), "getRefunds", refund.getId());
-            if (refund.getAmount() == null) {
-                refund.setAmount(charge.getAmount());
-                charge.setAmountRefunded(charge.getAmount());
-                charge.setRefunded(true);
-            } else {
-                // Only fully refunded charges are marked as refunded
-                long amountRefunded = charge.getRefunds()
-                                            .getData()
-                                            .stream()
-                                            .mapToLong(Refund::getAmount)
-                                            .sum();
-                charge.setRefunded(Objects.equals(amountRefunded, charge.getAmount()));
-                charge.setAmountRefunded(amountRefunded);
+            // We're changing the charge, so nobody else can be allowed to change it at the same time
+            try (EntityLocks.Held ignored = stripeEntities.lock(refund.getCharge())) {
+                Charge charge = stripeEntities.getForUpdate(Charge.class, refund.getCharge(), stripeAccount)
+                                              .orElseThrow(() -> ResponseCodeException.noSuchEntity(400, "charge", refund.getCharge()));
+                // The refund isn't stored until it's been initialized, so it's not part of the refunds we look up yet
+                List<Refund> refunds = new ArrayList<>(charge.getRefunds()
+                                                             .getData());
+                refunds.add(refund);
+                stripeEntities.addToCollection(charge.getRefunds(), Refund.class, refund.getId());
+                if (refund.getAmount() == null) {
+                    refund.setAmount(charge.getAmount());
+                    charge.setAmountRefunded(charge.getAmount());
+                    charge.setRefunded(true);
+                } else {
+                    // Only fully refunded charges are marked as refunded
+                    long amountRefunded = refunds.stream()
+                                                 .mapToLong(Refund::getAmount)
+                                                 .sum();
+                    charge.setRefunded(Objects.equals(amountRefunded, charge.getAmount()));
+                    charge.setAmountRefunded(amountRefunded);
+                }
+                stripeEntities.reindex(Charge.class, charge.getId());
             }
         }
         // By registering this, it can be converted on the fly when expanded or fetched.
@@ -103,15 +107,7 @@ class RefundManager extends AbstractEntityManager<Refund> {
     }
 
     @Override
-    public boolean canPerformOperation(String operation) {
-        return operation.equals("cancel");
-    }
-
-    @Override
-    public List<Refund> list(QueryParameters query, String stripeAccount) {
-        return entities.values()
-                       .stream()
-                       .filter(filter(query, "payment_intent", Refund::getPaymentIntent))
-                       .toList();
+    public Set<String> getOperations() {
+        return Set.of("cancel");
     }
 }
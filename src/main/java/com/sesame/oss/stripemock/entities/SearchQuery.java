@@ -0,0 +1,398 @@
+package com.sesame.oss.stripemock.entities;
+
+import com.sesame.oss.stripemock.http.ResponseCodeException;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A compiled query in the <a href="https://stripe.com/docs/search#search-query-language">search query language</a>, like
+ * {@code email:'jane@example.com' AND metadata['order_id']:'6735' AND -status:'canceled'}.
+ * <p>
+ * Queries are compiled into a {@link ListQuery}, so they're executed just like lists. When the clauses are combined with {@code AND}, the
+ * equality clauses on {@link Field#indexed() indexed} fields, including {@code metadata}, and the ranges on {@code created}, decide which ids the
+ * store walks. The rest of the clauses are checked for each entity we walk past. Queries combined with {@code OR} are checked against
+ * every entity.
+ */
+final class SearchQuery<T> {
+    private static final int MAX_CLAUSES = 10;
+
+    private final List<Clause<T>> clauses;
+    private final boolean or;
+
+    private SearchQuery(List<Clause<T>> clauses, boolean or) {
+        this.clauses = clauses;
+        this.or = or;
+    }
+
+    /**
+     * @param fields       the fields that can be searched, by name
+     * @param resourceName the name of the resource being searched, like {@code customers}, which is used in error messages
+     */
+    static <T> SearchQuery<T> compile(String query, Map<String, Field<T>> fields, String resourceName) throws ResponseCodeException {
+        if (query == null || query.isBlank()) {
+            throw invalidQuery("Missing required param: query.");
+        }
+        return new Parser<>(query, fields, resourceName).parse();
+    }
+
+    /**
+     * @param filter anything else that has to match, like the filters for the stripe account of the request
+     */
+    ListQuery<T> toListQuery(Predicate<T> filter) {
+        Predicate<T> matches = or ? this::anyClauseMatches : this::allClausesMatch;
+        Map<String, Set<String>> equalTo = new LinkedHashMap<>();
+        long createdFrom = Long.MIN_VALUE;
+        long createdTo = Long.MAX_VALUE;
+        if (!or) {
+            for (Clause<T> clause : clauses) {
+                if (clause.negated() || clause.value() == null) {
+                    continue;
+                }
+                if (clause.metadataKey() != null) {
+                    if (clause.operator() == Operator.EQUALS) {
+                        // Every entity with metadata has an inverted index of it, where each key and value is a separate value
+                        equalTo.computeIfAbsent(ListParameter.METADATA, ignored -> new LinkedHashSet<>())
+                               .add(ListParameter.metadataValue(clause.metadataKey(), clause.value()));
+                    }
+                } else if (clause.field()
+                                 .indexed() && clause.operator() == Operator.EQUALS) {
+                    equalTo.computeIfAbsent(clause.field()
+                                                  .indexName(), ignored -> new LinkedHashSet<>())
+                           .add(clause.field()
+                                      .indexValue(clause.value()));
+                } else if (clause.field()
+                                 .name()
+                                 .equals("created")) {
+                    long value = Long.parseLong(clause.value());
+                    switch (clause.operator()) {
+                        case EQUALS -> {
+                            createdFrom = Math.max(createdFrom, value);
+                            createdTo = Math.min(createdTo, value);
+                        }
+                        case GREATER_THAN -> createdFrom = Math.max(createdFrom, value + 1);
+                        case GREATER_THAN_OR_EQUAL -> createdFrom = Math.max(createdFrom, value);
+                        case LESS_THAN -> createdTo = Math.min(createdTo, value - 1);
+                        case LESS_THAN_OR_EQUAL -> createdTo = Math.min(createdTo, value);
+                        case CONTAINS -> {
+                            // Not a range, so it's only checked by the predicate
+                        }
+                    }
+                }
+            }
+        }
+        // The clauses that were turned into indexes and ranges are checked again by the predicate. That's redundant, but cheap.
+        return new ListQuery<>(equalTo, createdFrom, createdTo, filter.and(matches));
+    }
+
+    private boolean anyClauseMatches(T entity) {
+        for (Clause<T> clause : clauses) {
+            if (clause.test(entity)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean allClausesMatch(T entity) {
+        for (Clause<T> clause : clauses) {
+            if (!clause.test(entity)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ResponseCodeException invalidQuery(String message) {
+        return new ResponseCodeException(400, message, "parameter_invalid", "invalid_request_error", null, "query");
+    }
+
+    /**
+     * A field that can be searched.
+     *
+     * @param indexed    whether {@code :} clauses on the field can be looked up in an index, rather than checked against every entity
+     * @param ignoreCase whether the field has its own {@link ListParameter#ignoringCase(String, Function) case-insensitive} index, which the entity
+     *                   manager creates for it. Other indexed fields use the {@link ListParameter} with the same name, so their values must always
+     *                   be in the same case, like ids.
+     * @param getter     the value of the field, which is a string, a number or a boolean. For {@code metadata}, this is the metadata map.
+     */
+    record Field<T>(String name,
+                    boolean indexed,
+                    boolean ignoreCase,
+                    Function<T, Object> getter) {
+        static <T> Field<T> of(String name, Function<T, Object> getter) {
+            return new Field<>(name, false, false, getter);
+        }
+
+        static <T> Field<T> indexed(String name, Function<T, Object> getter) {
+            return new Field<>(name, true, false, getter);
+        }
+
+        /**
+         * For fields that people search for in any case, like email addresses and names.
+         */
+        static <T> Field<T> indexedIgnoringCase(String name, Function<T, Object> getter) {
+            return new Field<>(name, true, true, getter);
+        }
+
+        String indexName() {
+            return ignoreCase ? ListParameter.ignoringCaseName(name) : name;
+        }
+
+        String indexValue(String value) {
+            return ignoreCase ? ListParameter.lowerCase(value) : value;
+        }
+    }
+
+    enum Operator {
+        EQUALS,
+        CONTAINS,
+        GREATER_THAN,
+        GREATER_THAN_OR_EQUAL,
+        LESS_THAN,
+        LESS_THAN_OR_EQUAL
+    }
+
+    /**
+     * @param metadataKey the key for {@code metadata['key']} clauses, and {@code null} for all other fields
+     * @param value       the value to compare to, or {@code null} for {@code field:null}, which matches when the field isn't set
+     */
+    private record Clause<T>(Field<T> field,
+                             String metadataKey,
+                             Operator operator,
+                             String value,
+                             boolean negated) {
+        boolean test(T entity) {
+            Object actual = field.getter()
+                                 .apply(entity);
+            if (metadataKey != null) {
+                actual = actual instanceof Map<?, ?> metadata ? metadata.get(metadataKey) : null;
+            }
+            return matches(actual) != negated;
+        }
+
+        private boolean matches(Object actual) {
+            if (value == null) {
+                return actual == null;
+            }
+            if (actual == null) {
+                return false;
+            }
+            if (operator == Operator.EQUALS) {
+                if (metadataKey != null) {
+                    // Metadata is matched exactly, which is what lets it be looked up in the index
+                    return value.equals(actual);
+                }
+                if (actual instanceof Number) {
+                    return Objects.equals(compare(actual), 0);
+                }
+                // Compared the same way the case-insensitive indexes are built, so the index and the predicate always agree
+                return ListParameter.lowerCase(value)
+                                    .equals(ListParameter.lowerCase(actual.toString()));
+            }
+            if (operator == Operator.CONTAINS) {
+                return actual.toString()
+                             .toLowerCase(Locale.ROOT)
+                             .contains(value.toLowerCase(Locale.ROOT));
+            }
+            // Only numbers can be compared, so other fields never match a range
+            Integer comparison = compare(actual);
+            if (comparison == null) {
+                return false;
+            }
+            return switch (operator) {
+                case GREATER_THAN -> comparison > 0;
+                case GREATER_THAN_OR_EQUAL -> comparison >= 0;
+                case LESS_THAN -> comparison < 0;
+                case LESS_THAN_OR_EQUAL -> comparison <= 0;
+                case EQUALS, CONTAINS -> throw new AssertionError("Handled above");
+            };
+        }
+
+        /**
+         * @return how the actual value compares to the value of the clause, or {@code null} if they can't be compared as numbers
+         */
+        private Integer compare(Object actual) {
+            if (!(actual instanceof Number number)) {
+                return null;
+            }
+            try {
+                return Long.compare(number.longValue(), Long.parseLong(value));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private static final class Parser<T> {
+        private final String query;
+        private final Map<String, Field<T>> fields;
+        private final String resourceName;
+        private int position;
+
+        private Parser(String query, Map<String, Field<T>> fields, String resourceName) {
+            this.query = query;
+            this.fields = fields;
+            this.resourceName = resourceName;
+        }
+
+        SearchQuery<T> parse() throws ResponseCodeException {
+            List<Clause<T>> clauses = new ArrayList<>();
+            Boolean or = null;
+            skipWhitespace();
+            clauses.add(clause());
+            while (skipWhitespace()) {
+                String conjunction = null;
+                if (query.startsWith("AND ", position) || query.startsWith("OR ", position)) {
+                    conjunction = query.startsWith("AND ", position) ? "AND" : "OR";
+                    position += conjunction.length();
+                    skipWhitespace();
+                }
+                // Clauses that are only separated by whitespace are combined with AND
+                boolean isOr = "OR".equals(conjunction);
+                if (or != null && or != isOr) {
+                    throw invalidQuery("Search queries cannot combine AND and OR. Use separate queries instead.");
+                }
+                or = isOr;
+                clauses.add(clause());
+            }
+            if (clauses.size() > MAX_CLAUSES) {
+                throw invalidQuery(String.format("Search queries can have at most %d clauses.", MAX_CLAUSES));
+            }
+            return new SearchQuery<>(List.copyOf(clauses), Boolean.TRUE.equals(or));
+        }
+
+        private Clause<T> clause() throws ResponseCodeException {
+            boolean negated = false;
+            if (peek() == '-') {
+                negated = true;
+                position++;
+            }
+            int start = position;
+            while (position < query.length() && (Character.isLetterOrDigit(peek()) || peek() == '_' || peek() == '.')) {
+                position++;
+            }
+            String fieldName = query.substring(start, position);
+            if (fieldName.isEmpty()) {
+                throw parseError("Expected a field name");
+            }
+            String metadataKey = null;
+            if (fieldName.equals("metadata")) {
+                if (peek() != '[') {
+                    throw parseError("Expected metadata to be followed by a key, like metadata['key']");
+                }
+                position++;
+                metadataKey = quoted();
+                if (peek() != ']') {
+                    throw parseError("Expected ]");
+                }
+                position++;
+            }
+            Field<T> field = fields.get(fieldName);
+            if (field == null) {
+                throw invalidQuery(String.format(
+                        "Field `%s` is an unsupported search field for resource `%s`. See http://stripe.com/docs/search#query-fields-for-%s for a list of supported fields.",
+                        fieldName,
+                        resourceName,
+                        resourceName.replace('_', '-')));
+            }
+            Operator operator = operator();
+            String value;
+            char next = peek();
+            if (next == '\'' || next == '"') {
+                value = quoted();
+            } else {
+                int valueStart = position;
+                while (position < query.length() && !Character.isWhitespace(peek())) {
+                    position++;
+                }
+                value = query.substring(valueStart, position);
+                if (value.isEmpty()) {
+                    throw parseError("Expected a value");
+                }
+                if (value.equals("null")) {
+                    if (operator != Operator.EQUALS) {
+                        throw parseError("null can only be used with the : operator");
+                    }
+                    value = null;
+                }
+            }
+            if (operator == Operator.CONTAINS && value != null && value.length() < 3) {
+                throw invalidQuery("The ~ operator requires a value of at least 3 characters.");
+            }
+            boolean numeric = operator != Operator.EQUALS && operator != Operator.CONTAINS || field.name()
+                                                                                                     .equals("created");
+            if (numeric && value != null) {
+                try {
+                    Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw invalidQuery(String.format("The value for `%s` must be a number.", fieldName));
+                }
+            }
+            if (position < query.length() && !Character.isWhitespace(peek())) {
+                throw parseError("Expected whitespace after the value");
+            }
+            return new Clause<>(field, metadataKey, operator, value, negated);
+        }
+
+        private Operator operator() throws ResponseCodeException {
+            char next = peek();
+            position++;
+            switch (next) {
+                case ':' -> {
+                    return Operator.EQUALS;
+                }
+                case '~' -> {
+                    return Operator.CONTAINS;
+                }
+                case '>', '<' -> {
+                    boolean orEqual = peek() == '=';
+                    if (orEqual) {
+                        position++;
+                    }
+                    if (next == '>') {
+                        return orEqual ? Operator.GREATER_THAN_OR_EQUAL : Operator.GREATER_THAN;
+                    }
+                    return orEqual ? Operator.LESS_THAN_OR_EQUAL : Operator.LESS_THAN;
+                }
+                default -> {
+                    position--;
+                    throw parseError("Expected one of : ~ > >= < <=");
+                }
+            }
+        }
+
+        private String quoted() throws ResponseCodeException {
+            char quote = peek();
+            if (quote != '\'' && quote != '"') {
+                throw parseError("Expected a quoted string");
+            }
+            int end = query.indexOf(quote, position + 1);
+            if (end == -1) {
+                throw parseError("Unterminated string");
+            }
+            String value = query.substring(position + 1, end);
+            position = end + 1;
+            return value;
+        }
+
+        /**
+         * @return whether there's anything left after the whitespace
+         */
+        private boolean skipWhitespace() {
+            while (position < query.length() && Character.isWhitespace(peek())) {
+                position++;
+            }
+            return position < query.length();
+        }
+
+        private char peek() {
+            return position < query.length() ? query.charAt(position) : '\0';
+        }
+
+        private ResponseCodeException parseError(String message) {
+            return invalidQuery(String.format("There was an error parsing your query at position %d: %s.", position, message));
+        }
+    }
+}
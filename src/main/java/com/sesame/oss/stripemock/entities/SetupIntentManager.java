@@ -5,11 +5,13 @@ import com.sesame.oss.stripemock.util.Utilities;
 import com.stripe.model.SetupIntent;
 
 import java.time.Clock;
+import java.util.List;
 import java.util.Map;
 
 class SetupIntentManager extends AbstractEntityManager<SetupIntent> {
     protected SetupIntentManager(Clock clock, StripeEntities stripeEntities) {
-        super(stripeEntities, clock, SetupIntent.class, "seti", 24);
+        super(stripeEntities, clock, SetupIntent.class, "seti", 24, List.of(ListParameter.of("customer", SetupIntent::getCustomer),
+                                                                            ListParameter.of("payment_method", SetupIntent::getPaymentMethod)));
     }
 
     @Override
@@ -1,19 +1,30 @@
 package com.sesame.oss.stripemock.entities;
 
 import com.sesame.oss.stripemock.http.ResponseCodeException;
+import com.sesame.oss.stripemock.util.Utilities;
+import com.stripe.model.Account;
+import com.stripe.model.BalanceTransaction;
+import com.stripe.model.BalanceTransactionSource;
 import com.stripe.model.HasId;
 import com.stripe.model.StripeCollection;
 import com.stripe.net.ApiResource;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.time.Clock;
 import java.util.*;
+import java.util.function.ToLongFunction;
+import java.util.function.UnaryOperator;
 
 public class StripeEntities {
-    private final Map<Class<? extends ApiResource>, EntityManager<? extends ApiResource>> entityManagers = new HashMap<>();
+    private final Map<Class<? extends ApiResource>, EntityManager<? extends ApiResource>> entityManagers = new LinkedHashMap<>();
     private final Map<String, EntityManager<? extends ApiResource>> entityManagersByNormalizedEntityName = new HashMap<>();
-    private final Map<String, List<ParentCollection>> childToParentCollectionMappings = new HashMap<>();
+    private final EntityStores stores = new EntityStores();
+    private final EntityLocks locks = new EntityLocks();
+    private final IdIndex idIndex = new IdIndex(stores);
+    private final BalanceLedger balanceLedger = new BalanceLedger(stores, this);
+    /**
+     * The state right after all the entity managers were {@link EntityManager#bootstrap() bootstrapped}, which is what we go back to when cleared.
+     */
+    private final Snapshot initialState;
 
     public StripeEntities(Clock clock) {
         // As these entity managers will need to have access to each other, often in a circular dependency fashion,
@@ -36,11 +47,15 @@ public class StripeEntities {
         add(new BankAccountManager(clock, this));
         add(new ProductManager(clock, this));
         add(new AccountManager(clock, this));
+        initialState = snapshot();
     }
 
-    private void add(EntityManager<?> entityManager) {
+    private void add(AbstractEntityManager<?> entityManager) {
         entityManagers.put(entityManager.getEntityClass(), entityManager);
         entityManagersByNormalizedEntityName.put(entityManager.getNormalizedEntityName(), entityManager);
+        idIndex.register(entityManager.getIdPrefix(), entityManager);
+        // Building the adapter builds the adapters of everything the entity holds too, so the first request for each entity doesn't have to
+        Utilities.PRODUCER_GSON.getAdapter(entityManager.getEntityClass());
         entityManager.bootstrap();
     }
 
@@ -60,74 +75,239 @@ public class StripeEntities {
         return entityManager;
     }
 
+    /**
+     * @return all the entity managers, in the order they were registered
+     */
+    public Collection<EntityManager<? extends ApiResource>> getEntityManagers() {
+        return Collections.unmodifiableCollection(entityManagers.values());
+    }
+
+    /**
+     * Puts everything back into the state it was in right after construction. Rather than clearing and bootstrapping every entity manager again,
+     * this restores a snapshot taken at construction, so it takes constant time.
+     */
     public void clear() {
-        for (EntityManager<?> entityManager : entityManagers.values()) {
-            entityManager.clear();
-            entityManager.bootstrap();
-        }
-        childToParentCollectionMappings.clear();
+        restore(initialState);
     }
 
-    public Optional<?> getEntityById(String id) {
-        // This isn't very fast, and we could be more selective by using the prefix in the id, but it'll do for now.
-        // Also, there likely won't be a lot of entities in memory in any given unit test
-        return entityManagers.values()
-                             .stream()
-                             .map(entityManager -> safeGet(id, entityManager))
-                             .filter(Objects::nonNull)
-                             .findAny();
+    /**
+     * Captures the state of all the entities. This takes constant time, no matter how many entities there are, as nothing is copied.
+     * Entities are instead copied the first time they are changed after the snapshot.
+     * <p>
+     * This should not be called while requests are being processed, as the snapshot might then contain partially applied changes.
+     *
+     * @see #restore(Snapshot)
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this, stores.snapshot());
     }
 
-    void bindChildToParentCollection(Class<?> parentEntityType, String parentEntityId, String collectionGetterName, String childEntityId) {
-        childToParentCollectionMappings.computeIfAbsent(childEntityId, k -> new ArrayList<>())
-                                       .add(new ParentCollection(parentEntityType, parentEntityId, collectionGetterName));
+    /**
+     * Puts all the entities back into the state they were in when the snapshot was taken. This takes constant time, and the same snapshot can be
+     * restored any number of times.
+     * <p>
+     * This should not be called while requests are being processed.
+     *
+     * @throws IllegalArgumentException if the snapshot was taken from another instance
+     */
+    public void restore(Snapshot snapshot) {
+        if (snapshot.owner != this) {
+            throw new IllegalArgumentException("The snapshot was taken from another instance");
+        }
+        stores.restore(snapshot.versions);
     }
 
-    void unbindChildFromParentCollection(Class<?> parentEntityType, String parentEntityId, String collectionGetterName, String childEntityId) {
-        childToParentCollectionMappings.computeIfAbsent(childEntityId, k -> new ArrayList<>())
-                                       .remove(new ParentCollection(parentEntityType, parentEntityId, collectionGetterName));
+    <T> EntityStore<T> createStore(UnaryOperator<T> copier) {
+        return stores.create(copier);
     }
 
     /**
-     * This somewhat ugly hack solves the issue that entity references are not permanent. Any update to an entity recreates that entity from scratch.
-     * This means that any collections etc that held that entity will now hold an old object. We need to make sure that children in collections held
-     * by parents are updated.
+     * Creates the store that holds the entities of an entity manager. The ids in it are {@link IdIndex indexed}, so they can be found with
+     * {@link #getEntityById(String)}, and the entities are ordered by {@code created}, so they can be paged through.
+     *
+     * Stores of {@link BalanceTransactionSource balance transaction sources} also keep the {@link BalanceLedger balances} up to date.
      *
-     * @param childEntity the child that was just updated
-     * @param <P>         the type of the parent
-     * @param <C>         the type of the child
-     */
-    <P extends ApiResource & HasId, C extends HasId> void updateLists(C childEntity) {
-        List<ParentCollection> parentCollectionsThatReferenceTheChild = childToParentCollectionMappings.get(childEntity.getId());
-        if (parentCollectionsThatReferenceTheChild == null) {
-            return;
+     * @param listParameters the parameters the entities can be filtered on when listing, which the store keeps indexes for
+     */
+    <T> EntityStore<T> createStore(AbstractEntityManager<?> entityManager,
+                                   UnaryOperator<T> copier,
+                                   ToLongFunction<T> created,
+                                   List<ListParameter<T>> listParameters) {
+        EntityStore.Listener listener = idIndex.listenerFor(entityManager);
+        if (BalanceTransactionSource.class.isAssignableFrom(entityManager.getEntityClass())) {
+            listener = listener.and(balanceLedger.listenerFor(entityManager))
+                               .and(balanceTransactionListenerFor(entityManager));
         }
-        try {
-            for (ParentCollection parentCollectionThatReferencesTheChild : parentCollectionsThatReferenceTheChild) {
-                Class<P> parentType = (Class<P>) parentCollectionThatReferencesTheChild.parentEntityType();
-                EntityManager<P> parentEntityManager = getEntityManager(parentType);
-                P parent = parentEntityManager.get(parentCollectionThatReferencesTheChild.parentEntityId(), null)
-                                              .orElseThrow();
-                // It would have been nice to use something like Charge::getRefunds here, but it was too hard to get it to work
-                // with the types, since it would be in a collection anyway. Maybe there's a way to make it work, but for now,
-                // strings are going to have to do.
-                // Here I am, painting myself into a smaller and smaller corner with my design decisions =)
-                Method method = parentCollectionThatReferencesTheChild.parentEntityType()
-                                                                      .getMethod(parentCollectionThatReferencesTheChild.collectionGetterName());
-                StripeCollection<C> collection = (StripeCollection<C>) method.invoke(parent);
-                List<C> list = collection.getData();
-                for (int i = 0; i < list.size(); i++) {
-                    if (list.get(i)
-                            .getId()
-                            .equals(childEntity.getId())) {
-                        list.set(i, childEntity);
+        return stores.create(copier, created, listParameters, listener);
+    }
+
+    /**
+     * @return a listener that keeps the balance transactions of the sources stored by the entity manager up to date. The balance transaction
+     * manager is created after the managers of the sources, so it's only looked up once a source is stored.
+     */
+    private EntityStore.Listener balanceTransactionListenerFor(AbstractEntityManager<?> entityManager) {
+        return new EntityStore.Listener() {
+            @Override
+            public void added(String id) {
+                ((BalanceTransactionManager) getEntityManager(BalanceTransaction.class)).sourceStored((BalanceTransactionSource) entityManager.entities.get(id));
+            }
+
+            @Override
+            public void removed(String id) {
+                ((BalanceTransactionManager) getEntityManager(BalanceTransaction.class)).sourceRemoved(id);
+            }
+        };
+    }
+
+    /**
+     * @param stripeAccount the connected account, or {@code null} for the platform
+     * @return the balance of the account, by currency and then by balance transaction status, like {@code available}. This takes constant time,
+     * as the balances are kept up to date as money moves.
+     * @throws ResponseCodeException if the connected account doesn't exist
+     */
+    public Map<String, Map<String, Long>> getBalances(String stripeAccount) throws ResponseCodeException {
+        if (stripeAccount != null) {
+            // This will throw if the account isn't valid.
+            getEntityManager(Account.class).get(stripeAccount, stripeAccount);
+        }
+        return balanceLedger.balances(stripeAccount);
+    }
+
+    /**
+     * @param stripeAccount the connected account, or {@code null} for the platform
+     * @see #getBalances(String)
+     */
+    long getBalance(String stripeAccount, String currency, String status) {
+        return balanceLedger.balance(stripeAccount, currency, status);
+    }
+
+    /**
+     * @return the entity with the id, regardless of its type. Entities that can't be read without a specific stripe account, like connected accounts,
+     * are not returned.
+     */
+    public Optional<?> getEntityById(String id) {
+        EntityManager<?> entityManager = idIndex.find(id);
+        if (entityManager == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(safeGet(id, entityManager));
+    }
+
+    /**
+     * Locks the entities with the specified ids, so that nobody else can change them until the returned handle is closed.
+     *
+     * @see EntityLocks
+     */
+    EntityLocks.Held lock(Collection<String> ids) {
+        List<String> lockedIds = ids.stream()
+                                    .filter(Objects::nonNull)
+                                    .toList();
+        EntityLocks.Held held = locks.lock(lockedIds);
+        return () -> {
+            try {
+                // The entities might have been changed in place after they were fetched for update, so their revisions have to move on once
+                // they're done changing. Otherwise a response serialized in the middle of the change could be cached under the latest revision.
+                for (String id : lockedIds) {
+                    if (idIndex.find(id) instanceof AbstractEntityManager<?> entityManager) {
+                        entityManager.entities.touch(id);
                     }
                 }
+            } finally {
+                held.close();
             }
-        } catch (ResponseCodeException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-            // This shouldn't happen
-            throw new AssertionError(e);
+        };
+    }
+
+    EntityLocks.Held lock(String... ids) {
+        return lock(Arrays.asList(ids));
+    }
+
+    /**
+     * Like {@link EntityManager#get(String, String)}, except that the returned entity can be changed in place. The caller must hold the
+     * {@link #lock(Collection) lock} for the id.
+     */
+    <T extends ApiResource & HasId> Optional<T> getForUpdate(Class<T> entityClass, String id, String stripeAccount) throws ResponseCodeException {
+        return ((AbstractEntityManager<T>) getEntityManager(entityClass)).getForUpdate(id, stripeAccount);
+    }
+
+    /**
+     * @return a number that changes every time the entity, or anything it shows when it's serialized, might have changed, or {@code -1} if the entity
+     * isn't the one that is stored with its id, like a balance transaction, or if somebody is changing it right now. As long as the revision of an
+     * entity stays the same, so does its json.
+     * <p>
+     * Anything derived from the entity, like its json, should only be kept if this returns the same revision both before and after it was derived.
+     * The revision is read before checking the lock, so a writer that fetches the entity for update after the first call always changes the
+     * revision, and a writer that was already at it is either still holding the lock, or has moved the revision on when it released it.
+     */
+    public long getRevision(Object entity) {
+        if (!(entity instanceof HasId hasId) || hasId.getId() == null) {
+            return -1;
+        }
+        if (!(entityManagers.get(entity.getClass()) instanceof AbstractEntityManager<?> entityManager)) {
+            return -1;
         }
+        long revision = revision(entityManager, entity);
+        if (locks.isLocked(hasId.getId())) {
+            return -1;
+        }
+        return revision;
+    }
+
+    private static <T extends ApiResource & HasId> long revision(AbstractEntityManager<T> entityManager, Object entity) {
+        return entityManager.revision(entityManager.getEntityClass()
+                                                   .cast(entity));
+    }
+
+    /**
+     * @return the revision of the latest change to any entity of the class
+     * @see #getRevision(Object)
+     */
+    <T extends ApiResource & HasId> long getRevision(Class<T> entityClass) {
+        return ((AbstractEntityManager<T>) getEntityManager(entityClass)).entities.revision();
+    }
+
+    /**
+     * Updates the list indexes and everything derived from an entity, like its balance transaction, after an entity returned from
+     * {@link #getForUpdate(Class, String, String)} has been changed in place, in a way that affects what it's listed or searched by, like the status
+     * of an invoice, or what its balance transaction shows, like the refunds of a charge. The caller must hold the {@link #lock(Collection) lock} for the id.
+     */
+    <T extends ApiResource & HasId> void reindex(Class<T> entityClass, String id) {
+        ((AbstractEntityManager<T>) getEntityManager(entityClass)).reindex(id);
+    }
+
+    /**
+     * Adds a child to a collection of its parent, like a refund to the refunds of a charge. The collection only keeps the id of the child, and
+     * looks it up whenever it's read, so the parent always shows the latest version of the child, and changing the child never touches the parent.
+     * The caller must hold the {@link #lock(Collection) lock} for the parent.
+     *
+     * @param childClass the entity class the child is stored as, which might be more specific than the type of the collection
+     * @see ReferenceList
+     */
+    <C extends ApiResource & HasId> void addToCollection(StripeCollection<? super C> collection, Class<C> childClass, String childId) {
+        setData(collection, references(collection, childClass).with(childId));
+    }
+
+    /**
+     * Removes a child from a collection it was {@link #addToCollection(StripeCollection, Class, String) added} to. The caller must hold the
+     * {@link #lock(Collection) lock} for the parent.
+     */
+    <C extends ApiResource & HasId> void removeFromCollection(StripeCollection<? super C> collection, Class<C> childClass, String childId) {
+        setData(collection, references(collection, childClass).without(childId));
+    }
+
+    private <C extends ApiResource & HasId> ReferenceList<C> references(StripeCollection<? super C> collection, Class<C> childClass) {
+        // Collections that were just created, or copied through json, hold the children themselves, so we start from their ids
+        List<String> ids = collection.getData() instanceof ReferenceList<?> references ? references.ids() : collection.getData()
+                                                                                                                    .stream()
+                                                                                                                    .map(child -> ((HasId) child).getId())
+                                                                                                                    .toList();
+        return new ReferenceList<>(ids, ((AbstractEntityManager<C>) getEntityManager(childClass)).entities::get);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void setData(StripeCollection collection, List<?> data) {
+        // Somebody might be serializing the parent right now, so we replace the list rather than change it
+        collection.setData(data);
     }
 
     private static Object safeGet(String id, EntityManager<?> entityManager) {
@@ -141,7 +321,18 @@ public class StripeEntities {
         }
     }
 
-    private record ParentCollection(Class<?> parentEntityType,
-                                    String parentEntityId,
-                                    String collectionGetterName) {}
+    /**
+     * The state of all the entities at one point in time.
+     *
+     * @see #snapshot()
+     */
+    public static final class Snapshot {
+        private final StripeEntities owner;
+        private final List<EntityStore.Version<?>> versions;
+
+        private Snapshot(StripeEntities owner, List<EntityStore.Version<?>> versions) {
+            this.owner = owner;
+            this.versions = versions;
+        }
+    }
 }
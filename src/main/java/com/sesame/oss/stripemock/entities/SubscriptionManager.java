@@ -8,12 +8,13 @@ import com.stripe.net.ApiResource;
 import java.time.Clock;
 import java.time.Instant;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 class SubscriptionManager extends AbstractEntityManager<Subscription> {
     SubscriptionManager(Clock clock, StripeEntities stripeEntities) {
-        super(stripeEntities, clock, Subscription.class, "sub", 24);
+        super(stripeEntities, clock, Subscription.class, "sub", 24, List.of(ListParameter.of("customer", Subscription::getCustomer)));
     }
 
     @Override
@@ -38,7 +39,6 @@ class SubscriptionManager extends AbstractEntityManager<Subscription> {
             firstInvoice.getLines()
                         .getData()
                         .add(toInvoiceLineItem(subscriptionItem));
-            stripeEntities.bindChildToParentCollection(Invoice.class, firstInvoice.getId(), "getLines", subscriptionItem.getId());
         }
         // invoices that are part of a subscription are automatically finalized, meaning that they can't change.
         // This moves them from 'draft' to 'open'
@@ -77,8 +77,8 @@ class SubscriptionManager extends AbstractEntityManager<Subscription> {
     }
 
     private InvoiceLineItem toInvoiceLineItem(SubscriptionItem subscriptionItem) {
-        String json = Utilities.PRODUCER_GSON.toJson(subscriptionItem);
-        InvoiceLineItem invoiceLineItem = ApiResource.GSON.fromJson(json, InvoiceLineItem.class);
+        InvoiceLineItem invoiceLineItem = EntityPatcher.convert(subscriptionItem, InvoiceLineItem.class)
+                                                       .orElseGet(() -> ApiResource.GSON.fromJson(Utilities.PRODUCER_GSON.toJson(subscriptionItem), InvoiceLineItem.class));
         invoiceLineItem.setObject("line_item");
         invoiceLineItem.setId(Utilities.randomIdWithPrefix("il_tmp", 24));
 
@@ -94,21 +94,23 @@ class SubscriptionManager extends AbstractEntityManager<Subscription> {
 
     @Override
     public Optional<Subscription> delete(String id) throws ResponseCodeException {
-        Subscription subscription = entities.get(id);
-        if (subscription == null) {
-            return Optional.empty();
-        }
-        if (subscription.getStatus()
-                        .equals("canceled")) {
-            // todo: should we throw if we try to re-cancel?
+        try (EntityLocks.Held ignored = stripeEntities.lock(id)) {
+            Subscription subscription = entities.getForUpdate(id);
+            if (subscription == null) {
+                return Optional.empty();
+            }
+            if (subscription.getStatus()
+                            .equals("canceled")) {
+                // todo: should we throw if we try to re-cancel?
+                return Optional.of(subscription);
+            }
+            long nowInEpochSecond = Instant.now(clock)
+                                           .getEpochSecond();
+            subscription.setCanceledAt(nowInEpochSecond);
+            subscription.setEndedAt(nowInEpochSecond);
+            subscription.setStatus("canceled");
             return Optional.of(subscription);
         }
-        long nowInEpochSecond = Instant.now(clock)
-                                       .getEpochSecond();
-        subscription.setCanceledAt(nowInEpochSecond);
-        subscription.setEndedAt(nowInEpochSecond);
-        subscription.setStatus("canceled");
-        return Optional.of(subscription);
     }
 
     @Override
@@ -129,4 +131,10 @@ class SubscriptionManager extends AbstractEntityManager<Subscription> {
         }
         return super.parse(formData);
     }
+
+    @Override
+    protected List<SearchQuery.Field<Subscription>> getSearchFields() {
+        return List.of(SearchQuery.Field.indexedIgnoringCase("status", Subscription::getStatus),
+                       SearchQuery.Field.of("metadata", Subscription::getMetadata));
+    }
 }
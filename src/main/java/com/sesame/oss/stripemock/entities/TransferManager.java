@@ -5,16 +5,18 @@ import com.sesame.oss.stripemock.http.ResponseCodeException;
 import com.sesame.oss.stripemock.util.Utilities;
 import com.stripe.model.BalanceTransaction;
 import com.stripe.model.Transfer;
+import com.stripe.model.TransferReversal;
 import com.stripe.model.TransferReversalCollection;
 
 import java.time.Clock;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
 
 class TransferManager extends AbstractEntityManager<Transfer> {
     protected TransferManager(Clock clock, StripeEntities stripeEntities) {
-        super(stripeEntities, clock, Transfer.class, "tr", 24);
+        super(stripeEntities, clock, Transfer.class, "tr", 24, List.of(ListParameter.of("destination", Transfer::getDestination)));
     }
 
     @Override
@@ -46,10 +48,14 @@ class TransferManager extends AbstractEntityManager<Transfer> {
     }
 
     @Override
-    public List<Transfer> list(QueryParameters query, String stripeAccount) {
-        return entities.values()
-                       .stream()
-                       .filter(transfer -> stripeAccount == null || stripeAccount.equals(transfer.getDestination()))
-                       .toList();
+    long revision(Transfer transfer) {
+        long revision = super.revision(transfer);
+        // The reversals are looked up whenever the transfer is serialized, so a change to any reversal might change the transfer too
+        return revision == -1 ? -1 : Math.max(revision, stripeEntities.getRevision(TransferReversal.class));
+    }
+
+    @Override
+    protected Predicate<Transfer> listFilter(QueryParameters query, String stripeAccount) {
+        return transfer -> stripeAccount == null || stripeAccount.equals(transfer.getDestination());
     }
 }
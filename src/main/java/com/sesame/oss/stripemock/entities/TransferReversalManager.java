@@ -8,10 +8,10 @@ import com.stripe.model.Transfer;
 import com.stripe.model.TransferReversal;
 
 import java.time.Clock;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Predicate;
 
 class TransferReversalManager extends AbstractEntityManager<TransferReversal> {
     protected TransferReversalManager(Clock clock, StripeEntities stripeEntities) {
@@ -24,29 +24,30 @@ class TransferReversalManager extends AbstractEntityManager<TransferReversal> {
         if (!parentEntityType.equals("transfers")) {
             throw new UnsupportedOperationException("Reversals can't be attached to things that are not transfers");
         }
-        EntityManager<Transfer> transfersEntityManager = stripeEntities.getEntityManager(Transfer.class);
-        Transfer parentTransfer = transfersEntityManager.get(parentEntityId, stripeAccount)
-                                                        .orElseThrow(() -> ResponseCodeException.noSuchEntity(400, "transfers", parentEntityId));
-        if (!formData.containsKey("amount")) {
-            formData.put("amount", parentTransfer.getAmount());
+        // We're changing the transfer, so nobody else can be allowed to change it at the same time
+        try (EntityLocks.Held ignored = stripeEntities.lock(parentEntityId)) {
+            Transfer parentTransfer = stripeEntities.getForUpdate(Transfer.class, parentEntityId, stripeAccount)
+                                                    .orElseThrow(() -> ResponseCodeException.noSuchEntity(400, "transfers", parentEntityId));
+            // This has to be set before the reversal is stored, as that's when it's added to the balance of the destination of the transfer
+            formData.put("transfer", parentEntityId);
+            // Reversals are always in the currency of the transfer, even when only part of it is reversed
             formData.put("currency", parentTransfer.getCurrency());
-        }
+            if (!formData.containsKey("amount")) {
+                formData.put("amount", parentTransfer.getAmount());
+            }
 
-        TransferReversal transferReversal = add(formData, stripeAccount);
-        transferReversal.setTransfer(parentEntityId);
+            TransferReversal transferReversal = add(formData, stripeAccount);
 
-        parentTransfer.getReversals()
-                      .getData()
-                      .add(transferReversal);
-        stripeEntities.bindChildToParentCollection(Transfer.class, parentTransfer.getId(), "getReversals", transferReversal.getId());
-        long totalAmountReversed = parentTransfer.getReversals()
-                                                 .getData()
-                                                 .stream()
-                                                 .mapToLong(TransferReversal::getAmount)
-                                                 .sum();
-        parentTransfer.setReversed(Objects.equals(totalAmountReversed, parentTransfer.getAmount()));
-        parentTransfer.setAmountReversed(totalAmountReversed);
-        return transferReversal;
+            stripeEntities.addToCollection(parentTransfer.getReversals(), TransferReversal.class, transferReversal.getId());
+            long totalAmountReversed = parentTransfer.getReversals()
+                                                     .getData()
+                                                     .stream()
+                                                     .mapToLong(TransferReversal::getAmount)
+                                                     .sum();
+            parentTransfer.setReversed(Objects.equals(totalAmountReversed, parentTransfer.getAmount()));
+            parentTransfer.setAmountReversed(totalAmountReversed);
+            return transferReversal;
+        }
     }
 
     @Override
@@ -59,12 +60,8 @@ class TransferReversalManager extends AbstractEntityManager<TransferReversal> {
     }
 
     @Override
-    public List<TransferReversal> list(QueryParameters query, String stripeAccount) {
-        return entities.values()
-                       .stream()
-                       .filter(transferReversal -> stripeAccount == null ||
-                                                   stripeAccount.equals(getTransferOrThrow(stripeAccount, transferReversal).getDestination()))
-                       .toList();
+    protected Predicate<TransferReversal> listFilter(QueryParameters query, String stripeAccount) {
+        return transferReversal -> stripeAccount == null || stripeAccount.equals(getTransferOrThrow(stripeAccount, transferReversal).getDestination());
     }
 
     @Override
@@ -113,4 +110,9 @@ class TransferReversalManager extends AbstractEntityManager<TransferReversal> {
     public String getNormalizedEntityName() {
         return "reversals";
     }
+
+    @Override
+    public Optional<String> getParentEntityName() {
+        return Optional.of("transfers");
+    }
 }
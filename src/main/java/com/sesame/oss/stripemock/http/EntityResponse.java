@@ -1,13 +1,35 @@
 package com.sesame.oss.stripemock.http;
 
+import com.sesame.oss.stripemock.entities.Page;
+import com.stripe.model.HasId;
 import com.stripe.net.ApiResource;
 
 import java.util.List;
 
-sealed interface EntityResponse permits EntityResponse.Single, EntityResponse.Multiple {
+sealed interface EntityResponse permits EntityResponse.Single, EntityResponse.Multiple, EntityResponse.Search {
     record Single(int responseCode,
                   ApiResource responseEntity) implements EntityResponse {}
 
+    /**
+     * @param hasMore whether there are more entities after this page
+     */
     record Multiple(int responseCode,
-                    List<?> responseList) implements EntityResponse {}
+                    List<?> responseList,
+                    boolean hasMore) implements EntityResponse {
+        Multiple(int responseCode, Page<?> page) {
+            this(responseCode, page.data(), page.hasMore());
+        }
+    }
+
+    /**
+     * @param nextPage the token for the page after this one, or {@code null} if this is the last page
+     */
+    record Search(int responseCode,
+                  List<?> responseList,
+                  boolean hasMore,
+                  String nextPage) implements EntityResponse {
+        Search(int responseCode, Page<? extends HasId> page) {
+            this(responseCode, page.data(), page.hasMore(), Page.Request.nextPage(page));
+        }
+    }
 }
@@ -0,0 +1,143 @@
+package com.sesame.oss.stripemock.http;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sesame.oss.stripemock.entities.StripeEntities;
+import com.sesame.oss.stripemock.util.Utilities;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The expand paths of a request, like {@code customer} and {@code latest_invoice.subscription}, merged into a tree of the properties to expand.
+ * Each distinct set of paths is only split and merged once, and the plan is then shared by every request that expands the same paths.
+ * <p>
+ * The entities that are referenced are looked up through an {@link Expansion}, which lives for a single response, and remembers what each id
+ * expanded to. Expanding the same property on every entity in a list, where they all refer to the same customer, only looks up and serializes
+ * the customer once.
+ */
+final class ExpansionPlan {
+    /**
+     * Clients tend to use a handful of different expansions, so this is only here to keep odd clients from filling up the memory
+     */
+    private static final int MAX_CACHED_PLANS = 1024;
+    private static final Map<List<String>, ExpansionPlan> PLANS = new ConcurrentHashMap<>();
+    private final Node root = new Node(null, null);
+
+    private ExpansionPlan(List<String> paths) {
+        for (String path : paths) {
+            String[] pathParts = path.split("\\.");
+            // This is really only if this is a list, but afaik know other root level elements contain a 'data' field, so this is fine for now.
+            // It seems like this is lenient when dealing with lists. For balance transactions, when the list contains a mix of things, Stripe
+            // will simply ignore fields that don't exist in the underlying source.
+            // See com.sesame.oss.stripemock.BalanceTransactionTest.shouldListWithExpansions
+            boolean lenient = "data".equals(pathParts[0]);
+            int start = lenient ? 1 : 0;
+            Node node = root;
+            for (int i = start; i < pathParts.length; i++) {
+                node = node.child(pathParts[i], String.join(".", Arrays.copyOfRange(pathParts, start, i + 1)));
+                node.strict |= !lenient;
+            }
+        }
+    }
+
+    static ExpansionPlan of(List<String> paths) {
+        ExpansionPlan plan = PLANS.get(paths);
+        if (plan == null) {
+            plan = new ExpansionPlan(paths);
+            if (PLANS.size() < MAX_CACHED_PLANS) {
+                PLANS.putIfAbsent(List.copyOf(paths), plan);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @return a new expansion, which should be used for everything in one response, and then thrown away
+     */
+    Expansion start(StripeEntities stripeEntities) {
+        return new Expansion(stripeEntities);
+    }
+
+    final class Expansion {
+        private final StripeEntities stripeEntities;
+        // Lists can be expanded on several threads at the same time, so this has to be thread safe.
+        // Two threads might end up expanding the same id, but they both get the same result, so whichever is stored last is fine.
+        private final Map<Node, Map<String, JsonElement>> expanded = new ConcurrentHashMap<>();
+
+        private Expansion(StripeEntities stripeEntities) {
+            this.stripeEntities = stripeEntities;
+        }
+
+        JsonObject expand(Object value) throws ResponseCodeException {
+            JsonObject root = Utilities.PRODUCER_GSON.toJsonTree(value)
+                                                     .getAsJsonObject();
+            expand(root, ExpansionPlan.this.root);
+            return root;
+        }
+
+        private void expand(JsonObject parent, Node node) throws ResponseCodeException {
+            for (Node child : node.children.values()) {
+                JsonElement expandableFieldIdOrNull = parent.remove(child.name);
+                if (expandableFieldIdOrNull == null) {
+                    if (!child.strict) {
+                        continue;
+                    }
+                    throw new ResponseCodeException(400, String.format("This property cannot be expanded (%s).", child.path));
+                }
+                JsonElement expandedObject;
+                if (expandableFieldIdOrNull.isJsonObject()) {
+                    // This is either a list, which we currently have right in the main object for all our entities, or something that was
+                    // already expanded, so it stays as it is.
+                    expandedObject = expandableFieldIdOrNull;
+                    expand(expandedObject.getAsJsonObject(), child);
+                } else {
+                    expandedObject = resolve(expandableFieldIdOrNull.getAsString(), child);
+                }
+                parent.add(child.name, expandedObject);
+            }
+        }
+
+        /**
+         * @return the entity with the id, with the properties below the node expanded. This is the same object for every time the same id is
+         * expanded at the same node, so it must not be changed once it's been returned.
+         */
+        private JsonElement resolve(String id, Node node) throws ResponseCodeException {
+            Map<String, JsonElement> expandedAtNode = expanded.computeIfAbsent(node, ignored -> new ConcurrentHashMap<>());
+            JsonElement expandedObject = expandedAtNode.get(id);
+            if (expandedObject == null) {
+                Object entity = stripeEntities.getEntityById(id)
+                                              .orElseThrow(() -> ResponseCodeException.noSuchEntity(400, node.name, id));
+                expandedObject = Utilities.PRODUCER_GSON.toJsonTree(entity);
+                expand(expandedObject.getAsJsonObject(), node);
+                expandedAtNode.put(id, expandedObject);
+            }
+            return expandedObject;
+        }
+    }
+
+    private static final class Node {
+        /**
+         * The property to expand
+         */
+        private final String name;
+        /**
+         * The path from the root to the property, which is what we tell the client if it can't be expanded
+         */
+        private final String path;
+        private final Map<String, Node> children = new LinkedHashMap<>();
+        /**
+         * Whether any of the paths through this node requires the property to exist
+         */
+        private boolean strict;
+
+        private Node(String name, String path) {
+            this.name = name;
+            this.path = path;
+        }
+
+        private Node child(String name, String path) {
+            return children.computeIfAbsent(name, ignored -> new Node(name, path));
+        }
+    }
+}
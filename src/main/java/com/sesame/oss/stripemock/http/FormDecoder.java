@@ -0,0 +1,273 @@
+package com.sesame.oss.stripemock.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes {@code application/x-www-form-urlencoded} data, like request bodies and query strings, into the nested structure that stripe-java flattened it
+ * from. This is done in a single pass over the raw bytes, building the nested maps and arrays as we go.
+ * <p>
+ * Keys look like {@code cash_balance[settings][reconciliation_mode]=automatic}, and each bracketed part is a level of nesting.
+ * If the first key seen inside a bracket is a number, like in {@code expand[0]=customer}, that level is an array. Lists of primitives become an
+ * {@code Object[]}, and lists of complex objects become a stripe collection, i.e. a map with {@code "object": "list"} and the array as {@code "data"}.
+ * The exception is {@code metadata}, where the keys are free-form and are always kept as keys, even if they happen to be numbers.
+ * <p>
+ * A parameter without a value, like {@code metadata[key]=}, decodes to {@code null}. This happens for calls to {@code putMetadata("key", null)}, and
+ * when someone passes an {@code EmptyParam} in to unset a value.
+ */
+final class FormDecoder {
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded;charset=UTF-8";
+    /**
+     * Nobody sends arrays anywhere near this big, and it keeps a malicious index from making us allocate a huge array.
+     */
+    private static final int MAX_ARRAY_INDEX = 100_000;
+
+    private final byte[] input;
+    private final int end;
+    private final byte[] scratch;
+    private final List<String> keyPath = new ArrayList<>();
+    /**
+     * Every array we create, in the order they were created. Children are always created after their parents, so finishing them in reverse order means
+     * that all the children of an array are finished by the time we get to the array itself.
+     */
+    private final List<IndexedValues> arrays = new ArrayList<>();
+
+    private FormDecoder(byte[] input, int offset, int length) {
+        this.input = input;
+        this.end = offset + length;
+        // A decoded key or value is never longer than its encoded form
+        this.scratch = new byte[length];
+    }
+
+    static Map<String, Object> decodeRequestBody(byte[] requestBody, String contentType) throws ResponseCodeException {
+        if (FORM_CONTENT_TYPE.equals(contentType)) {
+            return decode(requestBody, 0, requestBody.length);
+        } else if (contentType == null) {
+            // This happens for all GET calls
+            return null;
+        } else {
+            throw new IllegalArgumentException("Unsupported content type: " + contentType);
+        }
+    }
+
+    /**
+     * @param rawQuery the query string as it was sent, i.e. still url-encoded
+     */
+    static Map<String, Object> decodeQuery(String rawQuery) throws ResponseCodeException {
+        if (rawQuery == null) {
+            return new HashMap<>();
+        }
+        byte[] bytes = rawQuery.getBytes(StandardCharsets.UTF_8);
+        return decode(bytes, 0, bytes.length);
+    }
+
+    static Map<String, Object> decode(byte[] input, int offset, int length) throws ResponseCodeException {
+        return new FormDecoder(input, offset, length).decode(offset);
+    }
+
+    private Map<String, Object> decode(int position) throws ResponseCodeException {
+        Map<String, Object> values = new HashMap<>();
+        while (position < end) {
+            int parameterEnd = indexOf('&', position, end);
+            if (!isBlank(position, parameterEnd)) {
+                decodeParameter(values, position, parameterEnd);
+            }
+            position = parameterEnd + 1;
+        }
+        for (int i = arrays.size() - 1; i >= 0; i--) {
+            arrays.get(i)
+                  .finish();
+        }
+        return values;
+    }
+
+    private void decodeParameter(Map<String, Object> values, int start, int parameterEnd) throws ResponseCodeException {
+        int keyEnd = indexOf('=', start, parameterEnd);
+        keyPath.clear();
+        int position = start;
+        int segmentEnd = indexOf('[', position, keyEnd);
+        keyPath.add(decodeString(position, segmentEnd));
+        position = segmentEnd;
+        while (position < keyEnd) {
+            // We're at a '[', so the segment runs until the matching ']'
+            segmentEnd = indexOf(']', position + 1, keyEnd);
+            keyPath.add(decodeString(position + 1, segmentEnd));
+            position = indexOf('[', segmentEnd, keyEnd);
+        }
+        // No '=' at all, or nothing after it, both mean that there's no value
+        String value = keyEnd >= parameterEnd - 1 ? null : decodeString(keyEnd + 1, parameterEnd);
+
+        Object container = values;
+        for (int i = 0; i < keyPath.size() - 1; i++) {
+            container = childContainer(container, keyPath.get(i), keyPath.get(i + 1), start, parameterEnd);
+        }
+        set(container, keyPath.getLast(), value, start, parameterEnd);
+    }
+
+    /**
+     * Finds, or creates, the container that is stored under {@code key} in {@code parent}.
+     *
+     * @param childKey the key that will be looked up in the returned container. This decides whether a new container is an array or a map.
+     */
+    private Object childContainer(Object parent, String key, String childKey, int start, int parameterEnd) throws ResponseCodeException {
+        Object existing = switch (parent) {
+            case IndexedValues array -> array.get(index(key, start, parameterEnd));
+            case Map<?, ?> map -> map.get(key);
+            default -> throw new IllegalStateException("Unexpected container: " + parent);
+        };
+        if (existing instanceof Map || existing instanceof IndexedValues) {
+            return existing;
+        }
+        Object child;
+        if (!"metadata".equals(key) && isIndex(childKey)) {
+            IndexedValues array = new IndexedValues(parent, key);
+            arrays.add(array);
+            child = array;
+        } else {
+            child = new HashMap<String, Object>();
+        }
+        set(parent, key, child, start, parameterEnd);
+        return child;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void set(Object container, String key, Object value, int start, int parameterEnd) throws ResponseCodeException {
+        switch (container) {
+            case IndexedValues array -> array.set(index(key, start, parameterEnd), value);
+            case Map<?, ?> map -> ((Map<String, Object>) map).put(key, value);
+            default -> throw new IllegalStateException("Unexpected container: " + container);
+        }
+    }
+
+    private int index(String key, int start, int parameterEnd) throws ResponseCodeException {
+        if (!isIndex(key)) {
+            throw new ResponseCodeException(400,
+                                            String.format("Invalid array index '%s' in parameter: %s",
+                                                          key,
+                                                          new String(input, start, parameterEnd - start, StandardCharsets.UTF_8)));
+        }
+        return Integer.parseInt(key);
+    }
+
+    private static boolean isIndex(String key) {
+        if (key.isEmpty() || key.length() > 6) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return Integer.parseInt(key) <= MAX_ARRAY_INDEX;
+    }
+
+    /**
+     * Percent-decodes {@code input[from, to)}, and turns '+' into a space, exactly like {@link java.net.URLDecoder} does.
+     */
+    private String decodeString(int from, int to) throws ResponseCodeException {
+        boolean plainAscii = true;
+        for (int i = from; i < to; i++) {
+            byte b = input[i];
+            if (b == '%' || b == '+' || b < 0) {
+                plainAscii = false;
+                break;
+            }
+        }
+        if (plainAscii) {
+            // This is the common case for keys, ids and most values, and it lets the string skip the utf-8 decoding
+            return new String(input, from, to - from, StandardCharsets.ISO_8859_1);
+        }
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            byte b = input[i];
+            if (b == '+') {
+                scratch[length++] = ' ';
+            } else if (b == '%') {
+                int high = i + 1 < to ? Character.digit(input[i + 1], 16) : -1;
+                int low = i + 2 < to ? Character.digit(input[i + 2], 16) : -1;
+                if (high == -1 || low == -1) {
+                    throw new ResponseCodeException(400,
+                                                    "Invalid url encoding in parameter: " + new String(input, from, to - from, StandardCharsets.UTF_8));
+                }
+                scratch[length++] = (byte) ((high << 4) | low);
+                i += 2;
+            } else {
+                scratch[length++] = b;
+            }
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (input[i] == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private boolean isBlank(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!Character.isWhitespace(input[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * An array that is still being built. Once all the parameters have been decoded, it replaces itself in its parent with the finished array.
+     */
+    private static final class IndexedValues {
+        private final Object parent;
+        private final String key;
+        private Object[] values = new Object[4];
+        private int size;
+
+        private IndexedValues(Object parent, String key) {
+            this.parent = parent;
+            this.key = key;
+        }
+
+        private Object get(int index) {
+            return index < size ? values[index] : null;
+        }
+
+        private void set(int index, Object value) {
+            if (index >= values.length) {
+                values = Arrays.copyOf(values, Math.max(index + 1, values.length * 2));
+            }
+            values[index] = value;
+            size = Math.max(size, index + 1);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void finish() {
+            Object[] data = Arrays.copyOf(values, size);
+            Object finished;
+            // Lists of primitives should just be an array, but list of complex objects should be a stripe collection
+            // We assume that if one's a map, the other ones are too
+            if (data[0] instanceof Map) {
+                Map<String, Object> stripeCollection = new HashMap<>();
+                stripeCollection.put("object", "list");
+                stripeCollection.put("data", data);
+                finished = stripeCollection;
+            } else {
+                finished = data;
+            }
+            // If a later parameter replaced this array with a plain value, the later parameter wins
+            switch (parent) {
+                case IndexedValues array when array.get(Integer.parseInt(key)) == this -> array.values[Integer.parseInt(key)] = finished;
+                case Map<?, ?> map when map.get(key) == this -> ((Map<String, Object>) map).put(key, finished);
+                default -> {
+                }
+            }
+        }
+    }
+}
@@ -1,122 +1,152 @@
 package com.sesame.oss.stripemock.http;
 
 import com.sesame.oss.stripemock.util.Utilities;
-import com.sun.net.httpserver.Headers;
 
-import java.util.HashMap;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * This uses the Headers from the built-in HttpServer. They're actually not immutable, so they're not a good data structure, but they'll have to do for now.
+ * Remembers the response to each request with an idempotency key, so that retries get the very same response.
+ * <p>
+ * Requests with different keys never wait for each other. A retry that arrives while the original request is still being processed waits for the
+ * original to finish, for at most {@link #inFlightTimeout}, and then gets its response.
  */
 class IdempotencyManager {
-    private final Lock lock = new ReentrantLock();
+    static final Duration DEFAULT_IN_FLIGHT_TIMEOUT = Duration.ofSeconds(30);
     public static final IdempotentRequest CALL_DIRECTLY = NonThrowingCallable::call;
-    private final Map<String, Request> requests = new HashMap<>();
+    private final Map<String, Request> requests = new ConcurrentHashMap<>();
+    private final Duration inFlightTimeout;
+
+    IdempotencyManager() {
+        this(DEFAULT_IN_FLIGHT_TIMEOUT);
+    }
+
+    /**
+     * @param inFlightTimeout how long a retry waits for the original request to finish before it gives up with a 429
+     */
+    IdempotencyManager(Duration inFlightTimeout) {
+        this.inFlightTimeout = inFlightTimeout;
+    }
 
     public IdempotentRequest start(String idempotencyKey,
                                    String method,
                                    QueryParameters queryParameters,
-                                   String requestBody,
-                                   Headers requestHeaders,
+                                   byte[] requestBody,
+                                   RequestHeaders requestHeaders,
                                    String requestId) throws ResponseCodeException {
         if (idempotencyKey == null || !"POST".equals(method)) {
             return CALL_DIRECTLY;
         }
-        lock.lock();
-        try {
-            Request existingRequest = requests.get(idempotencyKey);
-            if (existingRequest == null) {
-                Request newRequest = new Request(requestBody, requestHeaders, queryParameters);
-                requests.put(idempotencyKey, newRequest);
-                return new IdempotentRequest() {
-                    @Override
-                    public RawResponse finish(NonThrowingCallable<RawResponse> processor) {
-                        // This lock right here makes ALL idempotent requests single-threaded, as they all wait for THIS LOCK.
-                        // We can probably do better, but it's also probably not needed for normal testing.
-                        lock.lock();
-                        try {
-                            RawResponse response = processor.call();
-                            newRequest.setResponse(response);
-                            return response;
-                        } catch (Throwable e) {
-                            RawResponse response = new RawResponse(500,
-                                                                   Utilities.toApiError(e.getMessage(), null, null, null, null),
-                                                                   Utilities.defaultHeaders(idempotencyKey, requestId),
-                                                                   requestId);
-                            newRequest.setResponse(response);
-                            return response;
-                        } finally {
-                            lock.unlock();
-                        }
-                    }
-                };
-            } else {
-                if (existingRequest.isIncomplete()) {
-                    // We could just pause the processing, and return as soon as it is completed, but that's too complicated for now.
-                    throw new ResponseCodeException(429, "The original request hasn't completed yet. Please try again.");
+        Request newRequest = new Request(requestBody, requestHeaders, queryParameters);
+        Request existingRequest = requests.putIfAbsent(idempotencyKey, newRequest);
+        if (existingRequest == null) {
+            return processor -> {
+                RawResponse response;
+                try {
+                    // The response is kept for replays, so it has to be serialized now, while the entities look like they do right now
+                    response = processor.call()
+                                        .materialized();
+                } catch (Throwable e) {
+                    response = new RawResponse(500,
+                                               Utilities.toApiError(e.getMessage(), null, null, null, null),
+                                               Utilities.defaultHeaders(idempotencyKey, requestId),
+                                               requestId);
                 }
-                if (existingRequest.matchesInput(requestBody, queryParameters, requestHeaders)) {
-                    return new IdempotentRequest() {
-                        @Override
-                        public RawResponse finish(NonThrowingCallable<RawResponse> processor) {
-                            return existingRequest.getResponse();
-                        }
-                    };
-                } else {
-                    return processor -> {
-                        //language=json
-                        String body = String.format("""
-                                                    {
-                                                      "error": {
-                                                          "code": "idempotency_key_in_use",
-                                                          "type": "idempotency_error",
-                                                          "message": "Keys for idempotent requests can only be used with the same parameters they were first used with. Try using a key other than '%s' if you meant to execute a different request."
-                                                        }
-                                                    }
-                                                    """, idempotencyKey);
-                        return new RawResponse(400, body, Utilities.defaultHeaders(idempotencyKey, requestId), requestId);
-                    };
-                }
-            }
-        } finally {
-            lock.unlock();
+                // Anybody that retried while we were processing is waiting for this
+                newRequest.response.complete(response);
+                return response;
+            };
+        }
+        if (!existingRequest.matchesInput(requestBody, queryParameters, requestHeaders)) {
+            return processor -> {
+                //language=json
+                String body = String.format("""
+                                            {
+                                              "error": {
+                                                  "code": "idempotency_key_in_use",
+                                                  "type": "idempotency_error",
+                                                  "message": "Keys for idempotent requests can only be used with the same parameters they were first used with. Try using a key other than '%s' if you meant to execute a different request."
+                                                }
+                                            }
+                                            """, idempotencyKey);
+                return new RawResponse(400, body, Utilities.defaultHeaders(idempotencyKey, requestId), requestId);
+            };
         }
+        RawResponse response = existingRequest.awaitResponse(inFlightTimeout);
+        return processor -> response;
+    }
+
+    /**
+     * Forgets all the idempotency keys. Requests that are in flight still finish, and requests that are waiting for them still get their responses,
+     * but they won't be replayed to anybody else.
+     */
+    public void clear() {
+        requests.clear();
     }
 
     private static final class Request {
-        private final String requestBody;
-        private final Headers requestHeaders;
+        /**
+         * This changes with every request, even retries, so it's never compared.
+         */
+        private static final String TELEMETRY_HEADER = "X-Stripe-Client-Telemetry";
+        private final byte[] requestBody;
+        /**
+         * Nobody changes the headers of a request once it has arrived, so we can hold on to the view rather than copy it.
+         */
+        private final RequestHeaders requestHeaders;
         private final QueryParameters queryParameters;
-        private RawResponse response;
+        private final CompletableFuture<RawResponse> response = new CompletableFuture<>();
 
-        public Request(String requestBody, Headers requestHeaders, QueryParameters queryParameters) {
+        public Request(byte[] requestBody, RequestHeaders requestHeaders, QueryParameters queryParameters) {
             this.requestBody = requestBody;
             this.queryParameters = queryParameters;
-            this.requestHeaders = new Headers();
-            this.requestHeaders.putAll(requestHeaders);
-            this.requestHeaders.remove("X-stripe-client-telemetry");
-        }
-
-        public boolean isIncomplete() {
-            return response == null;
+            this.requestHeaders = requestHeaders;
         }
 
-        public void setResponse(RawResponse response) {
-            this.response = response;
+        /**
+         * @return the response, as soon as the request has been processed
+         * @throws ResponseCodeException if the request is still being processed after the timeout
+         */
+        public RawResponse awaitResponse(Duration timeout) throws ResponseCodeException {
+            try {
+                return response.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread()
+                      .interrupt();
+                throw new ResponseCodeException(429, "The original request hasn't completed yet. Please try again.");
+            } catch (TimeoutException e) {
+                throw new ResponseCodeException(429, "The original request hasn't completed yet. Please try again.");
+            } catch (ExecutionException e) {
+                // The future is only ever completed with a response
+                throw new AssertionError(e);
+            }
         }
 
-        public RawResponse getResponse() {
-            return response;
+        public boolean matchesInput(byte[] requestBody, QueryParameters queryParameters, RequestHeaders requestHeaders) {
+            return Arrays.equals(this.requestBody, requestBody) && sameHeaders(this.requestHeaders, requestHeaders) &&
+                   sameHeaders(requestHeaders, this.requestHeaders) && this.queryParameters.equals(queryParameters);
         }
 
-        public boolean matchesInput(String requestBody, QueryParameters queryParameters, Headers requestHeaders) {
-            Headers comparableRequestHeaders = new Headers();
-            comparableRequestHeaders.putAll(requestHeaders);
-            comparableRequestHeaders.remove("X-stripe-client-telemetry");
-            return this.requestBody.equals(requestBody) && this.requestHeaders.equals(comparableRequestHeaders) && this.queryParameters.equals(queryParameters);
+        /**
+         * @return whether every header of the first request, apart from the telemetry, has the same values in the second request
+         */
+        private static boolean sameHeaders(RequestHeaders first, RequestHeaders second) {
+            for (Map.Entry<String, List<String>> header : first.map()
+                                                               .entrySet()) {
+                if (!header.getKey()
+                           .equalsIgnoreCase(TELEMETRY_HEADER) && !header.getValue()
+                                                                         .equals(second.get(header.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
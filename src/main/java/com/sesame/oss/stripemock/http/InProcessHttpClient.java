@@ -0,0 +1,56 @@
+package com.sesame.oss.stripemock.http;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.StripeException;
+import com.stripe.net.*;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * A stripe-java {@link HttpClient} that hands each {@link StripeRequest} straight to the {@link StripeApiHttpHandler}, without going through a socket.
+ * The requests go through exactly the same pipeline as requests that arrive over http, so the responses are identical.
+ */
+public class InProcessHttpClient extends HttpClient {
+    private final StripeApiHttpHandler handler;
+
+    public InProcessHttpClient(StripeApiHttpHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public StripeResponse request(StripeRequest request) throws StripeException {
+        RawResponse rawResponse = process(request);
+        return new StripeResponse(rawResponse.code(), HttpHeaders.of(rawResponse.headers()), JsonResponseEncoder.toString(rawResponse.body()));
+    }
+
+    @Override
+    public StripeResponseStream requestStream(StripeRequest request) throws StripeException {
+        RawResponse rawResponse = process(request);
+        return new StripeResponseStream(rawResponse.code(),
+                                        HttpHeaders.of(rawResponse.headers()),
+                                        new ByteArrayInputStream(JsonResponseEncoder.toBytes(rawResponse.body())));
+    }
+
+    private RawResponse process(StripeRequest request) throws ApiConnectionException {
+        URI requestURI;
+        try {
+            // Going via the URI gives us the same view of the request as the http server has
+            requestURI = request.url()
+                                .toURI();
+        } catch (URISyntaxException e) {
+            throw new ApiConnectionException("Invalid request url: " + request.url(), e);
+        }
+        byte[] requestBody = new byte[0];
+        String contentType = null;
+        HttpContent content = request.content();
+        if (content != null) {
+            // The http client would normally send this as a header, based on the content
+            contentType = content.contentType();
+            requestBody = content.byteArrayContent();
+        }
+        return handler.process(request.method()
+                                      .name(), requestURI, RequestHeaders.of(request.headers(), contentType), requestBody);
+    }
+}
@@ -0,0 +1,250 @@
+package com.sesame.oss.stripemock.http;
+
+import com.google.gson.stream.JsonWriter;
+import com.sesame.oss.stripemock.util.Utilities;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes {@link ResponseBody response bodies} as UTF-8 without building any intermediate strings.
+ * <p>
+ * Each thread keeps a buffer and a writer that are reused between requests. A response is serialized into the buffer, and if the whole response fits
+ * within {@link #CHUNKED_THRESHOLD_BYTES}, it is sent with a {@code Content-Length}. If the response grows beyond that, the response headers are sent
+ * with chunked encoding, what was buffered so far is written, and the rest of the response is written straight into the exchange's output stream.
+ */
+final class JsonResponseEncoder {
+    static final int CHUNKED_THRESHOLD_BYTES = 64 * 1024;
+    /**
+     * If a buffer grew larger than this while producing a response, we don't keep it around for the next response on the same thread.
+     */
+    private static final int MAX_RETAINED_BUFFER_BYTES = 4 * CHUNKED_THRESHOLD_BYTES;
+    private static final ThreadLocal<Encoder> ENCODERS = ThreadLocal.withInitial(Encoder::new);
+
+    private JsonResponseEncoder() {
+    }
+
+    static void send(HttpExchange exchange, int code, ResponseBody body) throws IOException {
+        switch (body) {
+            case ResponseBody.Bytes(byte[] bytes) -> {
+                exchange.sendResponseHeaders(code, bytes.length);
+                try (OutputStream responseBody = exchange.getResponseBody()) {
+                    responseBody.write(bytes);
+                }
+            }
+            case ResponseBody.Json(ResponseBody.JsonBodyWriter writer) -> {
+                try (OutputStream responseBody = exchange.getResponseBody()) {
+                    Encoder encoder = ENCODERS.get();
+                    SpillingOutputStream output = new SpillingOutputStream(encoder.buffer, exchange, code, responseBody);
+                    try {
+                        encoder.encode(writer, output);
+                        output.finish();
+                    } finally {
+                        encoder.release();
+                    }
+                }
+            }
+        }
+    }
+
+    static byte[] toBytes(ResponseBody body) {
+        return switch (body) {
+            case ResponseBody.Bytes(byte[] bytes) -> bytes;
+            case ResponseBody.Json(ResponseBody.JsonBodyWriter writer) -> {
+                Encoder encoder = ENCODERS.get();
+                try {
+                    encoder.encode(writer, encoder.buffer);
+                    yield encoder.buffer.toByteArray();
+                } catch (IOException e) {
+                    // We're only writing to memory, so this shouldn't happen
+                    throw new UncheckedIOException(e);
+                } finally {
+                    encoder.release();
+                }
+            }
+        };
+    }
+
+    static String toString(ResponseBody body) {
+        return switch (body) {
+            case ResponseBody.Bytes(byte[] bytes) -> new String(bytes, StandardCharsets.UTF_8);
+            case ResponseBody.Json(ResponseBody.JsonBodyWriter writer) -> {
+                Encoder encoder = ENCODERS.get();
+                try {
+                    encoder.encode(writer, encoder.buffer);
+                    yield encoder.buffer.toString(StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    // We're only writing to memory, so this shouldn't happen
+                    throw new UncheckedIOException(e);
+                } finally {
+                    encoder.release();
+                }
+            }
+        };
+    }
+
+    private static final class Encoder {
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream(8 * 1024);
+        private final Utf8Writer utf8Writer = new Utf8Writer();
+
+        private void encode(ResponseBody.JsonBodyWriter bodyWriter, OutputStream target) throws IOException {
+            utf8Writer.target = target;
+            JsonWriter jsonWriter = Utilities.PRODUCER_GSON.newJsonWriter(utf8Writer);
+            bodyWriter.write(jsonWriter);
+            jsonWriter.flush();
+        }
+
+        private void release() {
+            utf8Writer.reset();
+            if (buffer.size() > MAX_RETAINED_BUFFER_BYTES) {
+                buffer = new ByteArrayOutputStream(8 * 1024);
+            } else {
+                buffer.reset();
+            }
+        }
+    }
+
+    /**
+     * Buffers the response up to {@link #CHUNKED_THRESHOLD_BYTES}, and switches to writing straight to the exchange with chunked encoding beyond that.
+     */
+    private static final class SpillingOutputStream extends OutputStream {
+        private final ByteArrayOutputStream buffer;
+        private final HttpExchange exchange;
+        private final int code;
+        private final OutputStream responseBody;
+        private boolean spilled;
+
+        private SpillingOutputStream(ByteArrayOutputStream buffer, HttpExchange exchange, int code, OutputStream responseBody) {
+            this.buffer = buffer;
+            this.exchange = exchange;
+            this.code = code;
+            this.responseBody = responseBody;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (spilled) {
+                responseBody.write(bytes, offset, length);
+                return;
+            }
+            buffer.write(bytes, offset, length);
+            if (buffer.size() > CHUNKED_THRESHOLD_BYTES) {
+                spilled = true;
+                // A response length of 0 means chunked encoding
+                exchange.sendResponseHeaders(code, 0);
+                buffer.writeTo(responseBody);
+            }
+        }
+
+        private void finish() throws IOException {
+            if (!spilled) {
+                exchange.sendResponseHeaders(code, buffer.size());
+                buffer.writeTo(responseBody);
+            }
+            responseBody.flush();
+        }
+    }
+
+    /**
+     * Encodes characters as UTF-8 straight into the target stream, using a scratch buffer that is reused between responses.
+     */
+    private static final class Utf8Writer extends Writer {
+        private final byte[] scratch = new byte[8 * 1024];
+        private int position;
+        private char pendingHighSurrogate;
+        private OutputStream target;
+
+        @Override
+        public void write(int c) throws IOException {
+            writeChar((char) c);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                writeChar(chars[i]);
+            }
+        }
+
+        @Override
+        public void write(String string, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                writeChar(string.charAt(i));
+            }
+        }
+
+        private void writeChar(char c) throws IOException {
+            if (position > scratch.length - 4) {
+                flushScratch();
+            }
+            if (pendingHighSurrogate != 0) {
+                char high = pendingHighSurrogate;
+                pendingHighSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    scratch[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    scratch[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    scratch[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    scratch[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                    return;
+                }
+                // A lone high surrogate can't be encoded, so do what String.getBytes() does and replace it
+                scratch[position++] = '?';
+                writeChar(c);
+                return;
+            }
+            if (c < 0x80) {
+                scratch[position++] = (byte) c;
+            } else if (c < 0x800) {
+                scratch[position++] = (byte) (0xC0 | (c >> 6));
+                scratch[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHighSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                scratch[position++] = '?';
+            } else {
+                scratch[position++] = (byte) (0xE0 | (c >> 12));
+                scratch[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                scratch[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        private void flushScratch() throws IOException {
+            if (position > 0) {
+                target.write(scratch, 0, position);
+                position = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (pendingHighSurrogate != 0) {
+                pendingHighSurrogate = 0;
+                scratch[position++] = '?';
+            }
+            flushScratch();
+            target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        private void reset() {
+            position = 0;
+            pendingHighSurrogate = 0;
+            target = null;
+        }
+    }
+}
@@ -1,20 +1,21 @@
 package com.sesame.oss.stripemock.http;
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import com.sesame.oss.stripemock.StripeMock;
 import com.sesame.oss.stripemock.entities.StripeEntities;
 import com.sesame.oss.stripemock.util.Utilities;
+import com.stripe.model.HasId;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 class JsonResponseProducer {
     private final StripeEntities stripeEntities;
+    private final ResponseCache responseCache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
 
     JsonResponseProducer(StripeEntities stripeEntities) {
         this.stripeEntities = stripeEntities;
@@ -22,120 +23,162 @@ class JsonResponseProducer {
 
     // todo: what happens in stripe if we expand an object that doesn't yet have an id set? Is it just ignored?
 
-    String toJson(Object responseBody, Map<String, Object> requestBodyFormData, QueryParameters queryParameters) throws ResponseCodeException {
+    ResponseBody toJson(Object responseBody, Map<String, Object> requestBodyFormData, QueryParameters queryParameters) throws ResponseCodeException {
 
         if (responseBody == null) {
-            return "";
+            return ResponseBody.of("");
         }
         List<String> expandPaths = getExpandPaths(requestBodyFormData, queryParameters);
         if (expandPaths.isEmpty()) {
-            return Utilities.PRODUCER_GSON.toJson(responseBody);
+            ResponseBody.Json json = new ResponseBody.Json(writer -> Utilities.PRODUCER_GSON.toJson(responseBody, responseBody.getClass(), writer));
+            long revision = stripeEntities.getRevision(responseBody);
+            if (revision == -1) {
+                return json;
+            }
+            String id = ((HasId) responseBody).getId();
+            byte[] cached = responseCache.get(id, revision);
+            if (cached == null) {
+                cached = JsonResponseEncoder.toBytes(json);
+                // If the entity started changing while we were serializing it, what we have might be a mix of the old and the new entity
+                if (stripeEntities.getRevision(responseBody) == revision) {
+                    responseCache.put(id, revision, cached);
+                }
+            }
+            return new ResponseBody.Bytes(cached);
         } else {
-            return Utilities.PRODUCER_GSON.toJson(expand(responseBody, expandPaths));
+            // Expansion can fail, so it has to happen now, rather than when the body is written
+            JsonObject expanded = ExpansionPlan.of(expandPaths)
+                                               .start(stripeEntities)
+                                               .expand(responseBody);
+            return new ResponseBody.Json(writer -> Utilities.PRODUCER_GSON.toJson(expanded, writer));
         }
     }
 
-    String toJson(List<?> values, Map<String, Object> requestBodyFormData, QueryParameters queryParameters, String url) throws ResponseCodeException {
+    /**
+     * @param hasMore whether there are more entities after this page of values
+     */
+    ResponseBody toJson(List<?> values, boolean hasMore, Map<String, Object> requestBodyFormData, QueryParameters queryParameters, String url)
+            throws ResponseCodeException {
         if (values == null) {
             //language=json
-            return String.format("""
-                                 {
-                                  "object": "list",
-                                  "url": "%s",
-                                  "has_more": false,
-                                  "total_count": 0,
-                                  "data": []
-                                 }
-                                 """, url);
+            return ResponseBody.of(String.format("""
+                                                 {
+                                                  "object": "list",
+                                                  "url": "%s",
+                                                  "has_more": false,
+                                                  "total_count": 0,
+                                                  "data": []
+                                                 }
+                                                 """, url));
         } else {
-            List<String> expandPaths = getExpandPaths(requestBodyFormData, queryParameters);
-            JsonObject root = new JsonObject();
-            root.addProperty("object", "list");
-            root.addProperty("has_more", false);
-            root.addProperty("url", url);
-            root.addProperty("total_count", values.size());
-            JsonArray data = new JsonArray();
-            root.add("data", data);
-            if (expandPaths.isEmpty()) {
-                for (Object value : values) {
-                    data.add(Utilities.PRODUCER_GSON.toJsonTree(value));
-                }
+            List<?> data = expandAll(values, requestBodyFormData, queryParameters);
+            return new ResponseBody.Json(writer -> {
+                writer.beginObject();
+                writer.name("object")
+                      .value("list");
+                writer.name("has_more")
+                      .value(hasMore);
+                writer.name("url")
+                      .value(url);
+                writer.name("total_count")
+                      .value(values.size());
+                writer.name("data");
+                writeData(writer, data);
+                writer.endObject();
+            });
+        }
+    }
+
+    /**
+     * @param nextPage the token for the page after this one, or {@code null} if this is the last page
+     */
+    ResponseBody toSearchJson(List<?> values,
+                              boolean hasMore,
+                              String nextPage,
+                              Map<String, Object> requestBodyFormData,
+                              QueryParameters queryParameters,
+                              String url) throws ResponseCodeException {
+        List<?> data = expandAll(values, requestBodyFormData, queryParameters);
+        return new ResponseBody.Json(writer -> {
+            writer.beginObject();
+            writer.name("object")
+                  .value("search_result");
+            writer.name("has_more")
+                  .value(hasMore);
+            writer.name("next_page");
+            if (nextPage == null) {
+                // Stripe sends an explicit null, and the writer would otherwise skip it
+                boolean serializeNulls = writer.getSerializeNulls();
+                writer.setSerializeNulls(true);
+                writer.nullValue();
+                writer.setSerializeNulls(serializeNulls);
             } else {
-                for (Object value : values) {
-                    data.add(expand(value, expandPaths));
-                }
+                writer.value(nextPage);
             }
-            return Utilities.PRODUCER_GSON.toJson(root);
+            writer.name("url")
+                  .value(url);
+            writer.name("data");
+            writeData(writer, data);
+            writer.endObject();
+        });
+    }
+
+    private List<?> expandAll(List<?> values, Map<String, Object> requestBodyFormData, QueryParameters queryParameters) throws ResponseCodeException {
+        List<String> expandPaths = getExpandPaths(requestBodyFormData, queryParameters);
+        // The entities of the list often refer to the same entities, which are only looked up once for the whole list.
+        ExpansionPlan.Expansion expansion = expandPaths.isEmpty() ? null : ExpansionPlan.of(expandPaths)
+                                                                                        .start(stripeEntities);
+        int parallelEncodingThreshold = StripeMock.getParallelEncodingThreshold();
+        if (parallelEncodingThreshold > 0 && values.size() >= parallelEncodingThreshold) {
+            return encodeInParallel(values, expansion);
         }
+        if (expansion == null) {
+            return values;
+        }
+        // Expansion can fail, so it has to happen now, rather than when the body is written.
+        List<JsonObject> expandedValues = new ArrayList<>(values.size());
+        for (Object value : values) {
+            expandedValues.add(expansion.expand(value));
+        }
+        return expandedValues;
     }
 
-    private JsonObject expand(Object value, List<String> pathsToExpand) throws ResponseCodeException {
-        JsonObject root = Utilities.PRODUCER_GSON.toJsonTree(value)
-                                                 .getAsJsonObject();
-        for (String pathToExpand : pathsToExpand) {
-            String[] pathParts = pathToExpand.split("\\.");
-            JsonObject parent = root;
-            for (int i = 0; i < pathParts.length; i++) {
-                String pathPart = pathParts[i];
-                if (i == 0 && "data".equals(pathPart)) {
-                    // This is really only if this is a list, but afaik know other root level elements contain a 'data' field, so this is fine for now.
-                    continue;
-                }
-                JsonElement expandableFieldIdOrNull = parent.remove(pathPart);
-                if (expandableFieldIdOrNull == null) {
-                    if ("data".equals(pathParts[0])) {
-                        // It seems like this is lenient when dealing with lists.
-                        // For balance transactions, when the list contains a mix of things, Stripe will simply ignore
-                        // fields that don't exist in the underlying source.
-                        // See com.sesame.oss.stripemock.BalanceTransactionTest.shouldListWithExpansions
-                        break;
-                    }
-                    throw new ResponseCodeException(400,
-                                                    String.format("This property cannot be expanded (%s).",
-                                                                  Arrays.stream(pathParts)
-                                                                        .limit(i + 1)
-                                                                        .collect(Collectors.joining("."))));
-                }
-                JsonElement expandedObject;
-                if (expandableFieldIdOrNull.isJsonObject()) {
-                    JsonObject expandableField = expandableFieldIdOrNull.getAsJsonObject();
-                    if (isList(expandableField)) {
-                        JsonArray data = expandableField.getAsJsonArray("data");
-                        if (data.isEmpty()) {
-                            // We currently have the lists right in the main object for all our entities.
-                            // While that might change in the future, for now we can actually just return the list itself.
-                            // If it's empty when we get here, it'll be empty in the object too.
-                            // We should keep this branch, though, to make it clear what the distinction is in the future.
-                            expandedObject = expandableField;
-                        } else {
-                            // This was already full of data and expanded, so restore the state
-                            expandedObject = expandableField;
-                        }
-                    } else {
-                        // todo: what do we actually need to do here?
-                        expandedObject = expandableField;
-                    }
-                } else {
-                    String expandableFieldId = expandableFieldIdOrNull.getAsString();
-                    Object entity = stripeEntities.getEntityById(expandableFieldId)
-                                                  .orElseThrow(() -> ResponseCodeException.noSuchEntity(400, pathPart, expandableFieldId));
-
-                    expandedObject = Utilities.PRODUCER_GSON.toJsonTree(entity);
-                }
-                parent.add(pathPart, expandedObject);
-                parent = expandedObject.getAsJsonObject();
-            }
+    /**
+     * Expands and serializes each of the values on the common fork join pool. This happens before the response is written, just like the expansion
+     * would, so any errors can still be sent to the client.
+     *
+     * @param expansion the expansion to apply to each value, or {@code null} if nothing should be expanded
+     * @return the serialized values, in the same order
+     */
+    private static List<Encoded> encodeInParallel(List<?> values, ExpansionPlan.Expansion expansion) throws ResponseCodeException {
+        try {
+            return values.parallelStream()
+                         .map(value -> {
+                             try {
+                                 return new Encoded(expansion == null ? Utilities.PRODUCER_GSON.toJson(value) :
+                                                    Utilities.PRODUCER_GSON.toJson(expansion.expand(value)));
+                             } catch (ResponseCodeException e) {
+                                 throw new ExpansionFailed(e);
+                             }
+                         })
+                         .toList();
+        } catch (ExpansionFailed e) {
+            throw e.getCause();
         }
-        return root;
     }
 
-    private boolean isList(JsonObject object) {
-        return object.has("object") &&
-               object.getAsJsonPrimitive("object")
-                     .isString() &&
-               object.getAsJsonPrimitive("object")
-                     .getAsString()
-                     .equals("list");
+    private static void writeData(JsonWriter writer, List<?> data) throws IOException {
+        writer.beginArray();
+        for (Object value : data) {
+            if (value instanceof Encoded(String json)) {
+                writer.jsonValue(json);
+            } else if (value instanceof JsonElement element) {
+                Utilities.PRODUCER_GSON.toJson(element, writer);
+            } else {
+                Utilities.PRODUCER_GSON.toJson(value, value.getClass(), writer);
+            }
+        }
+        writer.endArray();
     }
 
     private List<String> getExpandPaths(Map<String, Object> requestBodyFormData, QueryParameters queryParameters) {
@@ -146,14 +189,27 @@ class JsonResponseProducer {
                 expandPaths.add((String) path);
             }
         }
-        Pattern expandQueryParameterPattern = Pattern.compile("expand\\[\\d+]");
-        for (String parameter : queryParameters.getParameters()) {
-            if (expandQueryParameterPattern.matcher(parameter)
-                                           .matches()) {
-                expandPaths.add(queryParameters.getFirst(parameter)
-                                               .orElseThrow());
+        if (queryParameters.get("expand") instanceof Object[] pathsToExpand) {
+            for (Object path : pathsToExpand) {
+                expandPaths.add((String) path);
             }
         }
         return expandPaths;
     }
+
+    /**
+     * A value that has already been serialized
+     */
+    private record Encoded(String json) {}
+
+    private static final class ExpansionFailed extends RuntimeException {
+        private ExpansionFailed(ResponseCodeException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized ResponseCodeException getCause() {
+            return (ResponseCodeException) super.getCause();
+        }
+    }
 }
@@ -1,38 +1,37 @@
 package com.sesame.oss.stripemock.http;
 
-import java.util.*;
-
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * The query parameters of a request, decoded by the {@link FormDecoder} into the same nested structure as a request body.
+ * Thus {@code expand[0]=customer} is available as an array under {@code expand}, and {@code created[gte]=123} as a map under {@code created}.
+ */
 public class QueryParameters {
     private final String wholeQueryParameterString;
-    private final Map<String, List<String>> keyValuePairs = new HashMap<>();
+    private final Map<String, Object> values;
 
-    public QueryParameters(String wholeQueryParameterString) {
+    /**
+     * @param wholeQueryParameterString the raw, i.e. still url-encoded, query string
+     */
+    public QueryParameters(String wholeQueryParameterString) throws ResponseCodeException {
         this.wholeQueryParameterString = wholeQueryParameterString;
-        if (wholeQueryParameterString != null) {
-            for (String pair : wholeQueryParameterString.split("&")) {
-                String[] pairParts = pair.split("=");
-                List<String> values = keyValuePairs.computeIfAbsent(pairParts[0], ignored -> new ArrayList<>());
-                if (pairParts.length == 2) {
-                    values.add(pairParts[1]);
-                }
-            }
-        }
+        this.values = FormDecoder.decodeQuery(wholeQueryParameterString);
     }
 
-    public Collection<String> getParameters() {
-        return Collections.unmodifiableSet(keyValuePairs.keySet());
+    /**
+     * @return the decoded value of the parameter, which is either a string, an {@code Object[]} or a map, depending on how the parameter was nested
+     */
+    public Object get(String key) {
+        return values.get(key);
     }
 
     public Optional<String> getFirst(String key) {
-        List<String> values = keyValuePairs.get(key);
-        if (values == null) {
-            return Optional.empty();
-        }
-        if (!values.isEmpty()) {
-            return Optional.ofNullable(values.getFirst());
-        } else {
-            return Optional.empty();
+        if (values.get(key) instanceof String value) {
+            return Optional.of(value);
         }
+        return Optional.empty();
     }
 
     @Override
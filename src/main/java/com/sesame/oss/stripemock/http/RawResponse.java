@@ -3,8 +3,21 @@ package com.sesame.oss.stripemock.http;
 import com.sun.net.httpserver.Headers;
 
 record RawResponse(int code,
-                   String body,
+                   ResponseBody body,
                    Headers headers,
                    String requestId) {
 
+    RawResponse(int code, String body, Headers headers, String requestId) {
+        this(code, ResponseBody.of(body), headers, requestId);
+    }
+
+    /**
+     * @return a response where the body has been fully serialized, which means that it is safe to keep around, for example for idempotent replays.
+     */
+    RawResponse materialized() {
+        if (body instanceof ResponseBody.Bytes) {
+            return this;
+        }
+        return new RawResponse(code, new ResponseBody.Bytes(JsonResponseEncoder.toBytes(body)), headers, requestId);
+    }
 }
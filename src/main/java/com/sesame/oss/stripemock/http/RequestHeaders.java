@@ -0,0 +1,85 @@
+package com.sesame.oss.stripemock.http;
+
+import com.stripe.net.HttpHeaders;
+import com.sun.net.httpserver.Headers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only view of the headers of a request, whether it arrived over http or {@link InProcessHttpClient in-process}, so neither has to copy its
+ * headers to get them through the pipeline. Names are case-insensitive.
+ */
+interface RequestHeaders {
+    /**
+     * @return the first value of the header, or {@code null} if there's no such header
+     */
+    String getFirst(String name);
+
+    /**
+     * @return all the values of the header, or {@code null} if there's no such header
+     */
+    List<String> get(String name);
+
+    /**
+     * @return all the headers, which can't be changed. The names might be in any case, so look up values with {@link #get(String)}.
+     */
+    Map<String, List<String>> map();
+
+    /**
+     * @param headers the headers of a request that arrived over http
+     */
+    static RequestHeaders of(Headers headers) {
+        Map<String, List<String>> map = Collections.unmodifiableMap(headers);
+        return new RequestHeaders() {
+            @Override
+            public String getFirst(String name) {
+                return headers.getFirst(name);
+            }
+
+            @Override
+            public List<String> get(String name) {
+                return headers.get(name);
+            }
+
+            @Override
+            public Map<String, List<String>> map() {
+                return map;
+            }
+        };
+    }
+
+    /**
+     * @param headers     the headers stripe-java sent the request with
+     * @param contentType the type of the request body, which the http client would normally have sent as a header, or {@code null} if there's no
+     *                    body. It's left out of {@link #map()}, as stripe-java doesn't list it among the headers either.
+     */
+    static RequestHeaders of(HttpHeaders headers, String contentType) {
+        Map<String, List<String>> map = Collections.unmodifiableMap(headers.map());
+        return new RequestHeaders() {
+            @Override
+            public String getFirst(String name) {
+                if (contentType != null && name.equalsIgnoreCase("Content-Type")) {
+                    return contentType;
+                }
+                return headers.firstValue(name)
+                              .orElse(null);
+            }
+
+            @Override
+            public List<String> get(String name) {
+                if (contentType != null && name.equalsIgnoreCase("Content-Type")) {
+                    return List.of(contentType);
+                }
+                List<String> values = headers.allValues(name);
+                return values.isEmpty() ? null : values;
+            }
+
+            @Override
+            public Map<String, List<String>> map() {
+                return map;
+            }
+        };
+    }
+}
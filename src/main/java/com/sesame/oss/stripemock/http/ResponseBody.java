@@ -0,0 +1,31 @@
+package com.sesame.oss.stripemock.http;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The body of a response. Entities are not turned into strings up front. Instead, they are written straight into the output by the
+ * {@link JsonResponseEncoder} when the response is sent.
+ */
+sealed interface ResponseBody permits ResponseBody.Bytes, ResponseBody.Json {
+    static ResponseBody of(String body) {
+        return new Bytes(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A body that has already been serialized, such as errors and responses stored for idempotent replays.
+     */
+    record Bytes(byte[] bytes) implements ResponseBody {}
+
+    /**
+     * A body that will be serialized when it is written. This must not be able to fail for any reason other than I/O, as the response code might
+     * already have been sent by the time it is called. Anything that can fail, like expansion, has to happen before this is created.
+     */
+    record Json(JsonBodyWriter writer) implements ResponseBody {}
+
+    interface JsonBodyWriter {
+        void write(JsonWriter jsonWriter) throws IOException;
+    }
+}
@@ -0,0 +1,45 @@
+package com.sesame.oss.stripemock.http;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The json of entities, as it was sent, keyed by the id and the {@link com.sesame.oss.stripemock.entities.StripeEntities#getRevision(Object) revision}
+ * of the entity. An entity looks the same every time it has the same revision, so entries never have to be invalidated. They are just never looked up
+ * again once the entity changes, and are evicted, least recently used first, once the cache holds more than {@link #maxBytes}.
+ * <p>
+ * This is what lets clients that poll an entity, waiting for it to change, be served without serializing the same entity over and over again.
+ */
+final class ResponseCache {
+    static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+
+    ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized byte[] get(String id, long revision) {
+        return entries.get(new Key(id, revision));
+    }
+
+    synchronized void put(String id, long revision, byte[] json) {
+        if (json.length > maxBytes) {
+            return;
+        }
+        byte[] previous = entries.put(new Key(id, revision), json);
+        bytes += json.length - (previous == null ? 0 : previous.length);
+        Iterator<Map.Entry<Key, byte[]>> eldest = entries.entrySet()
+                                                         .iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next()
+                           .getValue().length;
+            eldest.remove();
+        }
+    }
+
+    private record Key(String id,
+                       long revision) {}
+}
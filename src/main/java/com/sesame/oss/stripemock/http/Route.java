@@ -0,0 +1,15 @@
+package com.sesame.oss.stripemock.http;
+
+/**
+ * A route that the mock responds to.
+ *
+ * @param method the http method, like {@code POST}
+ * @param path   the path, where path parameters are in curly braces, like {@code /v1/payment_intents/{id}/confirm}
+ */
+public record Route(String method,
+                    String path) {
+    @Override
+    public String toString() {
+        return method + " " + path;
+    }
+}
@@ -0,0 +1,106 @@
+package com.sesame.oss.stripemock.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trie of all the routes, keyed on the path segments. Literal segments are matched before path parameters, so {@code /v1/charges/search} wins over
+ * {@code /v1/charges/{id}}. Each request is dispatched by walking the path once, without splitting it up front, and without any backtracking.
+ */
+final class RouteTable<H> {
+    private final Node<H> root = new Node<>();
+    private final List<Route> routes = new ArrayList<>();
+    private int maxParameters;
+
+    /**
+     * @param path the path, where path parameters are in curly braces, like {@code /v1/payment_intents/{id}/confirm}
+     */
+    void add(String method, String path, H handler) {
+        Node<H> node = root;
+        int parameters = 0;
+        for (String segment : path.substring(1)
+                                  .split("/")) {
+            if (segment.startsWith("{") && segment.endsWith("}")) {
+                if (node.parameter == null) {
+                    node.parameter = new Node<>();
+                }
+                node = node.parameter;
+                parameters++;
+            } else {
+                node = node.literals.computeIfAbsent(segment, ignored -> new Node<>());
+            }
+        }
+        if (node.handlers.putIfAbsent(method, handler) != null) {
+            throw new IllegalStateException("Route already exists: " + method + " " + path);
+        }
+        maxParameters = Math.max(maxParameters, parameters);
+        routes.add(new Route(method, path));
+    }
+
+    /**
+     * @return the handler for the route, along with the values of the path parameters, in the order they appear in the path
+     * @throws ResponseCodeException if there is no such route
+     */
+    Match<H> match(String method, String path) throws ResponseCodeException {
+        Node<H> node = root;
+        String[] parameters = new String[maxParameters];
+        int parameterCount = 0;
+        int position = 0;
+        while (position < path.length()) {
+            int segmentEnd = path.indexOf('/', position);
+            if (segmentEnd == -1) {
+                segmentEnd = path.length();
+            }
+            if (segmentEnd > position) {
+                String segment = path.substring(position, segmentEnd);
+                Node<H> next = node.literals.get(segment);
+                if (next == null) {
+                    next = node.parameter;
+                    if (next == null) {
+                        throw unrecognizedRequest(method, path);
+                    }
+                    parameters[parameterCount++] = segment;
+                }
+                node = next;
+            }
+            position = segmentEnd + 1;
+        }
+        H handler = node.handlers.get(method);
+        if (handler == null) {
+            throw unrecognizedRequest(method, path);
+        }
+        return new Match<>(handler, parameters);
+    }
+
+    /**
+     * @return all the routes, in the order they were added
+     */
+    List<Route> routes() {
+        return Collections.unmodifiableList(routes);
+    }
+
+    private static ResponseCodeException unrecognizedRequest(String method, String path) {
+        // This is what stripe responds with for both unknown paths, and known paths with the wrong method
+        return new ResponseCodeException(404,
+                                         String.format(
+                                                 "Unrecognized request URL (%s: %s). Please see https://stripe.com/docs or we can help at https://support.stripe.com/.",
+                                                 method,
+                                                 path),
+                                         null,
+                                         "invalid_request_error",
+                                         null,
+                                         null);
+    }
+
+    record Match<H>(H handler,
+                    String[] parameters) {}
+
+    private static final class Node<H> {
+        private final Map<String, Node<H>> literals = new HashMap<>();
+        private final Map<String, H> handlers = new HashMap<>();
+        private Node<H> parameter;
+    }
+}
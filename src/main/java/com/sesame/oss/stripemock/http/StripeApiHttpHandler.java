@@ -1,8 +1,8 @@
 package com.sesame.oss.stripemock.http;
 
 import com.sesame.oss.stripemock.StripeMock;
-import com.sesame.oss.stripemock.entities.StripeEntities;
 import com.sesame.oss.stripemock.http.EntityResponse.Multiple;
+import com.sesame.oss.stripemock.http.EntityResponse.Search;
 import com.sesame.oss.stripemock.http.EntityResponse.Single;
 import com.sesame.oss.stripemock.util.Utilities;
 import com.sun.net.httpserver.Headers;
@@ -11,7 +11,6 @@ import com.sun.net.httpserver.HttpHandler;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
@@ -20,25 +19,37 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class StripeApiHttpHandler implements HttpHandler {
-    private final IdempotencyManager idempotencyManager = new IdempotencyManager();
-    private final Parser parser = new Parser();
+    private final Tenants tenants;
 
-    private final JsonResponseProducer jsonResponseProducer;
-    private final EntityRequestHandler requestHandler;
+    public StripeApiHttpHandler(Tenants tenants) {
+        this.tenants = tenants;
+    }
 
-    public StripeApiHttpHandler(StripeEntities stripeEntities) {
-        this.jsonResponseProducer = new JsonResponseProducer(stripeEntities);
-        this.requestHandler = new EntityRequestHandler(stripeEntities);
+    /**
+     * @return every route that the mock responds to. These are the same for every tenant.
+     */
+    public List<Route> getRoutes() {
+        return tenants.getDefault()
+                      .getRequestHandler()
+                      .getRoutes();
     }
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
+        RawResponse rawResponse =
+                process(exchange.getRequestMethod(), exchange.getRequestURI(), RequestHeaders.of(exchange.getRequestHeaders()), readInputFully(exchange));
+        sendResponse(exchange, rawResponse);
+    }
+
+    /**
+     * Runs a request through the whole pipeline, regardless of whether it arrived over http or {@link InProcessHttpClient in-process}.
+     *
+     * @return the response, including any headers that should be sent back to the client
+     */
+    RawResponse process(String method, URI requestURI, RequestHeaders requestHeaders, byte[] requestBody) {
         String requestId = Utilities.randomIdWithPrefix("req", 14);
-        String method = exchange.getRequestMethod();
-        URI requestURI = exchange.getRequestURI();
-        String query = requestURI.getQuery();
-        Headers requestHeaders = exchange.getRequestHeaders();
-        String requestBody = readInputFully(exchange);
+        // The decoder takes care of the url-decoding, so we want the query exactly as it was sent
+        String query = requestURI.getRawQuery();
 
         if (StripeMock.isLogRequests()) {
             String message = """
@@ -49,13 +60,30 @@ public class StripeApiHttpHandler implements HttpHandler {
                              Request-Id: %s
                              """;
             Logger.getLogger("stripe-mock-requests")
-                  .log(Level.INFO, String.format(message, method, requestURI, query == null ? "" : query, requestHeaders, requestBody, requestId));
+                  .log(Level.INFO, String.format(message,
+                                           method,
+                                           requestURI,
+                                           query == null ? "" : query,
+                                           requestHeaders.map(),
+                                           new String(requestBody, StandardCharsets.UTF_8),
+                                           requestId));
         }
 
         RawResponse rawResponse = processRequest(requestURI, query, requestHeaders, method, requestBody, requestId);
-        Headers responseHeaders = sendResponse(exchange, rawResponse, requestId);
+        if (!requestId.equals(rawResponse.requestId())) {
+            // If the request ids are different in the request and the response, this was a replay of an idempotent request.
+            // The stored response is shared between all replays, so we can't add the headers to it directly.
+            // todo: ideally we'd like to do all of this in the IdempotencyManager
+            Headers responseHeaders = new Headers();
+            responseHeaders.putAll(rawResponse.headers());
+            responseHeaders.add("Original-Request", rawResponse.requestId());
+            responseHeaders.add("Idempotent-Replayed", "true");
+            rawResponse = new RawResponse(rawResponse.code(), rawResponse.body(), responseHeaders, rawResponse.requestId());
+        }
 
         if (StripeMock.isLogRequests()) {
+            // We need the body as a string to log it, so there's no point in streaming it
+            rawResponse = rawResponse.materialized();
             String message = """
                                                           
                              Response to request: %s
@@ -64,34 +92,26 @@ public class StripeApiHttpHandler implements HttpHandler {
                              Body: %s
                              """;
             Logger.getLogger("stripe-mock-responses")
-                  .log(Level.INFO, String.format(message, requestId, rawResponse.code(), responseHeaders, rawResponse.body()));
+                  .log(Level.INFO,
+                       String.format(message, requestId, rawResponse.code(), rawResponse.headers(), JsonResponseEncoder.toString(rawResponse.body())));
         }
+        return rawResponse;
     }
 
-    private Headers sendResponse(HttpExchange exchange, RawResponse rawResponse, String requestId) throws IOException {
-        Headers responseHeaders = exchange.getResponseHeaders();
-        responseHeaders.putAll(rawResponse.headers());
-        if (!requestId.equals(rawResponse.requestId())) {
-            // If the request ids are different in the request and the response, this was a replay of an idempotent request
-            // todo: ideally we'd like to do all of this in the IdempotencyManager
-            responseHeaders.add("Original-Request", rawResponse.requestId());
-            responseHeaders.add("Idempotent-Replayed", "true");
-        }
-        byte[] responseBodyBytes = rawResponse.body()
-                                              .getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(rawResponse.code(), responseBodyBytes.length);
-        try (OutputStream responseBody = exchange.getResponseBody()) {
-            responseBody.write(responseBodyBytes);
-            responseBody.flush();
-        }
-        return responseHeaders;
+    private void sendResponse(HttpExchange exchange, RawResponse rawResponse) throws IOException {
+        exchange.getResponseHeaders()
+                .putAll(rawResponse.headers());
+        JsonResponseEncoder.send(exchange, rawResponse.code(), rawResponse.body());
     }
 
-    private RawResponse processRequest(URI requestURI, String query, Headers requestHeaders, String method, String requestBody, String requestId) {
+    private RawResponse processRequest(URI requestURI, String query, RequestHeaders requestHeaders, String method, byte[] requestBody, String requestId) {
         try {
-            String[] path = requestURI.getPath()
-                                      .split("/");
+            String path = requestURI.getPath();
             QueryParameters queryParameters = new QueryParameters(query);
+            Tenant tenant = tenants.resolve(requestHeaders);
+            EntityRequestHandler requestHandler = tenant.getRequestHandler();
+            JsonResponseProducer jsonResponseProducer = tenant.getJsonResponseProducer();
+            IdempotencyManager idempotencyManager = tenant.getIdempotencyManager();
 
             String idempotencyKey = requestHeaders.getFirst("Idempotency-Key");
             return idempotencyManager.start(idempotencyKey, method, queryParameters, requestBody, requestHeaders, requestId)
@@ -104,7 +124,7 @@ public class StripeApiHttpHandler implements HttpHandler {
                                          Headers responseHeaders = Utilities.defaultHeaders(idempotencyKey, requestId);
                                          try {
                                              Map<String, Object> requestBodyFormData =
-                                                     parser.parseRequestBody(requestBody, requestHeaders.getFirst("Content-Type"));
+                                                     FormDecoder.decodeRequestBody(requestBody, requestHeaders.getFirst("Content-Type"));
                                              EntityResponse response =
                                                      requestHandler.handleRequest(method, path, queryParameters, requestHeaders, requestBodyFormData);
                                              return switch (response) {
@@ -114,13 +134,24 @@ public class StripeApiHttpHandler implements HttpHandler {
                                                                                                                                      queryParameters),
                                                                                                          responseHeaders,
                                                                                                          requestId);
-                                                 case Multiple(int code, List<?> entities) -> new RawResponse(code,
-                                                                                                              jsonResponseProducer.toJson(entities,
-                                                                                                                                          requestBodyFormData,
-                                                                                                                                          queryParameters,
-                                                                                                                                          requestURI.getPath()),
-                                                                                                              responseHeaders,
-                                                                                                              requestId);
+                                                 case Multiple(int code, List<?> entities, boolean hasMore) -> new RawResponse(code,
+                                                                                                                               jsonResponseProducer.toJson(entities,
+                                                                                                                                                           hasMore,
+                                                                                                                                                           requestBodyFormData,
+                                                                                                                                                           queryParameters,
+                                                                                                                                                           path),
+                                                                                                                               responseHeaders,
+                                                                                                                               requestId);
+                                                 case Search(int code, List<?> entities, boolean hasMore, String nextPage) -> new RawResponse(code,
+                                                                                                                                              jsonResponseProducer.toSearchJson(
+                                                                                                                                                      entities,
+                                                                                                                                                      hasMore,
+                                                                                                                                                      nextPage,
+                                                                                                                                                      requestBodyFormData,
+                                                                                                                                                      queryParameters,
+                                                                                                                                                      path),
+                                                                                                                                              responseHeaders,
+                                                                                                                                              requestId);
                                              };
                                          } catch (ResponseCodeException e) {
                                              return new RawResponse(e.getResponseCode(), Utilities.toApiError(e), responseHeaders, requestId);
@@ -133,6 +164,8 @@ public class StripeApiHttpHandler implements HttpHandler {
                                                                     requestId);
                                          }
                                      });
+        } catch (ResponseCodeException e) {
+            return new RawResponse(e.getResponseCode(), Utilities.toApiError(e), Utilities.defaultHeaders(null, requestId), requestId);
         } catch (Throwable e) {
             Logger.getLogger("stripe-mock")
                   .log(Level.SEVERE, "Could not process request", e);
@@ -140,10 +173,9 @@ public class StripeApiHttpHandler implements HttpHandler {
         }
     }
 
-    private String readInputFully(HttpExchange exchange) throws IOException {
+    private byte[] readInputFully(HttpExchange exchange) throws IOException {
         try (InputStream requestBody = exchange.getRequestBody()) {
-            byte[] bytes = requestBody.readAllBytes();
-            return new String(bytes, StandardCharsets.UTF_8);
+            return requestBody.readAllBytes();
         }
     }
 }
@@ -0,0 +1,60 @@
+package com.sesame.oss.stripemock.http;
+
+import com.sesame.oss.stripemock.entities.StripeEntities;
+import com.sesame.oss.stripemock.util.MutableClock;
+
+/**
+ * Everything that makes up the state of the mock, as seen by one tenant: the entities, the idempotency records and the clock.
+ * Tenants never see each other's state, so tests that use different tenants can run against the same mock at the same time.
+ *
+ * @see Tenants
+ */
+public final class Tenant {
+    private final String id;
+    private final MutableClock clock;
+    private final StripeEntities stripeEntities;
+    private final EntityRequestHandler requestHandler;
+    private final JsonResponseProducer jsonResponseProducer;
+    private final IdempotencyManager idempotencyManager = new IdempotencyManager();
+
+    Tenant(String id, MutableClock clock) {
+        this.id = id;
+        this.clock = clock;
+        this.stripeEntities = new StripeEntities(clock);
+        this.requestHandler = new EntityRequestHandler(stripeEntities);
+        this.jsonResponseProducer = new JsonResponseProducer(stripeEntities);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public MutableClock getClock() {
+        return clock;
+    }
+
+    public StripeEntities getStripeEntities() {
+        return stripeEntities;
+    }
+
+    /**
+     * Puts the entities back into the state they were in when the tenant was created, and forgets all idempotency keys. This takes constant time.
+     * The clock is left alone, just like {@link com.sesame.oss.stripemock.StripeMock#reset()} always has.
+     */
+    public void reset() {
+        stripeEntities.clear();
+        idempotencyManager.clear();
+    }
+
+    EntityRequestHandler getRequestHandler() {
+        return requestHandler;
+    }
+
+    JsonResponseProducer getJsonResponseProducer() {
+        return jsonResponseProducer;
+    }
+
+    IdempotencyManager getIdempotencyManager() {
+        return idempotencyManager;
+    }
+}
@@ -0,0 +1,98 @@
+package com.sesame.oss.stripemock.http;
+
+import com.sesame.oss.stripemock.util.MutableClock;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Partitions the state of the mock into {@link Tenant tenants}. A request belongs to the tenant named in its {@value #TENANT_HEADER} header, or, if
+ * there is no such header, to the tenant of its api key. Tenants are created the first time they're used, and kept until they're
+ * {@link #remove(String) removed}, as every tenant holds a complete set of entity managers, stores and caches.
+ * <p>
+ * The default tenant is the one for the api key the mock was started with. That's the one everybody used before there were tenants, and the one
+ * the static methods on {@link com.sesame.oss.stripemock.StripeMock} operate on.
+ */
+public final class Tenants {
+    public static final String TENANT_HEADER = "Stripe-Mock-Tenant";
+    private final ConcurrentMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+    private final Tenant defaultTenant;
+
+    /**
+     * @param defaultApiKey the api key of the default tenant
+     * @param defaultClock  the clock of the default tenant. Other tenants get their own clocks, which start out at the time of this clock when they
+     *                      are created.
+     */
+    public Tenants(String defaultApiKey, MutableClock defaultClock) {
+        this.defaultTenant = new Tenant(defaultApiKey, defaultClock);
+        tenants.put(defaultApiKey, defaultTenant);
+    }
+
+    public Tenant getDefault() {
+        return defaultTenant;
+    }
+
+    /**
+     * @param id the api key, or the value of the {@value #TENANT_HEADER} header
+     * @return the tenant, which is created if it doesn't exist yet
+     */
+    public Tenant get(String id) {
+        return tenants.computeIfAbsent(id,
+                                       ignored -> new Tenant(id,
+                                                             new MutableClock(defaultTenant.getClock()
+                                                                                           .getZone(),
+                                                                              defaultTenant.getClock()
+                                                                                           .instant())));
+    }
+
+    /**
+     * Forgets everything about the tenant. If it's used again, it starts out empty, like a tenant that was never used before.
+     *
+     * @param id the api key, or the value of the {@value #TENANT_HEADER} header
+     * @return {@code true} if the tenant existed
+     * @throws IllegalArgumentException if this is the default tenant, which can be {@link Tenant#reset() reset}, but never removed
+     */
+    public boolean remove(String id) {
+        if (defaultTenant.getId()
+                         .equals(id)) {
+            throw new IllegalArgumentException("The default tenant can't be removed");
+        }
+        return tenants.remove(id) != null;
+    }
+
+    Tenant resolve(RequestHeaders requestHeaders) {
+        String tenantId = requestHeaders.getFirst(TENANT_HEADER);
+        if (tenantId == null) {
+            tenantId = getApiKey(requestHeaders.getFirst("Authorization"));
+        }
+        if (tenantId == null || tenantId.isBlank()) {
+            return defaultTenant;
+        }
+        return get(tenantId);
+    }
+
+    private static String getApiKey(String authorization) {
+        if (authorization == null) {
+            return null;
+        }
+        if (authorization.startsWith("Bearer ")) {
+            return authorization.substring("Bearer ".length())
+                                .trim();
+        }
+        if (authorization.startsWith("Basic ")) {
+            // This is what you get with curl -u sk_test_123: and the key is the username
+            try {
+                String credentials = new String(Base64.getDecoder()
+                                                      .decode(authorization.substring("Basic ".length())
+                                                                           .trim()), StandardCharsets.UTF_8);
+                int colon = credentials.indexOf(':');
+                return colon == -1 ? credentials : credentials.substring(0, colon);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
@@ -1,65 +1,89 @@
 package com.sesame.oss.stripemock.util;
 
 import com.stripe.model.Balance;
-import com.stripe.model.BalanceTransaction;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class BalanceUtilities {
+    /**
+     * Accounts without any money still list a zero balance in this currency, like stripe does for new accounts.
+     */
+    private static final String DEFAULT_CURRENCY = "usd";
+
     // todo: populate source types
     // todo: calculate things that aren't available
-    // todo: one list item for each per account/currency
-    public static Balance createBalance(List<BalanceTransaction> balanceTransactions, String stripeAccount) {
+
+    /**
+     * @param balances the amounts of the account, by currency and then by balance transaction status, like {@code available}
+     */
+    public static Balance createBalance(Map<String, Map<String, Long>> balances, String stripeAccount) {
+        // Sorted, so the currencies are always listed in the same order
+        Map<String, Map<String, Long>> balancesByCurrency = new TreeMap<>(balances);
+        if (balancesByCurrency.isEmpty()) {
+            balancesByCurrency.put(DEFAULT_CURRENCY, Map.of());
+        }
         Balance balance = new Balance();
         balance.setObject("balance");
         balance.setLivemode(false);
-        balance.setAvailable(createAvailable(balanceTransactions));
-        balance.setPending(createPending(balanceTransactions));
-        balance.setInstantAvailable(createInstantAvailable(balanceTransactions));
+        balance.setAvailable(createAvailable(balancesByCurrency));
+        balance.setPending(createPending(balancesByCurrency));
+        balance.setInstantAvailable(createInstantAvailable(balancesByCurrency));
         if (stripeAccount == null) {
-            balance.setConnectReserved(createConnectReserved(balanceTransactions));
+            balance.setConnectReserved(createConnectReserved(balancesByCurrency));
         }
         return balance;
     }
 
-    private static List<Balance.ConnectReserved> createConnectReserved(List<BalanceTransaction> balanceTransactions) {
-        Balance.ConnectReserved connectReserved = new Balance.ConnectReserved();
-        connectReserved.setAmount(0L);
-        connectReserved.setCurrency("USD");
-        connectReserved.setSourceTypes(new Balance.ConnectReserved.SourceTypes());
-        return Collections.singletonList(connectReserved);
-    }
-
-    private static List<Balance.InstantAvailable> createInstantAvailable(List<BalanceTransaction> balanceTransactions) {
-        Balance.InstantAvailable instantAvailable = new Balance.InstantAvailable();
-        instantAvailable.setAmount(0L);
-        instantAvailable.setCurrency("USD");
-        instantAvailable.setSourceTypes(new Balance.InstantAvailable.SourceTypes());
-        return Collections.singletonList(instantAvailable);
+    private static List<Balance.ConnectReserved> createConnectReserved(Map<String, Map<String, Long>> balancesByCurrency) {
+        List<Balance.ConnectReserved> connectReserved = new ArrayList<>();
+        for (String currency : balancesByCurrency.keySet()) {
+            Balance.ConnectReserved reserved = new Balance.ConnectReserved();
+            reserved.setAmount(0L);
+            reserved.setCurrency(currency);
+            reserved.setSourceTypes(new Balance.ConnectReserved.SourceTypes());
+            connectReserved.add(reserved);
+        }
+        return connectReserved;
     }
 
-    private static List<Balance.Pending> createPending(List<BalanceTransaction> balanceTransactions) {
-        Balance.Pending pending = new Balance.Pending();
-        pending.setAmount(0L);
-        pending.setCurrency("USD");
-        pending.setSourceTypes(new Balance.Pending.SourceTypes());
-        return Collections.singletonList(pending);
+    private static List<Balance.InstantAvailable> createInstantAvailable(Map<String, Map<String, Long>> balancesByCurrency) {
+        List<Balance.InstantAvailable> instantAvailable = new ArrayList<>();
+        for (String currency : balancesByCurrency.keySet()) {
+            Balance.InstantAvailable available = new Balance.InstantAvailable();
+            available.setAmount(0L);
+            available.setCurrency(currency);
+            available.setSourceTypes(new Balance.InstantAvailable.SourceTypes());
+            instantAvailable.add(available);
+        }
+        return instantAvailable;
     }
 
-    private static List<Balance.Available> createAvailable(List<BalanceTransaction> balanceTransactions) {
-        Balance.Available available = new Balance.Available();
-        available.setCurrency("USD");
-        available.setAmount(sum(balanceTransactions, "available"));
-        available.setSourceTypes(new Balance.Available.SourceTypes());
-        return Collections.singletonList(available);
+    private static List<Balance.Pending> createPending(Map<String, Map<String, Long>> balancesByCurrency) {
+        List<Balance.Pending> pending = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Long>> entry : balancesByCurrency.entrySet()) {
+            Balance.Pending currencyPending = new Balance.Pending();
+            currencyPending.setAmount(entry.getValue()
+                                           .getOrDefault("pending", 0L));
+            currencyPending.setCurrency(entry.getKey());
+            currencyPending.setSourceTypes(new Balance.Pending.SourceTypes());
+            pending.add(currencyPending);
+        }
+        return pending;
     }
 
-    public static long sum(List<BalanceTransaction> balanceTransactions, String status) {
-        return balanceTransactions.stream()
-                                  .filter(txn -> txn.getStatus()
-                                                    .equals(status))
-                                  .mapToLong(BalanceTransaction::getAmount)
-                                  .sum();
+    private static List<Balance.Available> createAvailable(Map<String, Map<String, Long>> balancesByCurrency) {
+        List<Balance.Available> available = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Long>> entry : balancesByCurrency.entrySet()) {
+            Balance.Available currencyAvailable = new Balance.Available();
+            currencyAvailable.setCurrency(entry.getKey());
+            currencyAvailable.setAmount(entry.getValue()
+                                             .getOrDefault("available", 0L));
+            currencyAvailable.setSourceTypes(new Balance.Available.SourceTypes());
+            available.add(currencyAvailable);
+        }
+        return available;
     }
 }
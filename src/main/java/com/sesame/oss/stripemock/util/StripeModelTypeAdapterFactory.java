@@ -0,0 +1,177 @@
+package com.sesame.oss.stripemock.util;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.stripe.model.StripeObject;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the stripe model classes, like {@link com.stripe.model.Invoice}, with adapters that are built once per class, rather than through gson's
+ * reflective adapter. The fields, their json names and their adapters are worked out when the adapter is created, and the fields are read through
+ * method handles, so writing an entity is just a walk over a list. The output is exactly what the reflective adapter would write: the fields of the
+ * class come first, then the fields of its superclasses, and values of a more specific type than their field are written as that type.
+ * <p>
+ * Reading goes to the adapter gson would otherwise have used, as we only ever read with {@link com.stripe.net.ApiResource#GSON}. Classes that
+ * have {@link JsonAdapter} annotations, and everything that isn't a stripe model class, are left to gson too.
+ */
+final class StripeModelTypeAdapterFactory implements TypeAdapterFactory {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    @Override
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> rawType = type.getRawType();
+        if (!StripeObject.class.isAssignableFrom(rawType) || rawType.isAnnotationPresent(JsonAdapter.class) || rawType.isAnonymousClass() ||
+            rawType.isLocalClass()) {
+            return null;
+        }
+        List<BoundField> fields = new ArrayList<>();
+        // Fields of generic classes, like the data of a collection, have the types the subclass, or the type we're asked for, gives them
+        Map<TypeVariable<?>, Type> typeArguments = new HashMap<>();
+        if (type.getType() instanceof ParameterizedType parameterized) {
+            typeArguments(rawType, parameterized, typeArguments);
+        }
+        for (Class<?> c = rawType; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                if (field.isAnnotationPresent(JsonAdapter.class)) {
+                    return null;
+                }
+                SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                String name = serializedName == null ? gson.fieldNamingStrategy()
+                                                           .translateName(field) : serializedName.value();
+                fields.add(BoundField.of(gson, field, name, resolve(field.getGenericType(), typeArguments)));
+            }
+            if (c.getGenericSuperclass() instanceof ParameterizedType superclass) {
+                typeArguments((Class<?>) superclass.getRawType(), superclass, typeArguments);
+            }
+        }
+        return new Adapter<>(gson, gson.getDelegateAdapter(this, type), List.copyOf(fields));
+    }
+
+    private static void typeArguments(Class<?> rawType, ParameterizedType parameterized, Map<TypeVariable<?>, Type> typeArguments) {
+        TypeVariable<?>[] parameters = rawType.getTypeParameters();
+        for (int i = 0; i < parameters.length; i++) {
+            typeArguments.put(parameters[i], resolve(parameterized.getActualTypeArguments()[i], typeArguments));
+        }
+    }
+
+    /**
+     * Replaces the type variables in the type with the types they stand for, as far as we know them.
+     */
+    private static Type resolve(Type type, Map<TypeVariable<?>, Type> typeArguments) {
+        if (type instanceof TypeVariable<?> typeVariable) {
+            return typeArguments.getOrDefault(typeVariable, typeVariable);
+        }
+        if (type instanceof ParameterizedType parameterized) {
+            Type[] arguments = parameterized.getActualTypeArguments()
+                                            .clone();
+            boolean changed = false;
+            for (int i = 0; i < arguments.length; i++) {
+                Type resolved = resolve(arguments[i], typeArguments);
+                changed |= resolved != arguments[i];
+                arguments[i] = resolved;
+            }
+            return changed ? TypeToken.getParameterized(parameterized.getRawType(), arguments)
+                                      .getType() : parameterized;
+        }
+        return type;
+    }
+
+    private static final class Adapter<T> extends TypeAdapter<T> {
+        private final Gson gson;
+        private final TypeAdapter<T> reader;
+        private final List<BoundField> fields;
+
+        private Adapter(Gson gson, TypeAdapter<T> reader, List<BoundField> fields) {
+            this.gson = gson;
+            this.reader = reader;
+            this.fields = fields;
+        }
+
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            for (BoundField field : fields) {
+                field.write(gson, out, value);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public T read(JsonReader in) throws IOException {
+            return reader.read(in);
+        }
+    }
+
+    /**
+     * @param polymorphicType the type of the field, if it can hold values of a more specific type, which are then written as that type, or
+     *                        {@code null} if it can't
+     */
+    private record BoundField(String name,
+                              MethodHandle getter,
+                              TypeAdapter<Object> adapter,
+                              Class<?> polymorphicType) {
+        @SuppressWarnings("unchecked")
+        static BoundField of(Gson gson, Field field, String name, Type type) {
+            MethodHandle getter;
+            try {
+                field.setAccessible(true);
+                getter = LOOKUP.unreflectGetter(field)
+                               .asType(MethodType.methodType(Object.class, Object.class));
+            } catch (IllegalAccessException e) {
+                // The reflective adapter would have had the very same problem
+                throw new IllegalStateException("Unable to read " + field, e);
+            }
+            // This is the same check gson does, except that we know up front that final classes, and primitives, can't hold anything else
+            Class<?> rawType = type instanceof Class<?> c ? c : field.getType();
+            boolean polymorphic = (type instanceof Class<?> || type instanceof TypeVariable<?>) && !rawType.isPrimitive() &&
+                                  !Modifier.isFinal(rawType.getModifiers());
+            return new BoundField(name, getter, (TypeAdapter<Object>) gson.getAdapter(TypeToken.get(type)), polymorphic ? rawType : null);
+        }
+
+        @SuppressWarnings("unchecked")
+        void write(Gson gson, JsonWriter out, Object owner) throws IOException {
+            Object value;
+            try {
+                value = (Object) getter.invokeExact(owner);
+            } catch (Throwable e) {
+                // This shouldn't happen, as it's just reading a field
+                throw new AssertionError(e);
+            }
+            if (value == owner) {
+                // The reflective adapter skips fields that refer to the object itself, so it doesn't loop forever
+                return;
+            }
+            out.name(name);
+            if (value == null) {
+                out.nullValue();
+            } else if (polymorphicType != null && value.getClass() != polymorphicType) {
+                ((TypeAdapter<Object>) gson.getAdapter(value.getClass())).write(out, value);
+            } else {
+                adapter.write(out, value);
+            }
+        }
+    }
+}
@@ -46,6 +46,8 @@ public class Utilities {
      * This is very similar to {@link ApiResource#createGson()}, with the exception that it does not include the support for some interfaces.
      * The reason for this is that the handler for those interfaces doesn't have any fields. As such, when we want to <b>write</b> json, which
      * it is not really configured for, we get empty fields. So we have to create our own.
+     * <p>
+     * Stripe model classes are written by {@link StripeModelTypeAdapterFactory specialized adapters}, rather than by gson's reflective adapter.
      */
     private static Gson producerGson() {
         return new GsonBuilder().setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
@@ -56,6 +58,7 @@ public class Utilities {
                                 // Taken from StripeObject.PRETTY_PRINT_GSON. It turns expandable fields with nothing to expand into normal strings
                                 .registerTypeAdapter(ExpandableField.class, new ExpandableFieldSerializer())
                                 .registerTypeAdapter(StripeRawJsonObject.class, new StripeRawJsonObjectDeserializer())
+                                .registerTypeAdapterFactory(new StripeModelTypeAdapterFactory())
                                 .addReflectionAccessFilter(new ReflectionAccessFilter() {
                                     @Override
                                     public FilterResult check(Class<?> rawClass) {
@@ -1,19 +1,25 @@
 package com.sesame.oss.stripemock;
 
+import com.stripe.exception.InvalidRequestException;
 import com.stripe.exception.StripeException;
 import com.stripe.model.Account;
 import com.stripe.model.Balance;
 import com.stripe.model.Charge;
+import com.stripe.model.Payout;
 import com.stripe.model.Transfer;
 import com.stripe.net.RequestOptions;
 import com.stripe.param.BalanceRetrieveParams;
 import com.stripe.param.ChargeCreateParams;
+import com.stripe.param.PayoutCreateParams;
 import com.stripe.param.TransferCreateParams;
+import com.stripe.param.TransferReversalCollectionCreateParams;
 import org.junit.jupiter.api.Test;
 
+import java.util.Map;
+import java.util.stream.Collectors;
+
 import static com.sesame.oss.stripemock.AccountTest.defaultCreationParameters;
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class BalanceTest extends AbstractStripeMockTest {
     @Test
@@ -207,6 +213,89 @@ public class BalanceTest extends AbstractStripeMockTest {
         assertEquals("balance", balance.getObject());
 
 
+        createdAccount.delete();
+    }
+
+    @Test
+    void shouldKeepBalancesPerCurrency() throws StripeException {
+        Account createdAccount = Account.create(defaultCreationParameters("Stripe-mock test company name"));
+        RequestOptions asConnectedAccount = RequestOptions.builder()
+                                                          .setStripeAccount(createdAccount.getId())
+                                                          .build();
+        Transfer usdTransfer = Transfer.create(TransferCreateParams.builder()
+                                                                   .setAmount(50_00L)
+                                                                   .setCurrency("usd")
+                                                                   .setDestination(createdAccount.getId())
+                                                                   .build());
+        Transfer.create(TransferCreateParams.builder()
+                                            .setAmount(20_00L)
+                                            .setCurrency("eur")
+                                            .setDestination(createdAccount.getId())
+                                            .build());
+        usdTransfer.getReversals()
+                   .create(TransferReversalCollectionCreateParams.builder()
+                                                                 .setAmount(10_00L)
+                                                                 .build());
+        Payout.create(PayoutCreateParams.builder()
+                                        .setAmount(15_00L)
+                                        .setCurrency("usd")
+                                        .build(), asConnectedAccount);
+
+        Balance balance = Balance.retrieve(BalanceRetrieveParams.builder()
+                                                                .build(), asConnectedAccount);
+        assertEquals(Map.of("eur", 20_00L, "usd", 25_00L),
+                     balance.getAvailable()
+                            .stream()
+                            .collect(Collectors.toMap(Balance.Available::getCurrency, Balance.Available::getAmount)));
+        assertEquals(Map.of("eur", -20_00L, "usd", -40_00L),
+                     Balance.retrieve()
+                            .getAvailable()
+                            .stream()
+                            .collect(Collectors.toMap(Balance.Available::getCurrency, Balance.Available::getAmount)));
+
+        // There's enough money in total, but not in euros
+        InvalidRequestException exception = assertThrows(InvalidRequestException.class,
+                                                         () -> Payout.create(PayoutCreateParams.builder()
+                                                                                               .setAmount(25_00L)
+                                                                                               .setCurrency("eur")
+                                                                                               .build(), asConnectedAccount));
+        assertEquals("balance_insufficient", exception.getCode());
+
+        createdAccount.delete();
+    }
+
+    @Test
+    void shouldNotTakeFailedPayoutsOutOfTheBalance() throws StripeException {
+        Account createdAccount = Account.create(defaultCreationParameters("Stripe-mock test company name"));
+        ExternalAccountTest.replaceExternalAccountWith(createdAccount, "000111111113");
+        RequestOptions asConnectedAccount = RequestOptions.builder()
+                                                          .setStripeAccount(createdAccount.getId())
+                                                          .build();
+        Transfer.create(TransferCreateParams.builder()
+                                            .setAmount(50_00L)
+                                            .setCurrency("usd")
+                                            .setDestination(createdAccount.getId())
+                                            .build());
+        Payout payout = Payout.create(PayoutCreateParams.builder()
+                                                        .setAmount(30_00L)
+                                                        .setCurrency("usd")
+                                                        .build(), asConnectedAccount);
+        assertEquals("failed", payout.getStatus());
+
+        Balance balance = Balance.retrieve(BalanceRetrieveParams.builder()
+                                                                .build(), asConnectedAccount);
+        assertEquals(50_00L,
+                     balance.getAvailable()
+                            .getFirst()
+                            .getAmount());
+        assertEquals(1,
+                     balance.getPending()
+                            .size());
+        assertEquals(0,
+                     balance.getPending()
+                            .getFirst()
+                            .getAmount());
+
         createdAccount.delete();
     }
 }
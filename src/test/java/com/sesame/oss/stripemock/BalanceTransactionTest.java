@@ -4,11 +4,14 @@ import com.stripe.exception.StripeException;
 import com.stripe.model.*;
 import com.stripe.net.RequestOptions;
 import com.stripe.param.BalanceTransactionListParams;
+import com.stripe.param.BalanceTransactionRetrieveParams;
 import com.stripe.param.PayoutCreateParams;
 import com.stripe.param.TransferCreateParams;
+import com.stripe.param.TransferUpdateParams;
 import com.stripe.param.TransferReversalCollectionCreateParams;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import static com.sesame.oss.stripemock.AccountTest.defaultCreationParameters;
@@ -156,4 +159,122 @@ public class BalanceTransactionTest extends AbstractStripeMockTest {
             fail("Not a payout");
         }
     }
+
+    @Test
+    void shouldKeepIdsStableAndFollowUpdatesOfTheSource() throws StripeException {
+        Account account = Account.create(defaultCreationParameters("Stripe-mock test company name"));
+        Transfer transfer = Transfer.create(TransferCreateParams.builder()
+                                                                .setAmount(10_00L)
+                                                                .setCurrency("usd")
+                                                                .setDestination(account.getId())
+                                                                .build());
+        RequestOptions connectedAccount = RequestOptions.builder()
+                                                        .setStripeAccount(account.getId())
+                                                        .build();
+
+        BalanceTransaction first = BalanceTransaction.retrieve(transfer.getBalanceTransaction(), connectedAccount);
+        BalanceTransaction second = BalanceTransaction.retrieve(transfer.getBalanceTransaction(), connectedAccount);
+        assertEquals(first, second);
+        assertEquals(first.getSource(), second.getSource());
+
+        transfer.update(TransferUpdateParams.builder()
+                                            .setDescription("updated description")
+                                            .build());
+        BalanceTransaction updated = BalanceTransaction.retrieve(transfer.getBalanceTransaction(),
+                                                                 BalanceTransactionRetrieveParams.builder()
+                                                                                                 .addExpand("source.source_transfer")
+                                                                                                 .build(),
+                                                                 connectedAccount);
+        assertEquals(first.getSource(), updated.getSource());
+        if (updated.getSourceObject() instanceof Charge charge) {
+            assertEquals("updated description", charge.getDescription());
+            assertEquals("updated description",
+                         charge.getSourceTransferObject()
+                               .getDescription());
+        } else {
+            fail("Not a charge");
+        }
+    }
+
+    @Test
+    void shouldPageThroughBalanceTransactionsOfAllSources() throws StripeException {
+        Account account = Account.create(defaultCreationParameters("Stripe-mock test company name"));
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Transfer transfer = Transfer.create(TransferCreateParams.builder()
+                                                                    .setAmount(10_00L)
+                                                                    .setCurrency("usd")
+                                                                    .setDestination(account.getId())
+                                                                    .build());
+            expected.addFirst(transfer.getBalanceTransaction());
+            TransferReversal transferReversal = transfer.getReversals()
+                                                        .create(TransferReversalCollectionCreateParams.builder()
+                                                                                                      .setAmount(1_00L)
+                                                                                                      .build());
+            expected.addFirst(transferReversal.getBalanceTransaction());
+        }
+
+        List<String> paged = new ArrayList<>();
+        BalanceTransactionListParams.Builder params = BalanceTransactionListParams.builder()
+                                                                                  .setLimit(4L);
+        BalanceTransactionCollection page = BalanceTransaction.list(params.build());
+        page.getData()
+            .forEach(balanceTransaction -> paged.add(balanceTransaction.getId()));
+        assertTrue(page.getHasMore());
+        page = BalanceTransaction.list(params.setStartingAfter(paged.getLast())
+                                             .build());
+        page.getData()
+            .forEach(balanceTransaction -> paged.add(balanceTransaction.getId()));
+        assertFalse(page.getHasMore());
+        assertEquals(expected, paged);
+
+        BalanceTransactionCollection before = BalanceTransaction.list(BalanceTransactionListParams.builder()
+                                                                                                  .setLimit(2L)
+                                                                                                  .setEndingBefore(expected.get(4))
+                                                                                                  .build());
+        assertEquals(expected.subList(2, 4),
+                     before.getData()
+                           .stream()
+                           .map(BalanceTransaction::getId)
+                           .toList());
+    }
+
+    @Test
+    void shouldExpandTheSameWayWhenEncodingInParallel() throws StripeException {
+        Account account = Account.create(defaultCreationParameters("Stripe-mock test company name"));
+        for (int i = 0; i < 5; i++) {
+            Transfer.create(TransferCreateParams.builder()
+                                                .setAmount(10_00L + i)
+                                                .setCurrency("usd")
+                                                .setDestination(account.getId())
+                                                .build());
+        }
+        BalanceTransactionListParams params = BalanceTransactionListParams.builder()
+                                                                          .setLimit(100L)
+                                                                          .addExpand("data.source")
+                                                                          .build();
+        BalanceTransactionListParams invalidParams = BalanceTransactionListParams.builder()
+                                                                                 .addExpand("source.nothing")
+                                                                                 .build();
+
+        List<BalanceTransaction> sequential = BalanceTransaction.list(params)
+                                                                .getData();
+        StripeException sequentialException = assertThrows(StripeException.class, () -> BalanceTransaction.list(invalidParams));
+        int threshold = StripeMock.getParallelEncodingThreshold();
+        StripeMock.setParallelEncodingThreshold(2);
+        try {
+            List<BalanceTransaction> parallel = BalanceTransaction.list(params)
+                                                                  .getData();
+            assertEquals(sequential, parallel);
+            assertTrue(parallel.stream()
+                               .allMatch(balanceTransaction -> balanceTransaction.getSourceObject() != null));
+            StripeException parallelException = assertThrows(StripeException.class, () -> BalanceTransaction.list(invalidParams));
+            assertEquals(sequentialException.getStripeError()
+                                            .getMessage(),
+                         parallelException.getStripeError()
+                                          .getMessage());
+        } finally {
+            StripeMock.setParallelEncodingThreshold(threshold);
+        }
+    }
 }
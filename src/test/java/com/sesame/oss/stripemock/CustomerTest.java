@@ -1,12 +1,18 @@
 package com.sesame.oss.stripemock;
 
+import com.sesame.oss.stripemock.entities.EntityManager;
+import com.sesame.oss.stripemock.entities.StripeEntities;
 import com.stripe.exception.IdempotencyException;
 import com.stripe.exception.InvalidRequestException;
 import com.stripe.exception.StripeException;
 import com.stripe.model.Customer;
+import com.stripe.model.CustomerCollection;
+import com.stripe.model.CustomerSearchResult;
 import com.stripe.model.PaymentMethod;
 import com.stripe.net.RequestOptions;
 import com.stripe.param.CustomerCreateParams;
+import com.stripe.param.CustomerListParams;
+import com.stripe.param.CustomerSearchParams;
 import com.stripe.param.CustomerUpdateParams;
 import com.stripe.param.CustomerUpdateParams.Address;
 import com.stripe.param.PaymentMethodAttachParams;
@@ -14,7 +20,16 @@ import com.stripe.param.PaymentMethodCreateParams;
 import com.stripe.param.common.EmptyParam;
 import org.junit.jupiter.api.Test;
 
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -217,4 +232,294 @@ public class CustomerTest extends AbstractStripeMockTest {
                            .getInvoiceSettings()
                            .getDefaultPaymentMethod());
     }
+
+    @Test
+    void shouldListResponsesLargerThanTheChunkingThreshold() throws StripeException {
+        // Each customer is well over a kilobyte, so this list is large enough to be sent using chunked encoding
+        String description = "a very long description with some non-ascii characters: æøå € 🎉 ".repeat(20);
+        for (int i = 0; i < 100; i++) {
+            Customer.create(CustomerCreateParams.builder()
+                                                .setName("stripe-mock test " + i)
+                                                .setDescription(description)
+                                                .build());
+        }
+        CustomerCollection customers = Customer.list(CustomerListParams.builder()
+                                                                       .setLimit(100L)
+                                                                       .build());
+        assertEquals(100,
+                     customers.getData()
+                              .size());
+        assertTrue(customers.getData()
+                            .stream()
+                            .allMatch(customer -> description.equals(customer.getDescription())));
+    }
+
+    @Test
+    void shouldPageThroughCustomersNewestFirst() throws StripeException {
+        List<String> createdIds = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            createdIds.add(Customer.create(CustomerCreateParams.builder()
+                                                               .setName("customer " + i)
+                                                               .build())
+                                   .getId());
+        }
+        List<String> newestFirst = new ArrayList<>(createdIds);
+        Collections.reverse(newestFirst);
+
+        CustomerCollection firstPage = Customer.list(CustomerListParams.builder()
+                                                                       .build());
+        assertEquals(newestFirst.subList(0, 10), ids(firstPage));
+        assertTrue(firstPage.getHasMore());
+
+        CustomerCollection lastPage = Customer.list(CustomerListParams.builder()
+                                                                      .setStartingAfter(newestFirst.get(19))
+                                                                      .build());
+        assertEquals(newestFirst.subList(20, 25), ids(lastPage));
+        assertFalse(lastPage.getHasMore());
+
+        CustomerCollection previousPage = Customer.list(CustomerListParams.builder()
+                                                                          .setEndingBefore(newestFirst.get(20))
+                                                                          .setLimit(3L)
+                                                                          .build());
+        assertEquals(newestFirst.subList(17, 20), ids(previousPage));
+        assertTrue(previousPage.getHasMore());
+
+        List<String> autoPaged = new ArrayList<>();
+        Customer.list(CustomerListParams.builder()
+                                        .setLimit(7L)
+                                        .build())
+                .autoPagingIterable()
+                .forEach(customer -> autoPaged.add(customer.getId()));
+        assertEquals(newestFirst, autoPaged);
+    }
+
+    @Test
+    void shouldRejectInvalidPaginationParameters() {
+        InvalidRequestException tooLarge = assertThrows(InvalidRequestException.class,
+                                                        () -> Customer.list(CustomerListParams.builder()
+                                                                                              .setLimit(101L)
+                                                                                              .build()));
+        assertEquals("limit", tooLarge.getParam());
+        InvalidRequestException unknownCursor = assertThrows(InvalidRequestException.class,
+                                                             () -> Customer.list(CustomerListParams.builder()
+                                                                                                   .setStartingAfter("cus_nonexistent")
+                                                                                                   .build()));
+        assertEquals("No such customer: 'cus_nonexistent'; code: resource_missing; request-id: " + unknownCursor.getRequestId(), unknownCursor.getMessage());
+    }
+
+    @Test
+    void shouldFilterListsByEmailAndCreated() throws StripeException {
+        Instant start = Instant.parse("2024-01-01T00:00:00Z");
+        List<Customer> customers = new ArrayList<>();
+        try {
+            for (int i = 0; i < 5; i++) {
+                StripeMock.adjustTimeTo(start.plusSeconds(i * 100L));
+                customers.add(Customer.create(CustomerCreateParams.builder()
+                                                                  .setEmail(i % 2 == 0 ? "even@example.com" : "odd@example.com")
+                                                                  .build()));
+            }
+        } finally {
+            StripeMock.adjustTimeTo(Instant.now());
+        }
+
+        assertEquals(List.of(customers.get(4)
+                                      .getId(),
+                             customers.get(2)
+                                      .getId(),
+                             customers.get(0)
+                                      .getId()),
+                     ids(Customer.list(CustomerListParams.builder()
+                                                         .setEmail("even@example.com")
+                                                         .build())));
+        assertEquals(List.of(customers.get(2)
+                                      .getId()),
+                     ids(Customer.list(CustomerListParams.builder()
+                                                         .setEmail("even@example.com")
+                                                         .setCreated(CustomerListParams.Created.builder()
+                                                                                               .setGt(start.getEpochSecond())
+                                                                                               .setLte(start.plusSeconds(300)
+                                                                                                            .getEpochSecond())
+                                                                                               .build())
+                                                         .build())));
+        assertEquals(List.of(customers.get(1)
+                                      .getId()),
+                     ids(Customer.list(CustomerListParams.builder()
+                                                         .setCreated(start.plusSeconds(100)
+                                                                          .getEpochSecond())
+                                                         .build())));
+
+        // The index has to follow the customer when the email changes
+        customers.get(3)
+                 .update(CustomerUpdateParams.builder()
+                                             .setEmail("even@example.com")
+                                             .build());
+        assertEquals(List.of(customers.get(1)
+                                      .getId()),
+                     ids(Customer.list(CustomerListParams.builder()
+                                                         .setEmail("odd@example.com")
+                                                         .build())));
+        assertEquals(4,
+                     Customer.list(CustomerListParams.builder()
+                                                     .setEmail("even@example.com")
+                                                     .build())
+                             .getData()
+                             .size());
+        assertEquals(List.of(),
+                     ids(Customer.list(CustomerListParams.builder()
+                                                         .setEmail("nobody@example.com")
+                                                         .build())));
+    }
+
+    @Test
+    void shouldSearchCustomers() throws StripeException {
+        Instant start = Instant.parse("2024-01-01T00:00:00Z");
+        List<Customer> customers = new ArrayList<>();
+        try {
+            for (int i = 0; i < 5; i++) {
+                StripeMock.adjustTimeTo(start.plusSeconds(i * 100L));
+                customers.add(Customer.create(CustomerCreateParams.builder()
+                                                                  .setEmail(i % 2 == 0 ? "even@example.com" : "odd@example.com")
+                                                                  .setName("Customer " + i)
+                                                                  .putMetadata("order_id", String.valueOf(6730 + i))
+                                                                  .build()));
+            }
+        } finally {
+            StripeMock.adjustTimeTo(Instant.now());
+        }
+
+        assertEquals(List.of(customers.get(4)
+                                      .getId(),
+                             customers.get(2)
+                                      .getId(),
+                             customers.get(0)
+                                      .getId()), ids(search("email:'EVEN@example.com'")));
+        assertEquals(List.of(customers.get(3)
+                                      .getId()), ids(search("metadata['order_id']:'6733'")));
+        assertEquals(List.of(customers.get(2)
+                                      .getId()),
+                     ids(search(String.format("email:'even@example.com' AND created>%d -name:'Customer 4'", start.getEpochSecond()))));
+        assertEquals(List.of(customers.get(3)
+                                      .getId(),
+                             customers.get(1)
+                                      .getId()), ids(search("name:'Customer 1' OR name:'Customer 3'")));
+        assertEquals(List.of(), ids(search("name~'nobody'")));
+
+        CustomerSearchResult firstPage = Customer.search(CustomerSearchParams.builder()
+                                                                             .setQuery("email~'example.com'")
+                                                                             .setLimit(2L)
+                                                                             .build());
+        assertTrue(firstPage.getHasMore());
+        assertEquals(customers.get(3)
+                              .getId(), firstPage.getNextPage());
+        List<String> autoPaged = new ArrayList<>();
+        firstPage.autoPagingIterable()
+                 .forEach(customer -> autoPaged.add(customer.getId()));
+        assertEquals(customers.reversed()
+                              .stream()
+                              .map(Customer::getId)
+                              .toList(), autoPaged);
+    }
+
+    @Test
+    void shouldFindCustomersByMetadata() throws StripeException {
+        List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            customers.add(Customer.create(CustomerCreateParams.builder()
+                                                              .putMetadata("order_id", String.valueOf(i))
+                                                              .putMetadata("tenant", i % 2 == 0 ? "even" : "odd")
+                                                              .build()));
+        }
+
+        assertEquals(List.of(customers.get(7)
+                                      .getId()), ids(search("metadata['order_id']:'7'")));
+        assertEquals(List.of(customers.get(7)
+                                      .getId()), ids(search("metadata['order_id']:'7' AND metadata['tenant']:'odd'")));
+        assertEquals(List.of(), ids(search("metadata['order_id']:'7' AND metadata['tenant']:'even'")));
+        // Metadata is matched exactly
+        assertEquals(List.of(), ids(search("metadata['tenant']:'EVEN'")));
+        assertEquals(List.of(customers.get(8)
+                                      .getId()),
+                     ids(Customer.list(CustomerListParams.builder()
+                                                         .putExtraParam("metadata", Map.of("order_id", "8", "tenant", "even"))
+                                                         .build())));
+
+        // The index has to follow the metadata when it changes
+        customers.get(7)
+                 .update(CustomerUpdateParams.builder()
+                                             .putMetadata("order_id", "77")
+                                             .build());
+        assertEquals(List.of(), ids(search("metadata['order_id']:'7'")));
+        assertEquals(List.of(customers.get(7)
+                                      .getId()), ids(search("metadata['order_id']:'77'")));
+        assertEquals(10, search("metadata['tenant']:'even'").getData()
+                                                                .size());
+    }
+
+    @Test
+    void shouldRejectInvalidSearchQueries() {
+        InvalidRequestException unknownField = assertThrows(InvalidRequestException.class, () -> search("nickname:'bob'"));
+        assertEquals("query", unknownField.getParam());
+        assertTrue(unknownField.getMessage()
+                               .startsWith("Field `nickname` is an unsupported search field for resource `customers`."));
+        InvalidRequestException mixed = assertThrows(InvalidRequestException.class, () -> search("name:'a' AND email:'b' OR phone:'c'"));
+        assertEquals("query", mixed.getParam());
+    }
+
+    private static CustomerSearchResult search(String query) throws StripeException {
+        return Customer.search(CustomerSearchParams.builder()
+                                                   .setQuery(query)
+                                                   .build());
+    }
+
+    private static List<String> ids(CustomerSearchResult customers) {
+        return customers.getData()
+                        .stream()
+                        .map(Customer::getId)
+                        .toList();
+    }
+
+    private static List<String> ids(CustomerCollection customers) {
+        return customers.getData()
+                        .stream()
+                        .map(Customer::getId)
+                        .toList();
+    }
+
+    @Test
+    void shouldNotLoseConcurrentUpdatesToTheSameCustomer() throws Exception {
+        // The http server might handle requests one at a time, so we go straight to the entities to make sure the updates really race each other
+        StripeEntities stripeEntities = new StripeEntities(StripeMock.getClock());
+        EntityManager<Customer> customers = stripeEntities.getEntityManager(Customer.class);
+        Map<String, Object> creationFormData = new HashMap<>();
+        creationFormData.put("name", "stripe-mock test");
+        Customer customer = customers.add(creationFormData, null);
+        int threads = 8;
+        int updatesPerThread = 10;
+        CyclicBarrier start = new CyclicBarrier(threads);
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            List<Future<?>> updates = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                String prefix = "thread" + thread + "_";
+                updates.add(executor.submit(() -> {
+                    start.await();
+                    for (int update = 0; update < updatesPerThread; update++) {
+                        Map<String, Object> metadata = new HashMap<>();
+                        metadata.put(prefix + update, String.valueOf(update));
+                        Map<String, Object> formData = new HashMap<>();
+                        formData.put("metadata", metadata);
+                        customers.update(customer.getId(), formData, null);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> update : updates) {
+                update.get();
+            }
+        }
+        assertEquals(threads * updatesPerThread,
+                     customers.get(customer.getId(), null)
+                              .orElseThrow()
+                              .getMetadata()
+                              .size());
+    }
 }
@@ -0,0 +1,82 @@
+package com.sesame.oss.stripemock;
+
+import com.sesame.oss.stripemock.StripeMock.ExecutorMode;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExecutorModeTest {
+    @Test
+    void shouldDefaultToSingle() {
+        assertEquals(ExecutorMode.SINGLE, ExecutorMode.parse(null));
+        assertEquals(ExecutorMode.SINGLE, ExecutorMode.parse(""));
+        assertEquals(ExecutorMode.SINGLE, ExecutorMode.parse("  "));
+    }
+
+    @Test
+    void shouldParseModesRegardlessOfCase() {
+        assertEquals(ExecutorMode.SINGLE, ExecutorMode.parse("single"));
+        assertEquals(ExecutorMode.POOL, ExecutorMode.parse("POOL"));
+        assertEquals(ExecutorMode.POOL, ExecutorMode.parse("Pool"));
+        assertEquals(ExecutorMode.VIRTUAL, ExecutorMode.parse(" virtual "));
+    }
+
+    @Test
+    void shouldRejectUnknownModes() {
+        IllegalArgumentException exception = assertThrows(IllegalArgumentException.class, () -> ExecutorMode.parse("threads"));
+        assertTrue(exception.getMessage()
+                            .contains("'threads'"));
+    }
+
+    @Test
+    void shouldLeaveTheDispatcherThreadToTheHttpServerInSingleMode() {
+        assertNull(ExecutorMode.SINGLE.createExecutor(4));
+    }
+
+    @Test
+    void shouldRunOnAFixedNumberOfDaemonThreadsInPoolMode() throws Exception {
+        ExecutorService executor = ExecutorMode.POOL.createExecutor(2);
+        try {
+            Set<Thread> threads = ConcurrentHashMap.newKeySet();
+            // Every task waits for all of them to start, so each one needs a thread of its own
+            CountDownLatch started = new CountDownLatch(2);
+            for (int i = 0; i < 2; i++) {
+                executor.submit(() -> {
+                    threads.add(Thread.currentThread());
+                    started.countDown();
+                    return started.await(10, TimeUnit.SECONDS);
+                });
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertEquals(2, threads.size());
+            for (Thread thread : threads) {
+                assertTrue(thread.isDaemon());
+                assertFalse(thread.isVirtual());
+                assertTrue(thread.getName()
+                                 .startsWith("stripe-mock-"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void shouldRunEveryTaskOnAVirtualThreadInVirtualMode() throws Exception {
+        ExecutorService executor = ExecutorMode.VIRTUAL.createExecutor(1);
+        try {
+            Thread thread = executor.submit(Thread::currentThread)
+                                    .get(10, TimeUnit.SECONDS);
+            assertTrue(thread.isVirtual());
+            assertTrue(thread.getName()
+                             .startsWith("stripe-mock-virtual-"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -287,6 +287,32 @@ public class PaymentIntentTest extends AbstractStripeMockTest {
                                .getMessage());
     }
 
+    @Test
+    void shouldShowTheLatestVersionWhenRetrievedRepeatedly() throws StripeException {
+        PaymentIntent pi = //
+                PaymentIntent.create(PaymentIntentCreateParams.builder()
+                                                              .setAmount(10_000L)
+                                                              .setCurrency("USD")
+                                                              .build());
+        assertEquals(PaymentIntent.retrieve(pi.getId()), PaymentIntent.retrieve(pi.getId()));
+
+        pi.update(PaymentIntentUpdateParams.builder()
+                                           .putMetadata("key", "value")
+                                           .setPaymentMethod("pm_card_mastercard")
+                                           .build());
+        PaymentIntent updated = PaymentIntent.retrieve(pi.getId());
+        assertEquals("value",
+                     updated.getMetadata()
+                            .get("key"));
+        assertEquals("requires_confirmation", updated.getStatus());
+        assertEquals(updated, PaymentIntent.retrieve(pi.getId()));
+
+        pi.confirm();
+        assertEquals("succeeded",
+                     PaymentIntent.retrieve(pi.getId())
+                                  .getStatus());
+    }
+
     @Test
     void shouldHandleEmptyUpdate() throws StripeException {
         PaymentIntent paymentIntent = PaymentIntent.create(PaymentIntentCreateParams.builder()
@@ -312,5 +312,31 @@ public class RefundTest extends AbstractStripeMockTest {
                              .getAmount());
     }
 
+    @Test
+    void shouldShowUpdatedRefundsInTheCharge() throws StripeException {
+        Charge charge = Charge.create(ChargeCreateParams.builder()
+                                                        .setAmount(10_00L)
+                                                        .setCurrency("usd")
+                                                        .build());
+        Refund refund = Refund.create(RefundCreateParams.builder()
+                                                        .setCharge(charge.getId())
+                                                        .build());
+        refund.update(RefundUpdateParams.builder()
+                                        .putMetadata("updated", "true")
+                                        .build());
+
+        List<Refund> refunds = Charge.retrieve(charge.getId())
+                                     .getRefunds()
+                                     .getData();
+        assertEquals(1, refunds.size());
+        assertEquals(refund.getId(),
+                     refunds.getFirst()
+                            .getId());
+        assertEquals("true",
+                     refunds.getFirst()
+                            .getMetadata()
+                            .get("updated"));
+    }
+
     // todo: test cancelling refunds. How can they be in a state where we can even cancel them?
 }
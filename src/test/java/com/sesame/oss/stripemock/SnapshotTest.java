@@ -0,0 +1,182 @@
+package com.sesame.oss.stripemock;
+
+import com.sesame.oss.stripemock.entities.StripeEntities;
+import com.stripe.exception.InvalidRequestException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Charge;
+import com.stripe.model.Customer;
+import com.stripe.model.Refund;
+import com.stripe.param.ChargeCreateParams;
+import com.stripe.param.CustomerCreateParams;
+import com.stripe.param.CustomerListParams;
+import com.stripe.param.CustomerUpdateParams;
+import com.stripe.param.RefundCreateParams;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotTest extends AbstractStripeMockTest {
+    @Test
+    void shouldRestoreCreatedUpdatedAndDeletedEntities() throws StripeException {
+        Customer kept = Customer.create(CustomerCreateParams.builder()
+                                                            .setName("kept")
+                                                            .build());
+        Customer deleted = Customer.create(CustomerCreateParams.builder()
+                                                               .setName("deleted")
+                                                               .build());
+        StripeEntities.Snapshot snapshot = StripeMock.snapshot();
+
+        kept.update(CustomerUpdateParams.builder()
+                                        .setName("changed")
+                                        .build());
+        deleted.delete();
+        Customer created = Customer.create(CustomerCreateParams.builder()
+                                                               .setName("created")
+                                                               .build());
+
+        StripeMock.restore(snapshot);
+
+        assertEquals(kept, Customer.retrieve(kept.getId()));
+        assertEquals(deleted, Customer.retrieve(deleted.getId()));
+        assertThrows(InvalidRequestException.class, () -> Customer.retrieve(created.getId()));
+        assertEquals(2,
+                     Customer.list(CustomerListParams.builder()
+                                                     .build())
+                             .getData()
+                             .size());
+    }
+
+    @Test
+    void shouldNotLeakChangesToRelatedEntitiesIntoTheSnapshot() throws StripeException {
+        Charge charge = Charge.create(ChargeCreateParams.builder()
+                                                        .setAmount(10_00L)
+                                                        .setCurrency("usd")
+                                                        .build());
+        StripeEntities.Snapshot snapshot = StripeMock.snapshot();
+
+        // Refunding changes the charge itself, so this makes sure the charge in the snapshot isn't changed along with it
+        for (int i = 0; i < 2; i++) {
+            Refund refund = Refund.create(RefundCreateParams.builder()
+                                                            .setCharge(charge.getId())
+                                                            .setAmount(3_00L)
+                                                            .build());
+            Charge refundedCharge = Charge.retrieve(charge.getId());
+            assertEquals(3_00L, refundedCharge.getAmountRefunded());
+            assertEquals(1,
+                         refundedCharge.getRefunds()
+                                       .getData()
+                                       .size());
+
+            StripeMock.restore(snapshot);
+
+            assertEquals(charge, Charge.retrieve(charge.getId()));
+            assertThrows(InvalidRequestException.class, () -> Refund.retrieve(refund.getId()));
+        }
+    }
+
+    @Test
+    void shouldKeepSnapshotsIndependentOfEachOther() throws StripeException {
+        Customer customer = Customer.create(CustomerCreateParams.builder()
+                                                                .setName("first")
+                                                                .build());
+        StripeEntities.Snapshot first = StripeMock.snapshot();
+        Customer updated = customer.update(CustomerUpdateParams.builder()
+                                                               .setName("second")
+                                                               .build());
+        StripeEntities.Snapshot second = StripeMock.snapshot();
+        customer.update(CustomerUpdateParams.builder()
+                                            .setName("third")
+                                            .build());
+
+        StripeMock.restore(first);
+        assertEquals(customer, Customer.retrieve(customer.getId()));
+        StripeMock.restore(second);
+        assertEquals(updated, Customer.retrieve(customer.getId()));
+    }
+
+    @Test
+    void shouldOnlyRunMemoizedBootstrapsOnce() throws StripeException {
+        AtomicInteger runs = new AtomicInteger();
+        StripeMock.StripeBootstrap bootstrap = () -> {
+            runs.incrementAndGet();
+            Customer.create(CustomerCreateParams.builder()
+                                                .setName("bootstrapped")
+                                                .putMetadata(StripeMock.OVERRIDE_ID_FOR_TESTING, "cus_bootstrapped")
+                                                .build());
+        };
+        String key = "shouldOnlyRunMemoizedBootstrapsOnce";
+        StripeMock.reset(key, bootstrap);
+        Customer bootstrapped = Customer.retrieve("cus_bootstrapped");
+        bootstrapped.update(CustomerUpdateParams.builder()
+                                                .setName("changed")
+                                                .build());
+        Customer created = Customer.create(CustomerCreateParams.builder()
+                                                               .setName("created")
+                                                               .build());
+
+        StripeMock.reset(key, bootstrap);
+
+        assertEquals(1, runs.get());
+        assertEquals(bootstrapped, Customer.retrieve("cus_bootstrapped"));
+        assertThrows(InvalidRequestException.class, () -> Customer.retrieve(created.getId()));
+
+        // A plain reset still clears everything
+        StripeMock.reset();
+        assertThrows(InvalidRequestException.class, () -> Customer.retrieve("cus_bootstrapped"));
+    }
+
+    @Test
+    void shouldMemoizeBootstrapsByClassWhenEnabled() throws StripeException {
+        AtomicInteger runs = new AtomicInteger();
+        StripeMock.StripeBootstrap bootstrap = runs::incrementAndGet;
+        StripeMock.setMemoizeBootstraps(true);
+        try {
+            StripeMock.reset(bootstrap);
+            StripeMock.reset(bootstrap);
+        } finally {
+            StripeMock.setMemoizeBootstraps(false);
+        }
+        StripeMock.reset(bootstrap);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    void shouldResetWithoutBootstrapWhenMemoizingNothing() throws StripeException {
+        String key = "shouldResetWithoutBootstrapWhenMemoizingNothing";
+        StripeMock.reset(key, () -> Customer.create(CustomerCreateParams.builder()
+                                                                         .putMetadata(StripeMock.OVERRIDE_ID_FOR_TESTING, "cus_memoized")
+                                                                         .build()));
+        Customer created = Customer.create(CustomerCreateParams.builder()
+                                                               .setName("created")
+                                                               .build());
+
+        StripeMock.reset(key, null);
+
+        assertThrows(InvalidRequestException.class, () -> Customer.retrieve(created.getId()));
+        // Even though there's a snapshot for the key, there's no bootstrap, so it's a plain reset
+        assertThrows(InvalidRequestException.class, () -> Customer.retrieve("cus_memoized"));
+    }
+
+    @Test
+    void shouldRestoreTheTimeTheMemoizedBootstrapLeftBehind() throws StripeException {
+        Instant past = Instant.parse("2020-01-01T00:00:00Z");
+        String key = "shouldRestoreTheTimeTheMemoizedBootstrapLeftBehind";
+        StripeMock.StripeBootstrap bootstrap = () -> StripeMock.adjustTimeTo(past);
+        try {
+            StripeMock.reset(key, bootstrap);
+            StripeMock.adjustTimeTo(Instant.now());
+
+            StripeMock.reset(key, bootstrap);
+
+            assertEquals(past.getEpochSecond(),
+                         Customer.create(CustomerCreateParams.builder()
+                                                             .build())
+                                 .getCreated());
+        } finally {
+            StripeMock.adjustTimeTo(Instant.now());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.sesame.oss.stripemock;
+
+import com.stripe.Stripe;
+import com.stripe.exception.InvalidRequestException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Customer;
+import com.stripe.net.RequestOptions;
+import com.stripe.param.CustomerCreateParams;
+import com.stripe.param.CustomerListParams;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TenantTest extends AbstractStripeMockTest {
+    private static final RequestOptions TENANT_A = RequestOptions.builder()
+                                                                 .setApiKey("sk_test_tenant_a")
+                                                                 .build();
+    private static final RequestOptions TENANT_B = RequestOptions.builder()
+                                                                 .setApiKey("sk_test_tenant_b")
+                                                                 .build();
+
+    @Test
+    void shouldIsolateTenantsByApiKey() throws StripeException {
+        Customer inDefault = Customer.create(CustomerCreateParams.builder()
+                                                                 .setName("default")
+                                                                 .build());
+        Customer inA = Customer.create(CustomerCreateParams.builder()
+                                                           .setName("a")
+                                                           .build(), TENANT_A);
+
+        assertEquals(inA, Customer.retrieve(inA.getId(), TENANT_A));
+        assertThrows(InvalidRequestException.class, () -> Customer.retrieve(inA.getId()));
+        assertThrows(InvalidRequestException.class, () -> Customer.retrieve(inA.getId(), TENANT_B));
+        assertThrows(InvalidRequestException.class, () -> Customer.retrieve(inDefault.getId(), TENANT_A));
+        assertEquals(1,
+                     Customer.list(CustomerListParams.builder()
+                                                     .build())
+                             .getData()
+                             .size());
+        assertEquals(0,
+                     Customer.list(CustomerListParams.builder()
+                                                     .build(), TENANT_B)
+                             .getData()
+                             .size());
+    }
+
+    @Test
+    void shouldOnlyResetTheGivenTenant() throws StripeException {
+        Customer inA = Customer.create(CustomerCreateParams.builder()
+                                                           .setName("a")
+                                                           .build(), TENANT_A);
+        Customer inB = Customer.create(CustomerCreateParams.builder()
+                                                           .setName("b")
+                                                           .build(), TENANT_B);
+
+        StripeMock.resetTenant("sk_test_tenant_a");
+
+        assertThrows(InvalidRequestException.class, () -> Customer.retrieve(inA.getId(), TENANT_A));
+        assertEquals(inB, Customer.retrieve(inB.getId(), TENANT_B));
+        StripeMock.resetTenant("sk_test_tenant_b");
+    }
+
+    @Test
+    void shouldHaveAClockPerTenant() throws StripeException {
+        Instant past = Instant.parse("2020-01-01T00:00:00Z");
+        StripeMock.adjustTimeTo("sk_test_tenant_a", past);
+        try {
+            Customer inA = Customer.create(CustomerCreateParams.builder()
+                                                               .build(), TENANT_A);
+            Customer inDefault = Customer.create(CustomerCreateParams.builder()
+                                                                     .build());
+            assertEquals(past.getEpochSecond(), inA.getCreated());
+            assertNotEquals(past.getEpochSecond(), inDefault.getCreated());
+        } finally {
+            StripeMock.adjustTimeTo("sk_test_tenant_a", Instant.now());
+            StripeMock.resetTenant("sk_test_tenant_a");
+        }
+    }
+
+    @Test
+    void shouldNotShareIdempotencyKeysBetweenTenants() throws StripeException {
+        String idempotencyKey = String.valueOf(Math.random());
+        Customer inA = Customer.create(CustomerCreateParams.builder()
+                                                           .setName("a")
+                                                           .build(),
+                                       RequestOptions.builder()
+                                                     .setApiKey("sk_test_tenant_a")
+                                                     .setIdempotencyKey(idempotencyKey)
+                                                     .build());
+        // Different parameters with the same key would be rejected within a single tenant
+        Customer inB = Customer.create(CustomerCreateParams.builder()
+                                                           .setName("b")
+                                                           .build(),
+                                       RequestOptions.builder()
+                                                     .setApiKey("sk_test_tenant_b")
+                                                     .setIdempotencyKey(idempotencyKey)
+                                                     .build());
+        assertNotEquals(inA.getId(), inB.getId());
+        assertEquals("b", inB.getName());
+        StripeMock.resetTenant("sk_test_tenant_a");
+        StripeMock.resetTenant("sk_test_tenant_b");
+    }
+
+    @Test
+    void shouldForgetRemovedTenants() throws StripeException {
+        Customer inA = Customer.create(CustomerCreateParams.builder()
+                                                           .setName("a")
+                                                           .build(), TENANT_A);
+
+        StripeMock.removeTenant("sk_test_tenant_a");
+
+        assertThrows(InvalidRequestException.class, () -> Customer.retrieve(inA.getId(), TENANT_A));
+        assertThrows(IllegalArgumentException.class, () -> StripeMock.removeTenant(Stripe.apiKey));
+    }
+}
@@ -0,0 +1,188 @@
+package com.sesame.oss.stripemock.entities;
+
+import com.google.gson.JsonObject;
+import com.sesame.oss.stripemock.util.Utilities;
+import com.stripe.model.Address;
+import com.stripe.model.Customer;
+import com.stripe.model.InvoiceLineItem;
+import com.stripe.model.PaymentMethod;
+import com.stripe.model.Price;
+import com.stripe.model.Subscription;
+import com.stripe.model.SubscriptionItem;
+import com.stripe.net.ApiResource;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityPatcherTest {
+    @Test
+    void shouldPatchLikeTheJsonRoundTrip() {
+        Customer customer = customer();
+        Map<String, Object> address = new HashMap<>();
+        address.put("city", "Oslo");
+        address.put("line2", null);
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("added", "yes");
+        metadata.put("removed", null);
+        Map<String, Object> formData = new HashMap<>();
+        formData.put("name", "New name");
+        formData.put("balance", "250");
+        formData.put("delinquent", "true");
+        formData.put("email", null);
+        formData.put("default_source", "card_123");
+        formData.put("not_a_field", "ignored");
+        formData.put("expand", "ignored");
+        formData.put("address", address);
+        formData.put("metadata", metadata);
+
+        Customer patched = EntityPatcher.patchedCopy(customer, formData)
+                                        .orElseThrow();
+
+        assertEquals(Utilities.PRODUCER_GSON.toJson(roundTrip(customer, formData)), Utilities.PRODUCER_GSON.toJson(patched));
+        assertEquals("New name", patched.getName());
+        assertEquals(250L, patched.getBalance());
+        assertEquals("card_123", patched.getDefaultSource());
+        assertEquals("Oslo",
+                     patched.getAddress()
+                            .getCity());
+        assertNull(patched.getAddress()
+                          .getLine2());
+        assertEquals("1 Main Street",
+                     patched.getAddress()
+                            .getLine1());
+        assertEquals("yes",
+                     patched.getMetadata()
+                            .get("added"));
+        assertNull(patched.getMetadata()
+                          .get("removed"));
+        assertEquals("value",
+                     patched.getMetadata()
+                            .get("key"));
+        // The original is untouched
+        assertEquals("Old name", customer.getName());
+        assertEquals("Bergen",
+                     customer.getAddress()
+                             .getCity());
+        assertFalse(customer.getMetadata()
+                            .containsKey("added"));
+    }
+
+    @Test
+    void shouldCopyDeeply() {
+        PaymentMethod paymentMethod = new PaymentMethod();
+        paymentMethod.setId("pm_123");
+        paymentMethod.setCustomerObject(customer());
+        paymentMethod.setMetadata(new HashMap<>(Map.of("key", "value")));
+
+        PaymentMethod copy = EntityPatcher.copy(paymentMethod)
+                                          .orElseThrow();
+
+        assertEquals(Utilities.PRODUCER_GSON.toJson(paymentMethod), Utilities.PRODUCER_GSON.toJson(copy));
+        assertNotSame(paymentMethod.getMetadata(), copy.getMetadata());
+        assertNotSame(paymentMethod.getCustomerObject(), copy.getCustomerObject());
+        assertNotSame(paymentMethod.getCustomerObject()
+                                   .getAddress(),
+                      copy.getCustomerObject()
+                          .getAddress());
+        assertEquals("cus_123", copy.getCustomer());
+    }
+
+    @Test
+    void shouldGiveUpOnValuesTheRoundTripWouldReject() {
+        assertTrue(EntityPatcher.patchedCopy(customer(), Map.of("balance", "not a number"))
+                                .isEmpty());
+        assertTrue(EntityPatcher.patchedCopy(customer(), Map.of("default_source", Map.of("id", "card_123")))
+                                .isEmpty());
+        assertTrue(EntityPatcher.patchedCopy(customer(), Map.of("metadata", Map.of("nested", Map.of("key", "value"))))
+                                .isEmpty());
+    }
+
+    @Test
+    void shouldGiveUpOnNestedValuesForExistingExpandableFields() {
+        Customer customer = customer();
+        customer.setDefaultSource("card_123");
+        assertTrue(EntityPatcher.patchedCopy(customer, Map.of("default_source", Map.of("id", "card_456")))
+                                .isEmpty());
+    }
+
+    @Test
+    void shouldBindLikeTheJsonRoundTrip() {
+        Map<String, Object> formData = new HashMap<>();
+        formData.put("customer", "cus_123");
+        formData.put("cancel_at_period_end", "false");
+        formData.put("expand", new Object[]{"latest_invoice"});
+        formData.put("metadata", Map.of("key", "value"));
+        formData.put("items",
+                     Map.of("data",
+                            new Object[]{Map.of("quantity", "2", "price", Map.of("currency", "usd", "unit_amount", "1000")), Map.of("quantity", "1")}));
+
+        Subscription bound = EntityPatcher.bind(formData, Subscription.class)
+                                          .orElseThrow();
+
+        assertEquals(Utilities.PRODUCER_GSON.toJson(ApiResource.GSON.fromJson(Utilities.PRODUCER_GSON.toJson(formData), Subscription.class)),
+                     Utilities.PRODUCER_GSON.toJson(bound));
+        SubscriptionItem item = bound.getItems()
+                                     .getData()
+                                     .getFirst();
+        assertEquals(2L, item.getQuantity());
+        assertEquals(1000L,
+                     item.getPrice()
+                         .getUnitAmount());
+        assertEquals("cus_123", bound.getCustomer());
+    }
+
+    @Test
+    void shouldConvertLikeTheJsonRoundTrip() {
+        Price price = new Price();
+        price.setId("price_123");
+        price.setCurrency("usd");
+        price.setUnitAmount(1000L);
+        price.setProduct("prod_123");
+        SubscriptionItem subscriptionItem = new SubscriptionItem();
+        subscriptionItem.setId("si_123");
+        subscriptionItem.setObject("subscription_item");
+        subscriptionItem.setQuantity(2L);
+        subscriptionItem.setPrice(price);
+        subscriptionItem.setSubscription("sub_123");
+        subscriptionItem.setMetadata(Map.of("key", "value"));
+
+        InvoiceLineItem converted = EntityPatcher.convert(subscriptionItem, InvoiceLineItem.class)
+                                                 .orElseThrow();
+
+        assertEquals(Utilities.PRODUCER_GSON.toJson(ApiResource.GSON.fromJson(Utilities.PRODUCER_GSON.toJson(subscriptionItem), InvoiceLineItem.class)),
+                     Utilities.PRODUCER_GSON.toJson(converted));
+        assertEquals(2L, converted.getQuantity());
+        assertEquals("price_123",
+                     converted.getPrice()
+                              .getId());
+        assertNotSame(price, converted.getPrice());
+    }
+
+    private static Customer customer() {
+        Customer customer = new Customer();
+        customer.setId("cus_123");
+        customer.setObject("customer");
+        customer.setName("Old name");
+        customer.setEmail("old@example.com");
+        customer.setBalance(100L);
+        Address address = new Address();
+        address.setCity("Bergen");
+        address.setLine1("1 Main Street");
+        address.setLine2("Apartment 2");
+        customer.setAddress(address);
+        customer.setMetadata(new HashMap<>(Map.of("key", "value", "removed", "soon")));
+        return customer;
+    }
+
+    private static Customer roundTrip(Customer customer, Map<String, Object> formData) {
+        JsonObject root = Utilities.PRODUCER_GSON.toJsonTree(customer)
+                                                 .getAsJsonObject();
+        ((AbstractEntityManager<Customer>) new StripeEntities(Clock.systemUTC()).getEntityManager(Customer.class)).merge(root, formData);
+        return ApiResource.GSON.fromJson(root, Customer.class);
+    }
+}
@@ -0,0 +1,61 @@
+package com.sesame.oss.stripemock.entities;
+
+import com.sesame.oss.stripemock.StripeMock;
+import com.sesame.oss.stripemock.http.ResponseCodeException;
+import com.stripe.model.Customer;
+import com.stripe.model.PaymentMethod;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdIndexTest {
+    private final StripeEntities stripeEntities = new StripeEntities(Clock.systemUTC());
+
+    @Test
+    void shouldFindEntitiesByPrefixAndOverriddenId() throws ResponseCodeException {
+        Customer routed = stripeEntities.getEntityManager(Customer.class)
+                                        .add(new HashMap<>(), null);
+        Customer overridden = stripeEntities.getEntityManager(Customer.class)
+                                            .add(formDataWithId("my_customer"), null);
+
+        assertSame(routed, stripeEntities.getEntityById(routed.getId())
+                                         .orElseThrow());
+        assertSame(overridden, stripeEntities.getEntityById("my_customer")
+                                             .orElseThrow());
+        // Bootstrapped with an id that doesn't match the payment method prefix
+        assertInstanceOf(PaymentMethod.class,
+                         stripeEntities.getEntityById("tok_visa")
+                                       .orElseThrow());
+        assertEquals(Optional.empty(), stripeEntities.getEntityById("cus_nonexistent"));
+        assertEquals(Optional.empty(), stripeEntities.getEntityById("nonexistent"));
+        assertEquals(Optional.empty(), stripeEntities.getEntityById(null));
+    }
+
+    @Test
+    void shouldRestoreTheIndexAlongWithTheEntities() throws ResponseCodeException {
+        StripeEntities.Snapshot snapshot = stripeEntities.snapshot();
+        stripeEntities.getEntityManager(Customer.class)
+                      .add(formDataWithId("my_customer"), null);
+
+        stripeEntities.restore(snapshot);
+        assertEquals(Optional.empty(), stripeEntities.getEntityById("my_customer"));
+        // The id is free again, so it can be used by another type of entity
+        PaymentMethod paymentMethod = stripeEntities.getEntityManager(PaymentMethod.class)
+                                                    .add(formDataWithId("my_customer"), null);
+        assertSame(paymentMethod, stripeEntities.getEntityById("my_customer")
+                                                .orElseThrow());
+    }
+
+    private static Map<String, Object> formDataWithId(String id) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(StripeMock.OVERRIDE_ID_FOR_TESTING, id);
+        Map<String, Object> formData = new HashMap<>();
+        formData.put("metadata", metadata);
+        return formData;
+    }
+}
@@ -0,0 +1,106 @@
+package com.sesame.oss.stripemock.entities;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentMapTest {
+    @Test
+    void shouldBehaveLikeAHashMap() {
+        Random random = new Random(1234);
+        Map<String, Integer> expected = new HashMap<>();
+        PersistentMap<String, Integer> actual = PersistentMap.empty();
+        for (int i = 0; i < 20_000; i++) {
+            String key = "cus_" + random.nextInt(5_000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                actual = actual.remove(key);
+            } else {
+                expected.put(key, i);
+                actual = actual.put(key, i);
+            }
+            assertEquals(expected.size(), actual.size());
+        }
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), actual.get(entry.getKey()));
+        }
+        assertEquals(expected.values()
+                             .stream()
+                             .sorted()
+                             .toList(),
+                     actual.values()
+                           .stream()
+                           .sorted()
+                           .toList());
+    }
+
+    @Test
+    void shouldNotChangeOlderVersions() {
+        PersistentMap<String, String> empty = PersistentMap.empty();
+        PersistentMap<String, String> one = empty.put("a", "1");
+        PersistentMap<String, String> two = one.put("b", "2");
+        PersistentMap<String, String> changed = two.put("a", "changed")
+                                                   .remove("b");
+
+        assertNull(empty.get("a"));
+        assertEquals("1", one.get("a"));
+        assertNull(one.get("b"));
+        assertEquals("1", two.get("a"));
+        assertEquals("2", two.get("b"));
+        assertEquals("changed", changed.get("a"));
+        assertNull(changed.get("b"));
+        assertEquals(List.of(0, 1, 2, 1), List.of(empty.size(), one.size(), two.size(), changed.size()));
+    }
+
+    @Test
+    void shouldHandleKeysWithTheSameHashCode() {
+        // "Aa" and "BB" have the same hash code, so any combination of them of the same length does too
+        List<String> keys = new ArrayList<>();
+        for (String first : List.of("Aa", "BB")) {
+            for (String second : List.of("Aa", "BB")) {
+                for (String third : List.of("Aa", "BB")) {
+                    keys.add(first + second + third);
+                }
+            }
+        }
+        // This one has a hash code that only differs in the highest bits, so it ends up next to the collisions at the bottom of the trie
+        Key neighbour = new Key("neighbour", keys.getFirst()
+                                                 .hashCode() ^ (1 << 31));
+        PersistentMap<Object, String> map = PersistentMap.<Object, String>empty()
+                                                         .put(neighbour, "neighbour");
+        for (String key : keys) {
+            map = map.put(key, key);
+        }
+        assertEquals(keys.size() + 1, map.size());
+        for (String key : keys) {
+            assertEquals(key, map.get(key));
+        }
+        assertEquals("neighbour", map.get(neighbour));
+        // Copying the values iterates over them, which has to visit every level of the trie
+        assertEquals(keys.size() + 1, new ArrayList<>(map.values()).size());
+
+        for (String key : keys) {
+            map = map.remove(key);
+            assertNull(map.get(key));
+        }
+        assertEquals(1, map.size());
+        assertEquals("neighbour", map.get(neighbour));
+        assertEquals(0,
+                     map.remove(neighbour)
+                        .size());
+    }
+
+    private record Key(String name,
+                       int hash) {
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
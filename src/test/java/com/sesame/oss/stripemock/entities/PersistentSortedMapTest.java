@@ -0,0 +1,62 @@
+package com.sesame.oss.stripemock.entities;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentSortedMapTest {
+    @Test
+    void shouldBehaveLikeATreeMap() {
+        Random random = new Random(1234);
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        PersistentSortedMap<Integer, Integer> actual = PersistentSortedMap.empty();
+        for (int i = 0; i < 20_000; i++) {
+            int key = random.nextInt(5_000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                actual = actual.remove(key);
+            } else {
+                expected.put(key, i);
+                actual = actual.put(key, i);
+            }
+            assertEquals(expected.size(), actual.size());
+        }
+        assertEquals(new ArrayList<>(expected.values()), toList(actual.ascendingFrom(null, false)));
+        assertEquals(new ArrayList<>(expected.descendingMap()
+                                             .values()), toList(actual.descendingFrom(null, false)));
+        for (int from : List.of(-1, 0, 1234, 2500, 4999, 5000)) {
+            assertEquals(new ArrayList<>(expected.tailMap(from, false)
+                                                 .values()), toList(actual.ascendingFrom(from, false)));
+            assertEquals(new ArrayList<>(expected.tailMap(from, true)
+                                                 .values()), toList(actual.ascendingFrom(from, true)));
+            assertEquals(new ArrayList<>(expected.headMap(from, false)
+                                                 .descendingMap()
+                                                 .values()), toList(actual.descendingFrom(from, false)));
+        }
+    }
+
+    @Test
+    void shouldNotChangeOlderVersions() {
+        PersistentSortedMap<String, String> one = PersistentSortedMap.<String, String>empty()
+                                                                     .put("a", "1");
+        PersistentSortedMap<String, String> two = one.put("b", "2");
+        PersistentSortedMap<String, String> changed = two.put("a", "changed")
+                                                         .remove("b");
+
+        assertEquals(List.of("1"), toList(one.ascendingFrom(null, false)));
+        assertEquals(List.of("1", "2"), toList(two.ascendingFrom(null, false)));
+        assertEquals(List.of("changed"), toList(changed.ascendingFrom(null, false)));
+    }
+
+    private static <V> List<V> toList(Iterator<V> iterator) {
+        List<V> list = new ArrayList<>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
+}
@@ -0,0 +1,82 @@
+package com.sesame.oss.stripemock.entities;
+
+import com.sesame.oss.stripemock.http.ResponseCodeException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchQueryTest {
+    private static final Map<String, SearchQuery.Field<Map<String, Object>>> FIELDS =
+            Map.of("created",
+                   SearchQuery.Field.of("created", entity -> entity.get("created")),
+                   "customer",
+                   SearchQuery.Field.indexed("customer", entity -> entity.get("customer")),
+                   "status",
+                   SearchQuery.Field.of("status", entity -> entity.get("status")),
+                   "email",
+                   SearchQuery.Field.indexedIgnoringCase("email", entity -> entity.get("email")),
+                   "metadata",
+                   SearchQuery.Field.of("metadata", entity -> entity.get("metadata")));
+
+    @Test
+    void shouldUseTheIndexesAndCreatedRangeForAndQueries() throws ResponseCodeException {
+        ListQuery<Map<String, Object>> query = compile("customer:'cus_1' created>=100 created<200 -status:'canceled'").toListQuery(entity -> true);
+        assertEquals(Map.of("customer", Set.of("cus_1")), query.equalTo());
+        assertEquals(100, query.createdFrom());
+        assertEquals(199, query.createdTo());
+        assertTrue(query.filter()
+                        .test(Map.of("customer", "cus_1", "created", 150L, "status", "active")));
+        assertFalse(query.filter()
+                         .test(Map.of("customer", "cus_1", "created", 150L, "status", "CANCELED")));
+    }
+
+    @Test
+    void shouldLookUpFieldsThatIgnoreCaseInTheirLowerCasedIndex() throws ResponseCodeException {
+        ListQuery<Map<String, Object>> query = compile("email:'Jane@Example.com'").toListQuery(entity -> true);
+        assertEquals(Map.of(ListParameter.ignoringCaseName("email"), Set.of("jane@example.com")), query.equalTo());
+        assertTrue(query.filter()
+                        .test(Map.of("email", "JANE@example.COM")));
+        assertEquals(Set.of("jane@example.com"),
+                     ListParameter.<Map<String, Object>>ignoringCase("email", entity -> entity.get("email"))
+                                  .values()
+                                  .apply(Map.of("email", "JANE@example.COM")));
+    }
+
+    @Test
+    void shouldCheckOrQueriesAgainstEveryEntity() throws ResponseCodeException {
+        ListQuery<Map<String, Object>> query = compile("customer:'cus_1' OR metadata['key']:null").toListQuery(entity -> true);
+        assertEquals(Map.of(), query.equalTo());
+        assertTrue(query.filter()
+                        .test(Map.of("customer", "cus_1", "metadata", Map.of("key", "value"))));
+        assertTrue(query.filter()
+                        .test(Map.of("customer", "cus_2", "metadata", Map.of())));
+        assertFalse(query.filter()
+                         .test(Map.of("customer", "cus_2", "metadata", Map.of("key", "value"))));
+    }
+
+    @Test
+    void shouldRejectInvalidQueries() {
+        for (String invalid : List.of("",
+                                      "status",
+                                      "status='active'",
+                                      "status:'active",
+                                      "status:'active'AND customer:'cus_1'",
+                                      "status~'ac'",
+                                      "created>yesterday",
+                                      "metadata:'value'",
+                                      "unknown:'value'",
+                                      "status:'a' AND status:'b' OR status:'c'")) {
+            ResponseCodeException e = assertThrows(ResponseCodeException.class, () -> compile(invalid), invalid);
+            assertEquals(400, e.getResponseCode(), invalid);
+            assertEquals("query", e.getParam(), invalid);
+        }
+    }
+
+    private static SearchQuery<Map<String, Object>> compile(String query) throws ResponseCodeException {
+        return SearchQuery.compile(query, FIELDS, "charges");
+    }
+}
@@ -0,0 +1,78 @@
+package com.sesame.oss.stripemock.entities;
+
+import com.sesame.oss.stripemock.util.Utilities;
+import com.stripe.model.Customer;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StripeEntitiesTest {
+    @Test
+    void shouldNeverKeepTheJsonOfAnEntityThatIsBeingChangedInPlace() throws Exception {
+        StripeEntities stripeEntities = new StripeEntities(Clock.systemUTC());
+        EntityManager<Customer> customers = stripeEntities.getEntityManager(Customer.class);
+        Map<String, Object> formData = new HashMap<>();
+        formData.put("name", "done");
+        String id = customers.add(formData, null)
+                             .getId();
+        // What the response cache does: json is only kept if the revision is the same before and after serializing
+        Map<Long, String> cache = new ConcurrentHashMap<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        int readers = 4;
+        try (ExecutorService executor = Executors.newFixedThreadPool(readers + 1)) {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int reader = 0; reader < readers; reader++) {
+                tasks.add(executor.submit(() -> {
+                    while (writing.get()) {
+                        Customer customer = customers.get(id, null)
+                                                     .orElseThrow();
+                        long revision = stripeEntities.getRevision(customer);
+                        String json = Utilities.PRODUCER_GSON.toJson(customer);
+                        if (revision != -1 && stripeEntities.getRevision(customer) == revision) {
+                            cache.put(revision, json);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            tasks.add(executor.submit(() -> {
+                try {
+                    for (int i = 0; i < 2_000; i++) {
+                        try (EntityLocks.Held ignored = stripeEntities.lock(id)) {
+                            Customer customer = stripeEntities.getForUpdate(Customer.class, id, null)
+                                                              .orElseThrow();
+                            customer.setName("half");
+                            Thread.yield();
+                            customer.setName("done");
+                        }
+                    }
+                } finally {
+                    writing.set(false);
+                }
+                return null;
+            }));
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        }
+
+        for (String json : cache.values()) {
+            assertFalse(json.contains("\"half\""), json);
+        }
+        Customer customer = customers.get(id, null)
+                                     .orElseThrow();
+        String latest = cache.get(stripeEntities.getRevision(customer));
+        assertTrue(latest == null || latest.equals(Utilities.PRODUCER_GSON.toJson(customer)));
+    }
+}
@@ -0,0 +1,70 @@
+package com.sesame.oss.stripemock.http;
+
+import com.google.gson.JsonObject;
+import com.sesame.oss.stripemock.entities.StripeEntities;
+import com.stripe.model.Customer;
+import com.stripe.model.PaymentMethod;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpansionPlanTest {
+    private final StripeEntities stripeEntities = new StripeEntities(Clock.systemUTC());
+
+    @Test
+    void shouldOnlyExpandEachIdOnceForTheWholeResponse() throws ResponseCodeException {
+        Customer customer = createCustomer();
+        ExpansionPlan.Expansion expansion = ExpansionPlan.of(List.of("data.customer"))
+                                                         .start(stripeEntities);
+
+        JsonObject first = expansion.expand(paymentMethod("pm_1", customer.getId()));
+        JsonObject second = expansion.expand(paymentMethod("pm_2", customer.getId()));
+
+        assertEquals(customer.getId(),
+                     first.getAsJsonObject("customer")
+                          .get("id")
+                          .getAsString());
+        assertSame(first.get("customer"), second.get("customer"));
+    }
+
+    @Test
+    void shouldShareThePlanBetweenRequests() {
+        assertSame(ExpansionPlan.of(List.of("customer", "latest_invoice.subscription")),
+                   ExpansionPlan.of(List.of("customer", "latest_invoice.subscription")));
+    }
+
+    @Test
+    void shouldOnlyBeLenientForLists() throws ResponseCodeException {
+        PaymentMethod paymentMethod = paymentMethod("pm_1", null);
+
+        JsonObject expanded = ExpansionPlan.of(List.of("data.customer"))
+                                           .start(stripeEntities)
+                                           .expand(paymentMethod);
+        assertFalse(expanded.has("customer"));
+
+        ResponseCodeException e = assertThrows(ResponseCodeException.class,
+                                               () -> ExpansionPlan.of(List.of("customer.address"))
+                                                                  .start(stripeEntities)
+                                                                  .expand(paymentMethod));
+        assertEquals("This property cannot be expanded (customer).", e.getMessage());
+    }
+
+    private Customer createCustomer() throws ResponseCodeException {
+        Map<String, Object> formData = new HashMap<>();
+        formData.put("name", "Customer");
+        return stripeEntities.getEntityManager(Customer.class)
+                             .add(formData, null);
+    }
+
+    private static PaymentMethod paymentMethod(String id, String customer) {
+        PaymentMethod paymentMethod = new PaymentMethod();
+        paymentMethod.setId(id);
+        paymentMethod.setCustomer(customer);
+        return paymentMethod;
+    }
+}
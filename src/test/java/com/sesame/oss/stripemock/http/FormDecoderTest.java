@@ -0,0 +1,299 @@
+package com.sesame.oss.stripemock.http;
+
+import com.stripe.net.FormEncoder;
+import com.stripe.param.*;
+import com.stripe.param.common.EmptyParam;
+import org.junit.jupiter.api.Test;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FormDecoderTest {
+    @Test
+    void shouldDecodeEveryFormInTheCorpusExactlyLikeTheOriginalParser() throws ResponseCodeException {
+        for (Map<String, Object> params : corpus()) {
+            String form = FormEncoder.createQueryString(params);
+            assertEquals(comparable(OriginalParser.parseFormData(form)), comparable(decode(form)), form);
+        }
+    }
+
+    @Test
+    void shouldDecodeTheQueryStringLikeTheBody() throws ResponseCodeException {
+        for (Map<String, Object> params : corpus()) {
+            String form = FormEncoder.createQueryString(params);
+            assertEquals(comparable(decode(form)), comparable(FormDecoder.decodeQuery(form)), form);
+        }
+    }
+
+    @Test
+    void shouldBuildArraysAndStripeCollections() throws ResponseCodeException {
+        Map<String, Object> decoded = decode("expand[0]=customer&expand[1]=invoice.subscription&items[0][price]=price_1&items[1][price]=price_2");
+        assertArrayEquals(new Object[]{"customer", "invoice.subscription"}, (Object[]) decoded.get("expand"));
+        Map<?, ?> items = (Map<?, ?>) decoded.get("items");
+        assertEquals("list", items.get("object"));
+        Object[] data = (Object[]) items.get("data");
+        assertEquals(Map.of("price", "price_1"), data[0]);
+        assertEquals(Map.of("price", "price_2"), data[1]);
+    }
+
+    @Test
+    void shouldDecodeMissingValuesAsNull() throws ResponseCodeException {
+        Map<String, Object> decoded = decode("metadata[a]=&description&name=x");
+        assertTrue(decoded.containsKey("description"));
+        assertNull(decoded.get("description"));
+        assertEquals(Collections.singletonMap("a", null), decoded.get("metadata"));
+        assertEquals("x", decoded.get("name"));
+    }
+
+    @Test
+    void shouldKeepNumericMetadataKeysAsKeys() throws ResponseCodeException {
+        // The original parser turned this into an array, which then couldn't be parsed as metadata
+        Map<String, Object> decoded = decode("metadata[0]=zero&metadata[12]=twelve");
+        assertEquals(Map.of("0", "zero", "12", "twelve"), decoded.get("metadata"));
+    }
+
+    @Test
+    void shouldDecodeKeysAndValues() throws ResponseCodeException {
+        // The original parser didn't decode the keys, so this would have been "order+id"
+        Map<String, Object> decoded = decode("metadata[order+id]=a%26b%3Dc+d&query=email%3A%27%C3%B8%40example.com%27");
+        assertEquals(Map.of("order id", "a&b=c d"), decoded.get("metadata"));
+        assertEquals("email:'ø@example.com'", decoded.get("query"));
+    }
+
+    @Test
+    void shouldRejectInvalidEncodings() {
+        assertEquals(400, assertThrows(ResponseCodeException.class, () -> decode("name=%zz")).getResponseCode());
+        assertEquals(400, assertThrows(ResponseCodeException.class, () -> decode("name=%2")).getResponseCode());
+        assertEquals(400, assertThrows(ResponseCodeException.class, () -> decode("expand[0]=a&expand[x]=b")).getResponseCode());
+    }
+
+    private static Map<String, Object> decode(String form) throws ResponseCodeException {
+        byte[] bytes = form.getBytes(StandardCharsets.UTF_8);
+        return FormDecoder.decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Arrays don't implement equals(), so turn them into lists before comparing
+     */
+    private static Object comparable(Object value) {
+        return switch (value) {
+            case Object[] array -> Arrays.stream(array)
+                                         .map(FormDecoderTest::comparable)
+                                         .toList();
+            case Map<?, ?> map -> {
+                Map<Object, Object> comparableMap = new HashMap<>();
+                map.forEach((k, v) -> comparableMap.put(k, comparable(v)));
+                yield comparableMap;
+            }
+            case null -> null;
+            default -> value;
+        };
+    }
+
+    /**
+     * The forms stripe-java sends, built either from the param builders, or from the kind of maps that the builders produce.
+     */
+    private static List<Map<String, Object>> corpus() {
+        List<Map<String, Object>> corpus = new ArrayList<>();
+        corpus.add(Map.of());
+        corpus.add(CustomerCreateParams.builder()
+                                       .setName("Stripe-mock test")
+                                       .setEmail("stripe-mock@example.com")
+                                       .setDescription("Ünïcödé & other = characters + spaces / slashes? 🎉")
+                                       .putMetadata("integration_test", "true")
+                                       .putMetadata("empty", "")
+                                       .setAddress(CustomerCreateParams.Address.builder()
+                                                                               .setLine1("1 main street")
+                                                                               .setCity("New York")
+                                                                               .setPostalCode("12345")
+                                                                               .build())
+                                       .setInvoiceSettings(CustomerCreateParams.InvoiceSettings.builder()
+                                                                                               .setDefaultPaymentMethod("pm_card_visa")
+                                                                                               .build())
+                                       .addExpand("default_source")
+                                       .addExpand("invoice_settings.default_payment_method")
+                                       .build()
+                                       .toMap());
+        corpus.add(CustomerUpdateParams.builder()
+                                       .setDescription(EmptyParam.EMPTY)
+                                       .putMetadata("integration_test", null)
+                                       .putMetadata("other", "value")
+                                       .build()
+                                       .toMap());
+        corpus.add(SubscriptionCreateParams.builder()
+                                           .setCustomer("cus_123")
+                                           .addItem(SubscriptionCreateParams.Item.builder()
+                                                                                 .setPriceData(SubscriptionCreateParams.Item.PriceData.builder()
+                                                                                                                                      .setCurrency("usd")
+                                                                                                                                      .setProduct("prod_123")
+                                                                                                                                      .setUnitAmount(1000L)
+                                                                                                                                      .setRecurring(
+                                                                                                                                              SubscriptionCreateParams.Item.PriceData.Recurring.builder()
+                                                                                                                                                                                               .setInterval(
+                                                                                                                                                                                                       SubscriptionCreateParams.Item.PriceData.Recurring.Interval.MONTH)
+                                                                                                                                                                                               .build())
+                                                                                                                                      .build())
+                                                                                 .setQuantity(2L)
+                                                                                 .putMetadata("item", "1")
+                                                                                 .build())
+                                           .addItem(SubscriptionCreateParams.Item.builder()
+                                                                                 .setPrice("price_123")
+                                                                                 .addTaxRate("txr_1")
+                                                                                 .addTaxRate("txr_2")
+                                                                                 .build())
+                                           .putMetadata("integration_test", "true")
+                                           .setPaymentBehavior(SubscriptionCreateParams.PaymentBehavior.DEFAULT_INCOMPLETE)
+                                           .addExpand("latest_invoice.payment_intent")
+                                           .build()
+                                           .toMap());
+        corpus.add(PaymentIntentCreateParams.builder()
+                                            .setAmount(10_000L)
+                                            .setCurrency("usd")
+                                            .setCustomer("cus_123")
+                                            .setPaymentMethod("pm_card_visa")
+                                            .addPaymentMethodType("card")
+                                            .setConfirm(true)
+                                            .setCaptureMethod(PaymentIntentCreateParams.CaptureMethod.MANUAL)
+                                            .putMetadata("order", "123")
+                                            .build()
+                                            .toMap());
+        corpus.add(ProductCreateParams.builder()
+                                      .setName("Stripe-mock test product")
+                                      .setActive(false)
+                                      .putMetadata("integration_test", "true")
+                                      .build()
+                                      .toMap());
+        corpus.add(RefundCreateParams.builder()
+                                     .setCharge("ch_123")
+                                     .setAmount(500L)
+                                     .setReason(RefundCreateParams.Reason.REQUESTED_BY_CUSTOMER)
+                                     .build()
+                                     .toMap());
+        corpus.add(TransferCreateParams.builder()
+                                       .setAmount(1000L)
+                                       .setCurrency("usd")
+                                       .setDestination("acct_123")
+                                       .setTransferGroup("group")
+                                       .build()
+                                       .toMap());
+        corpus.add(CustomerListParams.builder()
+                                     .setEmail("stripe-mock@example.com")
+                                     .setLimit(100L)
+                                     .setStartingAfter("cus_123")
+                                     .setCreated(CustomerListParams.Created.builder()
+                                                                           .setGte(1_700_000_000L)
+                                                                           .setLt(1_800_000_000L)
+                                                                           .build())
+                                     .addExpand("data.default_source")
+                                     .build()
+                                     .toMap());
+
+        // The same kind of structure the builders produce, including the odd corners
+        Map<String, Object> account = new LinkedHashMap<>();
+        account.put("country", "US");
+        account.put("capabilities", Map.of("card_payments", Map.of("requested", true), "transfers", Map.of("requested", true)));
+        account.put("external_account",
+                    Map.of("object", "bank_account", "country", "US", "currency", "usd", "routing_number", "110000000", "account_number", "000123456789"));
+        account.put("tos_acceptance", Map.of("date", 1_700_000_000L, "ip", "127.0.0.1", "user_agent", "Mozilla/5.0 (X11; Linux x86_64)"));
+        account.put("settings", Map.of("payouts", Map.of("schedule", Map.of("interval", "manual"))));
+        corpus.add(account);
+
+        Map<String, Object> deeplyNested = new LinkedHashMap<>();
+        deeplyNested.put("cash_balance", Map.of("settings", Map.of("reconciliation_mode", "automatic")));
+        deeplyNested.put("items",
+                         List.of(Map.of("discounts", List.of(Map.of("coupon", "c1"), Map.of("coupon", "c2")), "tax_rates", List.of("txr_1")),
+                                 Map.of("price", "price_2")));
+        deeplyNested.put("expand", List.of("a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k", "l"));
+        deeplyNested.put("description", "");
+        deeplyNested.put("amount", 0);
+        deeplyNested.put("flag", false);
+        corpus.add(deeplyNested);
+
+        Map<String, Object> unset = new LinkedHashMap<>();
+        unset.put("default_payment_method", EmptyParam.EMPTY);
+        unset.put("items", EmptyParam.EMPTY);
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("removed", null);
+        metadata.put("kept", "value");
+        unset.put("metadata", metadata);
+        corpus.add(unset);
+        return corpus;
+    }
+
+    /**
+     * The parser that this decoder replaced. We keep it here to prove that the decoder produces exactly the same output for everything stripe-java sends.
+     */
+    private static final class OriginalParser {
+        @SuppressWarnings("unchecked")
+        private static Map<String, Object> parseFormData(String requestBody) {
+            Map<String, Object> values = new HashMap<>();
+            for (String parameter : requestBody.split("&")) {
+                if (parameter.isBlank()) {
+                    continue;
+                }
+                String[] parameterParts = parameter.split("=");
+                String key = parameterParts[0];
+                String value = parameterParts.length == 1 ? null : URLDecoder.decode(parameterParts[1], StandardCharsets.UTF_8);
+                String[] keyPath = key.split("\\[");
+                Map<String, Object> parentValue = values;
+                for (int i = 0; i < keyPath.length; i++) {
+                    String keyPathPart = keyPath[i];
+                    if (keyPathPart.endsWith("]")) {
+                        keyPathPart = keyPathPart.substring(0, keyPathPart.length() - 1);
+                    }
+                    if (i == keyPath.length - 1) {
+                        parentValue.put(keyPathPart, value);
+                    } else {
+                        parentValue = (Map<String, Object>) parentValue.computeIfAbsent(keyPathPart, ignored -> new HashMap<>());
+                    }
+                }
+            }
+            return convertIndexedMapsToArrays(values);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Map<String, Object> convertIndexedMapsToArrays(Map<String, Object> input) {
+            Map<String, Object> output = new HashMap<>();
+            for (Map.Entry<String, Object> inputEntry : input.entrySet()) {
+                Object value = inputEntry.getValue();
+                Object newValue;
+                if (value instanceof Map valueAsUntypedMap) {
+                    Map<String, Object> valueMap = valueAsUntypedMap;
+                    OptionalInt maxIndex = valueMap.keySet()
+                                                   .stream()
+                                                   .mapToInt(potentialIntegerKey -> {
+                                                       try {
+                                                           return Integer.parseInt(potentialIntegerKey);
+                                                       } catch (NumberFormatException e) {
+                                                           return -1;
+                                                       }
+                                                   })
+                                                   .max();
+                    if (maxIndex.isPresent() && maxIndex.getAsInt() > -1) {
+                        Object[] stripeCollectionData = new Object[maxIndex.getAsInt() + 1];
+                        for (Map.Entry<String, Object> intEntry : valueMap.entrySet()) {
+                            stripeCollectionData[Integer.parseInt(intEntry.getKey())] = switch (intEntry.getValue()) {
+                                case Map arrayItemMap -> convertIndexedMapsToArrays(arrayItemMap);
+                                case Object o -> o;
+                            };
+                        }
+                        if (stripeCollectionData[0] instanceof Map) {
+                            newValue = Map.of("object", "list", "data", stripeCollectionData);
+                        } else {
+                            newValue = stripeCollectionData;
+                        }
+                    } else {
+                        newValue = convertIndexedMapsToArrays(valueMap);
+                    }
+                } else {
+                    newValue = value;
+                }
+                output.put(inputEntry.getKey(), newValue);
+            }
+            return output;
+        }
+    }
+}
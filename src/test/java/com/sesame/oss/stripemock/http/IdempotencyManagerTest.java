@@ -0,0 +1,107 @@
+package com.sesame.oss.stripemock.http;
+
+import com.sun.net.httpserver.Headers;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdempotencyManagerTest {
+    private static final byte[] BODY = "amount=1000".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void shouldProcessDifferentKeysInParallel() throws Exception {
+        IdempotencyManager idempotencyManager = new IdempotencyManager();
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<RawResponse> first = inFlight(idempotencyManager, "key_1", "req_1", release);
+
+        // If the first request blocked every other key, this would never finish
+        RawResponse second = start(idempotencyManager, "key_2", BODY).finish(() -> response("req_2"));
+
+        assertEquals("req_2", second.requestId());
+        assertFalse(first.isDone());
+        release.countDown();
+        assertEquals("req_1",
+                     first.get(10, TimeUnit.SECONDS)
+                          .requestId());
+    }
+
+    @Test
+    void shouldWaitForTheOriginalRequestWhenRetriedWhileInFlight() throws Exception {
+        IdempotencyManager idempotencyManager = new IdempotencyManager();
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<RawResponse> original = inFlight(idempotencyManager, "key", "req_original", release);
+
+        CompletableFuture<RawResponse> retry = CompletableFuture.supplyAsync(() -> {
+            try {
+                return start(idempotencyManager, "key", BODY).finish(() -> fail("The retry must not be processed"));
+            } catch (ResponseCodeException e) {
+                throw new AssertionError(e);
+            }
+        });
+        assertThrows(Exception.class, () -> retry.get(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+
+        assertSame(original.get(10, TimeUnit.SECONDS), retry.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void shouldGiveUpOnWaitingAfterTheTimeout() throws Exception {
+        IdempotencyManager idempotencyManager = new IdempotencyManager(Duration.ofMillis(50));
+        CountDownLatch release = new CountDownLatch(1);
+        inFlight(idempotencyManager, "key", "req_original", release);
+        try {
+            ResponseCodeException e = assertThrows(ResponseCodeException.class, () -> start(idempotencyManager, "key", BODY));
+            assertEquals(429, e.getResponseCode());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void shouldRejectDifferentParametersWithoutWaiting() throws Exception {
+        IdempotencyManager idempotencyManager = new IdempotencyManager();
+        CountDownLatch release = new CountDownLatch(1);
+        inFlight(idempotencyManager, "key", "req_original", release);
+        try {
+            RawResponse response = start(idempotencyManager, "key", "amount=2000".getBytes(StandardCharsets.UTF_8)).finish(() -> response("req_other"));
+            assertEquals(400, response.code());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    /**
+     * Starts a request on another thread, which doesn't finish processing until the latch is released
+     */
+    private static CompletableFuture<RawResponse> inFlight(IdempotencyManager idempotencyManager, String idempotencyKey, String requestId, CountDownLatch release)
+            throws ResponseCodeException, InterruptedException {
+        IdempotencyManager.IdempotentRequest request = start(idempotencyManager, idempotencyKey, BODY);
+        CountDownLatch processing = new CountDownLatch(1);
+        CompletableFuture<RawResponse> response = CompletableFuture.supplyAsync(() -> request.finish(() -> {
+            processing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            return response(requestId);
+        }));
+        assertTrue(processing.await(10, TimeUnit.SECONDS));
+        return response;
+    }
+
+    private static IdempotencyManager.IdempotentRequest start(IdempotencyManager idempotencyManager, String idempotencyKey, byte[] body)
+            throws ResponseCodeException {
+        return idempotencyManager.start(idempotencyKey, "POST", new QueryParameters(null), body, RequestHeaders.of(new Headers()), "req_" + idempotencyKey);
+    }
+
+    private static RawResponse response(String requestId) {
+        return new RawResponse(200, "{}", new Headers(), requestId);
+    }
+}
@@ -0,0 +1,104 @@
+package com.sesame.oss.stripemock.http;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sesame.oss.stripemock.util.MutableClock;
+import com.stripe.exception.StripeException;
+import com.stripe.net.ApiResource;
+import com.stripe.net.RequestOptions;
+import com.stripe.net.StripeRequest;
+import com.stripe.net.StripeResponse;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InProcessHttpClientTest {
+    private static final String API_KEY = "sk_test_in_process";
+    private final InProcessHttpClient client =
+            new InProcessHttpClient(new StripeApiHttpHandler(new Tenants(API_KEY, new MutableClock(ZoneOffset.UTC, Instant.now()))));
+
+    @Test
+    void shouldHandleRequestsWithoutHttp() throws StripeException {
+        StripeResponse created = client.request(new StripeRequest(ApiResource.RequestMethod.POST,
+                                                                  "http://stripe-mock.invalid/v1/customers",
+                                                                  Map.of("name", "stripe-mock test"),
+                                                                  options(null)));
+
+        assertEquals(200, created.code());
+        assertEquals(Optional.of("application/json"),
+                     created.headers()
+                            .firstValue("Content-Type"));
+        assertTrue(created.headers()
+                          .firstValue("Request-Id")
+                          .orElseThrow()
+                          .startsWith("req_"));
+        assertEquals(Optional.empty(),
+                     created.headers()
+                            .firstValue("Idempotent-Replayed"));
+        JsonObject customer = JsonParser.parseString(created.body())
+                                        .getAsJsonObject();
+        assertEquals("customer",
+                     customer.get("object")
+                             .getAsString());
+        assertEquals("stripe-mock test",
+                     customer.get("name")
+                             .getAsString());
+
+        String id = customer.get("id")
+                            .getAsString();
+        StripeResponse retrieved = client.request(new StripeRequest(ApiResource.RequestMethod.GET,
+                                                                    "http://stripe-mock.invalid/v1/customers/" + id,
+                                                                    Map.of(),
+                                                                    options(null)));
+        assertEquals(200, retrieved.code());
+        assertEquals(customer, JsonParser.parseString(retrieved.body()));
+    }
+
+    @Test
+    void shouldReplayIdempotentRequests() throws StripeException {
+        StripeRequest request = new StripeRequest(ApiResource.RequestMethod.POST,
+                                                  "http://stripe-mock.invalid/v1/customers",
+                                                  Map.of("name", "stripe-mock test"),
+                                                  options("in-process-key"));
+        StripeResponse original = client.request(request);
+        StripeResponse replayed = client.request(request);
+
+        assertEquals(200, replayed.code());
+        assertEquals(original.body(), replayed.body());
+        assertEquals(Optional.of("in-process-key"),
+                     replayed.headers()
+                             .firstValue("Idempotency-Key"));
+        assertEquals(Optional.of("true"),
+                     replayed.headers()
+                             .firstValue("Idempotent-Replayed"));
+        assertEquals(original.headers()
+                             .firstValue("Request-Id"),
+                     replayed.headers()
+                             .firstValue("Original-Request"));
+    }
+
+    @Test
+    void shouldReturnErrorsAsResponses() throws StripeException {
+        StripeResponse response = client.request(new StripeRequest(ApiResource.RequestMethod.GET,
+                                                                   "http://stripe-mock.invalid/v1/customers/cus_missing",
+                                                                   Map.of(),
+                                                                   options(null)));
+
+        assertEquals(404, response.code());
+        assertTrue(JsonParser.parseString(response.body())
+                             .getAsJsonObject()
+                             .has("error"));
+    }
+
+    private static RequestOptions options(String idempotencyKey) {
+        return RequestOptions.builder()
+                             .setApiKey(API_KEY)
+                             .setIdempotencyKey(idempotencyKey)
+                             .build();
+    }
+}
@@ -0,0 +1,65 @@
+package com.sesame.oss.stripemock.http;
+
+import com.sesame.oss.stripemock.entities.StripeEntities;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouteTableTest {
+    @Test
+    void shouldMatchLiteralsBeforeParameters() throws ResponseCodeException {
+        RouteTable<String> routes = new RouteTable<>();
+        routes.add("GET", "/v1/charges/{id}", "get");
+        routes.add("GET", "/v1/charges/search", "search");
+        routes.add("POST", "/v1/transfers/{parent_id}/reversals/{id}", "update reversal");
+
+        assertEquals("search",
+                     routes.match("GET", "/v1/charges/search")
+                           .handler());
+        RouteTable.Match<String> get = routes.match("GET", "/v1/charges/ch_123");
+        assertEquals("get", get.handler());
+        assertArrayEquals(new String[]{"ch_123", null}, get.parameters());
+        RouteTable.Match<String> updateReversal = routes.match("POST", "/v1/transfers/tr_123/reversals/trr_456/");
+        assertEquals("update reversal", updateReversal.handler());
+        assertArrayEquals(new String[]{"tr_123", "trr_456"}, updateReversal.parameters());
+    }
+
+    @Test
+    void shouldRespondWith404ForUnknownRoutes() {
+        RouteTable<String> routes = new RouteTable<>();
+        routes.add("GET", "/v1/charges/{id}", "get");
+
+        for (String[] request : List.of(new String[]{"GET", "/v1/nonexistent"},
+                                        new String[]{"GET", "/v1/charges"},
+                                        new String[]{"GET", "/v1/charges/ch_123/refunds"},
+                                        new String[]{"DELETE", "/v1/charges/ch_123"})) {
+            ResponseCodeException e = assertThrows(ResponseCodeException.class, () -> routes.match(request[0], request[1]));
+            assertEquals(404, e.getResponseCode());
+            assertEquals("invalid_request_error", e.getErrorType());
+            assertTrue(e.getMessage()
+                        .startsWith(String.format("Unrecognized request URL (%s: %s).", request[0], request[1])));
+        }
+    }
+
+    @Test
+    void shouldRejectDuplicateRoutes() {
+        RouteTable<String> routes = new RouteTable<>();
+        routes.add("GET", "/v1/charges/{id}", "get");
+        assertThrows(IllegalStateException.class, () -> routes.add("GET", "/v1/charges/{charge}", "get again"));
+    }
+
+    @Test
+    void shouldBuildRoutesFromTheEntityManagers() {
+        List<Route> routes = new EntityRequestHandler(new StripeEntities(Clock.systemUTC())).getRoutes();
+        assertTrue(routes.contains(new Route("GET", "/v1/balance")));
+        assertTrue(routes.contains(new Route("POST", "/v1/payment_intents/{id}/confirm")));
+        assertTrue(routes.contains(new Route("DELETE", "/v1/customers/{id}")));
+        assertTrue(routes.contains(new Route("POST", "/v1/transfers/{parent_id}/reversals")));
+        assertTrue(routes.contains(new Route("GET", "/v1/accounts/{parent_id}/external_accounts/{id}")));
+        // Sub-entities are only reachable via their parents
+        assertFalse(routes.contains(new Route("GET", "/v1/reversals")));
+    }
+}
@@ -0,0 +1,62 @@
+package com.sesame.oss.stripemock.http;
+
+import com.sesame.oss.stripemock.util.MutableClock;
+import com.sun.net.httpserver.Headers;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TenantsTest {
+    private final Tenants tenants = new Tenants("sk_test_default", new MutableClock(ZoneOffset.UTC, Instant.now()));
+
+    @Test
+    void shouldResolveTenantsFromTheApiKey() {
+        assertSame(tenants.getDefault(), tenants.resolve(RequestHeaders.of(headers("Authorization", "Bearer sk_test_default"))));
+        assertSame(tenants.getDefault(), tenants.resolve(RequestHeaders.of(new Headers())));
+        Tenant tenant = tenants.resolve(RequestHeaders.of(headers("Authorization", "Bearer sk_test_other")));
+        assertEquals("sk_test_other", tenant.getId());
+        assertSame(tenant,
+                   tenants.resolve(RequestHeaders.of(headers("Authorization",
+                                                             "Basic " + Base64.getEncoder()
+                                                                              .encodeToString("sk_test_other:".getBytes(StandardCharsets.UTF_8))))));
+    }
+
+    @Test
+    void shouldPreferTheTenantHeaderOverTheApiKey() {
+        Headers headers = headers("Authorization", "Bearer sk_test_default");
+        headers.set(Tenants.TENANT_HEADER, "worker-1");
+        Tenant tenant = tenants.resolve(RequestHeaders.of(headers));
+        assertEquals("worker-1", tenant.getId());
+        assertNotSame(tenants.getDefault()
+                             .getStripeEntities(), tenant.getStripeEntities());
+    }
+
+    @Test
+    void shouldStartOverWhenARemovedTenantIsUsedAgain() {
+        Tenant tenant = tenants.get("sk_test_other");
+
+        assertTrue(tenants.remove("sk_test_other"));
+        assertFalse(tenants.remove("sk_test_other"));
+
+        Tenant recreated = tenants.get("sk_test_other");
+        assertNotSame(tenant, recreated);
+        assertNotSame(tenant.getStripeEntities(), recreated.getStripeEntities());
+    }
+
+    @Test
+    void shouldNotRemoveTheDefaultTenant() {
+        assertThrows(IllegalArgumentException.class, () -> tenants.remove("sk_test_default"));
+        assertSame(tenants.getDefault(), tenants.get("sk_test_default"));
+    }
+
+    private static Headers headers(String name, String value) {
+        Headers headers = new Headers();
+        headers.set(name, value);
+        return headers;
+    }
+}
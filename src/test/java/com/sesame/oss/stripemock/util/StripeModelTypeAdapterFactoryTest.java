@@ -0,0 +1,84 @@
+package com.sesame.oss.stripemock.util;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.stripe.model.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StripeModelTypeAdapterFactoryTest {
+    private static final Gson REFLECTIVE_GSON = new GsonBuilder().setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+                                                                 .registerTypeAdapter(ExpandableField.class, new ExpandableFieldSerializer())
+                                                                 .create();
+
+    @Test
+    void shouldWriteLikeTheReflectiveAdapter() {
+        Customer customer = new Customer();
+        customer.setId("cus_123");
+        customer.setObject("customer");
+        customer.setBalance(100L);
+        customer.setDelinquent(false);
+        Address address = new Address();
+        address.setCity("Oslo");
+        customer.setAddress(address);
+        customer.setMetadata(Map.of("key", "value"));
+
+        Refund refund = new Refund();
+        refund.setId("re_123");
+        refund.setAmount(500L);
+        refund.setCharge("ch_123");
+        RefundCollection refunds = new RefundCollection();
+        refunds.setObject("list");
+        refunds.setData(List.of(refund));
+        Charge charge = new Charge();
+        charge.setId("ch_123");
+        charge.setAmount(1000L);
+        charge.setRefunds(refunds);
+        charge.setCustomerObject(customer);
+
+        InvoiceLineItem line = new InvoiceLineItem();
+        line.setId("il_123");
+        line.setAmount(1000L);
+        InvoiceLineItemCollection lines = new InvoiceLineItemCollection();
+        lines.setData(List.of(line));
+        Invoice invoice = new Invoice();
+        invoice.setId("in_123");
+        invoice.setLines(lines);
+        invoice.setCustomer("cus_123");
+        invoice.setStatusTransitions(new Invoice.StatusTransitions());
+
+        for (Object value : List.of(customer, charge, invoice, new Subscription())) {
+            assertEquals(REFLECTIVE_GSON.toJson(value), Utilities.PRODUCER_GSON.toJson(value));
+        }
+    }
+
+    @Test
+    void shouldWriteValuesAsTheirOwnType() {
+        // The field only knows that it's a payment source, so the fields of the card are only written if the value is written as a card
+        Card card = new Card();
+        card.setId("card_123");
+        card.setLast4("4242");
+        PaymentSourceCollection sources = new PaymentSourceCollection();
+        sources.setData(List.of(card));
+        Customer customer = new Customer();
+        customer.setSources(sources);
+
+        String json = Utilities.PRODUCER_GSON.toJson(customer);
+
+        assertEquals(REFLECTIVE_GSON.toJson(customer), json);
+        assertEquals("4242",
+                     Utilities.PRODUCER_GSON.toJsonTree(customer)
+                                            .getAsJsonObject()
+                                            .getAsJsonObject("sources")
+                                            .getAsJsonArray("data")
+                                            .get(0)
+                                            .getAsJsonObject()
+                                            .get("last4")
+                                            .getAsString());
+    }
+}